@@ -0,0 +1,376 @@
+/*
+ * Warm cache snapshots for the PizzaStore user interface
+ * ======================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+
+/**
+ * This class keeps the reference data of PizzaStore - the menu, the store
+ * pricing rules and the stores - in a binary snapshot file, so a restarted
+ * instance comes back with warm caches instead of loading them all from
+ * the database at once.
+ *
+ * At startup the file is memory-mapped and every section it holds is
+ * handed to its cache right away; sections that are missing are loaded
+ * from the database as before. A background check then asks the database
+ * for a fingerprint of each section - one small query for all of them,
+ * started after a random delay so a fleet of restarting instances does not
+ * hit the database at the same moment - and reloads only the sections that
+ * changed. The same check runs periodically, on a connection of its own
+ * so it never shares one with the user's operations, and rewrites the file
+ * whenever a section was reloaded.
+ *
+ * File layout, big-endian:
+ *
+ *    int magic, int version, long written millis, int section count
+ *    per section: name, fingerprint, int rows, int columns, cells
+ *    int CRC32 of everything before it
+ *
+ * Strings are an int byte length (-1 for null) and UTF-8 bytes. A file
+ * with another version or a bad checksum is ignored.
+ *
+ */
+public class CacheSnapshot {
+
+   public static final int MAGIC = 0x505A534E; // "PZSN"
+   public static final int VERSION = 1;
+
+   public static final long DEFAULT_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+   private final File file;
+   private final long intervalMillis;
+   private final List<Section> sections = new ArrayList<Section>();
+   private ScheduledExecutorService checker;
+
+   // the background check's connection; only used by the checker thread
+   private volatile Connection connection;
+
+   /**
+    * One cached result: the query that produces it, the cache it feeds
+    * and the fingerprint of the rows it was last loaded with.
+    */
+   private static final class Section {
+      final String name;
+      final String query;
+      final Consumer<List<List<String>>> loader;
+      String fingerprint;
+      List<List<String>> rows;
+
+      Section(String name, String query, Consumer<List<List<String>>> loader) {
+         this.name = name;
+         this.query = query;
+         this.loader = loader;
+      }
+   }
+
+   /**
+    * @param file the snapshot file, or null to keep no snapshot and only
+    *        load from the database
+    * @param intervalMillis the time between checks against the database
+    */
+   public CacheSnapshot(File file, long intervalMillis) {
+      this.file = file;
+      this.intervalMillis = intervalMillis;
+   }
+
+   /**
+    * Creates the snapshot from the PIZZASTORE_SNAPSHOT_FILE (default
+    * "pizzastore.snapshot"; "none" disables the file) and
+    * PIZZASTORE_SNAPSHOT_SECONDS (the check interval, default 300)
+    * environment variables.
+    */
+   public static CacheSnapshot fromEnvironment() {
+      String path = System.getenv("PIZZASTORE_SNAPSHOT_FILE");
+      String seconds = System.getenv("PIZZASTORE_SNAPSHOT_SECONDS");
+      File file = null;
+      if (path == null || path.trim().isEmpty()) {
+         file = new File("pizzastore.snapshot");
+      }
+      else if (!path.trim().equalsIgnoreCase("none")) {
+         file = new File(path.trim());
+      }
+      return new CacheSnapshot(file,
+         seconds == null || seconds.trim().isEmpty() ? DEFAULT_INTERVAL_MILLIS : Long.parseLong(seconds.trim()) * 1000);
+   }
+
+   /**
+    * Registers a cache.
+    *
+    * @param name the section name in the file and in error messages
+    * @param query a SELECT without the trailing semicolon
+    * @param loader replaces the cache contents with the rows of the query
+    */
+   public void add(String name, String query, Consumer<List<List<String>>> loader) {
+      sections.add(new Section(name, query, loader));
+   }
+
+   /**
+    * Fills every registered cache, from the snapshot file where it has the
+    * section and from the database otherwise. Each cache that fails to
+    * load is reported and left empty.
+    *
+    * @return the number of caches filled from the snapshot file
+    */
+   public int restore(PizzaStore esql) {
+      int restored = read();
+      boolean loaded = false;
+      for (Section section : sections) {
+         if (section.rows != null) {
+            section.loader.accept(section.rows);
+            continue;
+         }
+         try {
+            List<String> fingerprints = esql.executeQueryAndReturnResult(
+               "SELECT " + fingerprintQuery(section) + ";").get(0);
+            List<List<String>> rows = esql.executeQueryAndReturnResult(section.query + ";");
+            section.loader.accept(rows);
+            section.rows = rows;
+            section.fingerprint = fingerprints.get(0);
+            loaded = true;
+         }catch (SQLException e) {
+            System.err.println("Unable to load " + section.name + ": " + e.getMessage());
+         }
+      }
+      if (loaded) {
+         write();
+      }
+      return restored;
+   }
+
+   /**
+    * Starts the background checks against the database. The first one
+    * runs after a random part of the interval.
+    */
+   public void start(PizzaStore esql) {
+      if (intervalMillis <= 0) {
+         return;
+      }
+      checker = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread thread = new Thread(r, "cache-snapshot");
+         thread.setDaemon(true);
+         return thread;
+      });
+      checker.scheduleWithFixedDelay(() -> {
+         try {
+            if (connection == null || connection.isClosed()) {
+               connection = esql.orderShards().connect(0);
+            }
+            esql.usePrimary(connection);
+            check(esql);
+         }catch (Exception e) {
+            System.err.println("Unable to check the cache snapshot: " + e.getMessage());
+         }finally {
+            esql.usePrimary(null);
+         }
+      }, ThreadLocalRandom.current().nextLong(intervalMillis / 10 + 1), intervalMillis, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Stops the background checks.
+    */
+   public void stop() {
+      if (checker != null) {
+         checker.shutdownNow();
+      }
+      try {
+         if (connection != null) {
+            connection.close();
+         }
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+   /**
+    * Compares the fingerprint of every section with the database, reloads
+    * the sections that changed and rewrites the file if any did.
+    *
+    * @return the number of sections reloaded
+    * @throws java.sql.SQLException when the database cannot be queried
+    */
+   public int check(PizzaStore esql) throws SQLException {
+      if (sections.isEmpty()) {
+         return 0;
+      }
+      // the fingerprints of every section in one round trip
+      StringBuilder query = new StringBuilder("SELECT ");
+      for (Section section : sections) {
+         query.append(query.length() > 7 ? ", " : "").append('(').append(fingerprintQuery(section)).append(')');
+      }
+      List<String> fingerprints = esql.executeQueryAndReturnResult(query.append(';').toString()).get(0);
+
+      int reloaded = 0;
+      for (int i = 0; i < sections.size(); i++) {
+         Section section = sections.get(i);
+         String fingerprint = fingerprints.get(i);
+         if (fingerprint == null ? section.fingerprint == null && section.rows != null : fingerprint.equals(section.fingerprint)) {
+            continue;
+         }
+         List<List<String>> rows = esql.executeQueryAndReturnResult(section.query + ";");
+         section.loader.accept(rows);
+         section.rows = rows;
+         section.fingerprint = fingerprint;
+         reloaded++;
+      }
+      if (reloaded > 0) {
+         write();
+      }
+      return reloaded;
+   }
+
+   /*
+   * An md5 of the section's rows in text form, computed by the database.
+   */
+   private static String fingerprintQuery(Section section) {
+      return "SELECT md5(string_agg(CAST(t AS text), E'\\n' ORDER BY CAST(t AS text))) FROM (" + section.query + ") t";
+   }
+
+   /*
+   * Maps the snapshot file and takes the sections it holds.
+   * @return the number of sections read
+   */
+   private int read() {
+      if (file == null || !file.isFile()) {
+         return 0;
+      }
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+         MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         if (mapped.limit() < 24 || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+            return 0;
+         }
+         CRC32 crc = new CRC32();
+         crc.update(mapped.duplicate().limit(mapped.limit() - 4));
+         if ((int) crc.getValue() != mapped.getInt(mapped.limit() - 4)) {
+            System.err.println("Ignoring cache snapshot " + file + ": bad checksum.");
+            return 0;
+         }
+
+         mapped.position(16);
+         int count = mapped.getInt();
+         int restored = 0;
+         for (int s = 0; s < count; s++) {
+            String name = readString(mapped);
+            String fingerprint = readString(mapped);
+            int rowCount = mapped.getInt();
+            int columnCount = mapped.getInt();
+            List<List<String>> rows = new ArrayList<List<String>>(rowCount);
+            for (int r = 0; r < rowCount; r++) {
+               String[] row = new String[columnCount];
+               for (int c = 0; c < columnCount; c++) {
+                  row[c] = readString(mapped);
+               }
+               rows.add(Arrays.asList(row));
+            }
+            for (Section section : sections) {
+               if (section.name.equals(name)) {
+                  section.fingerprint = fingerprint;
+                  section.rows = ColumnarResult.of(rows);
+                  restored++;
+               }
+            }
+         }
+         return restored;
+      }catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+         System.err.println("Ignoring cache snapshot " + file + ": " + e.getMessage());
+         return 0;
+      }
+   }
+
+   /*
+   * Writes every loaded section to a temporary file and moves it over the
+   * snapshot, so a reader never sees a partial file.
+   */
+   private synchronized void write() {
+      if (file == null) {
+         return;
+      }
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(bytes);
+         List<Section> loaded = new ArrayList<Section>();
+         for (Section section : sections) {
+            if (section.rows != null) {
+               loaded.add(section);
+            }
+         }
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeLong(System.currentTimeMillis());
+         out.writeInt(loaded.size());
+         for (Section section : loaded) {
+            writeString(out, section.name);
+            writeString(out, section.fingerprint);
+            out.writeInt(section.rows.size());
+            int columnCount = section.rows.isEmpty() ? 0 : section.rows.get(0).size();
+            out.writeInt(columnCount);
+            for (List<String> row : section.rows) {
+               for (int c = 0; c < columnCount; c++) {
+                  writeString(out, row.get(c));
+               }
+            }
+         }
+         out.flush();
+         CRC32 crc = new CRC32();
+         crc.update(bytes.toByteArray());
+         out.writeInt((int) crc.getValue());
+
+         File temporary = new File(file.getPath() + ".tmp");
+         try (FileOutputStream stream = new FileOutputStream(temporary)) {
+            bytes.writeTo(stream);
+            stream.getFD().sync();
+         }
+         Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }catch (IOException e) {
+         System.err.println("Unable to write the cache snapshot " + file + ": " + e.getMessage());
+      }
+   }
+
+   private static void writeString(DataOutputStream out, String value) throws IOException {
+      if (value == null) {
+         out.writeInt(-1);
+         return;
+      }
+      byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(encoded.length);
+      out.write(encoded);
+   }
+
+   private static String readString(ByteBuffer in) {
+      int length = in.getInt();
+      if (length < 0) {
+         return null;
+      }
+      byte[] encoded = new byte[length];
+      in.get(encoded);
+      return new String(encoded, StandardCharsets.UTF_8);
+   }
+}
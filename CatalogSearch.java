@@ -0,0 +1,211 @@
+/*
+ * Catalog search for the PizzaStore user interface
+ * ================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * This class is one menu search over Items, built from any combination of
+ * item types, a price range, an item name prefix and a sort direction. It
+ * becomes a single parameterized query that reads the menu a page at a
+ * time. Pages are keyset paginated on (price, itemName): each page starts
+ * right after the last row of the previous one, so every page is an index
+ * range scan no matter how deep the user browses, and items added or
+ * removed meanwhile never shift rows between pages.
+ *
+ * The number of matching items is estimated from the planner's row
+ * estimate; it is only counted exactly when the estimate is small.
+ * Instances are immutable.
+ *
+ */
+public class CatalogSearch {
+
+   // items per page
+   public static final int DEFAULT_PAGE_SIZE = 20;
+
+   // estimates below this are replaced by an exact count
+   private static final long EXACT_COUNT_LIMIT = 10000;
+
+   private static final Pattern PLAN_ROWS = Pattern.compile("rows=(\\d+)");
+
+   private static final String COLUMNS = "itemName, ingredients, typeOfItem, price, description";
+
+   public final List<String> types;
+   public final long minPriceCents;
+   public final long maxPriceCents;
+   public final String namePrefix;
+   public final boolean ascending;
+   public final int pageSize;
+
+   /**
+    * One page of results. The next page continues after its last row.
+    */
+   public static final class Page {
+      // (itemName, ingredients, typeOfItem, price, description)
+      public final List<List<String>> items;
+      public final int number;
+      public final boolean hasMore;
+
+      Page(List<List<String>> items, int number, boolean hasMore) {
+         this.items = Collections.unmodifiableList(items);
+         this.number = number;
+         this.hasMore = hasMore;
+      }
+   }
+
+   /**
+    * Creates a search.
+    *
+    * @param types the allowed item types, or null or empty for any type
+    * @param minPriceCents the minimum price in cents, or a negative value
+    *        for no minimum
+    * @param maxPriceCents the maximum price in cents, or a negative value
+    *        for no maximum
+    * @param namePrefix the case-insensitive start of the item name, or null
+    *        or empty for any name
+    * @param ascending true to list the cheapest items first
+    * @param pageSize the number of items per page
+    */
+   public CatalogSearch(List<String> types, long minPriceCents, long maxPriceCents, String namePrefix,
+                        boolean ascending, int pageSize) {
+      if (pageSize < 1) {
+         throw new IllegalArgumentException("The page size must be positive.");
+      }
+      this.types = types == null ? Collections.<String>emptyList() : List.copyOf(types);
+      this.minPriceCents = minPriceCents;
+      this.maxPriceCents = maxPriceCents;
+      this.namePrefix = namePrefix == null ? "" : namePrefix.trim();
+      this.ascending = ascending;
+      this.pageSize = pageSize;
+   }
+
+   /**
+    * Reads the first page.
+    *
+    * @throws java.sql.SQLException when the query failed
+    */
+   public Page first(PizzaStore esql) throws SQLException {
+      return next(esql, null);
+   }
+
+   /**
+    * Reads the page after the given one.
+    *
+    * @param previous the page read last, or null for the first page
+    * @return the next page; empty if previous was the last one
+    * @throws java.sql.SQLException when the query failed
+    */
+   public Page next(PizzaStore esql, Page previous) throws SQLException {
+      List<Object> parameters = new ArrayList<Object>();
+      StringBuilder query = new StringBuilder("SELECT ").append(COLUMNS).append(" FROM Items");
+      List<String> conditions = conditions(parameters);
+      if (previous != null && !previous.items.isEmpty()) {
+         List<String> last = previous.items.get(previous.items.size() - 1);
+         conditions.add(ascending ? "(price, itemName) > (?, ?)" : "(price, itemName) < (?, ?)");
+         parameters.add(decimal(Pricing.parseCents(last.get(3))));
+         parameters.add(last.get(0));
+      }
+      if (!conditions.isEmpty()) {
+         query.append(" WHERE ").append(String.join(" AND ", conditions));
+      }
+      String direction = ascending ? "ASC" : "DESC";
+      query.append(" ORDER BY price ").append(direction).append(", itemName ").append(direction);
+      // one row more than a page tells whether another page follows
+      query.append(" LIMIT ?;");
+      parameters.add(pageSize + 1);
+
+      List<List<String>> rows = esql.executeQueryAndReturnResult(query.toString(), parameters);
+      boolean hasMore = rows.size() > pageSize;
+      if (hasMore) {
+         rows = rows.subList(0, pageSize);
+      }
+      return new Page(rows, previous == null ? 1 : previous.number + 1, hasMore);
+   }
+
+   /**
+    * Estimates the number of matching items without reading them.
+    *
+    * @throws java.sql.SQLException when the query failed
+    */
+   public long estimateCount(PizzaStore esql) throws SQLException {
+      List<Object> parameters = new ArrayList<Object>();
+      List<String> conditions = conditions(parameters);
+      String where = conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions);
+
+      long estimate = EXACT_COUNT_LIMIT;
+      List<List<String>> plan = esql.executeQueryAndReturnResult("EXPLAIN SELECT 1 FROM Items" + where + ";", parameters);
+      if (!plan.isEmpty()) {
+         Matcher rows = PLAN_ROWS.matcher(plan.get(0).get(0));
+         if (rows.find()) {
+            estimate = Long.parseLong(rows.group(1));
+         }
+      }
+      if (estimate < EXACT_COUNT_LIMIT) {
+         return Long.parseLong(esql.executeQueryAndReturnResult(
+            "SELECT COUNT(*) FROM Items" + where + ";", parameters).get(0).get(0));
+      }
+      return estimate;
+   }
+
+   /**
+    * Describes the filters for display, e.g. "Item type (entree), Price <= $10.00".
+    */
+   public String describe() {
+      List<String> filters = new ArrayList<String>();
+      if (!types.isEmpty()) {
+         filters.add("Item type (" + String.join(", ", types) + ")");
+      }
+      if (minPriceCents >= 0) {
+         filters.add("Price >= $" + Pricing.formatCents(minPriceCents));
+      }
+      if (maxPriceCents >= 0) {
+         filters.add("Price <= $" + Pricing.formatCents(maxPriceCents));
+      }
+      if (!namePrefix.isEmpty()) {
+         filters.add("Name starts with '" + namePrefix + "'");
+      }
+      filters.add("Price " + (ascending ? "lowest->highest" : "highest->lowest"));
+      return String.join(", ", filters);
+   }
+
+   /*
+   * Builds the filter conditions and appends their parameters.
+   */
+   private List<String> conditions(List<Object> parameters) {
+      List<String> conditions = new ArrayList<String>();
+      if (!types.isEmpty()) {
+         conditions.add("typeOfItem IN (" + String.join(", ", Collections.nCopies(types.size(), "?")) + ")");
+         parameters.addAll(types);
+      }
+      if (minPriceCents >= 0) {
+         conditions.add("price >= ?");
+         parameters.add(decimal(minPriceCents));
+      }
+      if (maxPriceCents >= 0) {
+         conditions.add("price <= ?");
+         parameters.add(decimal(maxPriceCents));
+      }
+      if (!namePrefix.isEmpty()) {
+         // matches the lower(itemName) text_pattern_ops index
+         conditions.add("lower(itemName) LIKE ?");
+         parameters.add(namePrefix.toLowerCase().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+      }
+      return conditions;
+   }
+
+   private static BigDecimal decimal(long cents) {
+      return BigDecimal.valueOf(cents, 2);
+   }
+}
@@ -0,0 +1,225 @@
+/*
+ * Compact query results for the PizzaStore user interface
+ * =======================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * This class stores a query result column by column for results that are
+ * kept around in caches. Each column picks the smallest encoding that
+ * gives back exactly the strings it was built from:
+ *
+ *    integers    long[]                    e.g. orderID, storeID, quantity
+ *    money       long[] of cents           e.g. price, totalPrice
+ *    repetitive  int[] codes + dictionary  e.g. state, isOpen, orderStatus
+ *    other       String[]
+ *
+ * The result is itself an immutable List of rows, so it replaces the
+ * List&lt;List&lt;String&gt;&gt; of executeQueryAndReturnResult as is. Rows
+ * are light views over the columns, and getString/getLong read a single
+ * cell without any row object at all.
+ *
+ */
+public class ColumnarResult extends AbstractList<List<String>> {
+
+   private static final int STRINGS = 0;
+   private static final int INTEGERS = 1;
+   private static final int CENTS = 2;
+   private static final int DICTIONARY = 3;
+
+   private final int rows;
+   private final int[] kinds;
+   private final Object[] columns;
+   private final String[][] dictionaries;
+   private final BitSet[] nulls;
+
+   private ColumnarResult(int rows, int columnCount) {
+      this.rows = rows;
+      this.kinds = new int[columnCount];
+      this.columns = new Object[columnCount];
+      this.dictionaries = new String[columnCount][];
+      this.nulls = new BitSet[columnCount];
+   }
+
+   /**
+    * Encodes a row-major result. Every row must have the same number of
+    * columns.
+    */
+   public static ColumnarResult of(List<List<String>> result) {
+      if (result instanceof ColumnarResult) {
+         return (ColumnarResult) result;
+      }
+      int columnCount = result.isEmpty() ? 0 : result.get(0).size();
+      ColumnarResult encoded = new ColumnarResult(result.size(), columnCount);
+      for (int column = 0; column < columnCount; column++) {
+         encoded.encode(result, column);
+      }
+      return encoded;
+   }
+
+   @Override
+   public int size() {
+      return rows;
+   }
+
+   public int columnCount() {
+      return kinds.length;
+   }
+
+   @Override
+   public List<String> get(int row) {
+      if (row < 0 || row >= rows) {
+         throw new IndexOutOfBoundsException("Row " + row + " of " + rows);
+      }
+      return new Row(row);
+   }
+
+   /**
+    * Returns one cell as the string it was built from.
+    */
+   public String getString(int row, int column) {
+      if (nulls[column] != null && nulls[column].get(row)) {
+         return null;
+      }
+      switch (kinds[column]) {
+         case INTEGERS:
+            return String.valueOf(((long[]) columns[column])[row]);
+         case CENTS:
+            return Pricing.formatCents(((long[]) columns[column])[row]);
+         case DICTIONARY:
+            return dictionaries[column][((int[]) columns[column])[row]];
+         default:
+            return ((String[]) columns[column])[row];
+      }
+   }
+
+   /**
+    * Returns one cell of an integer column, or of a money column in cents,
+    * without going through a string.
+    *
+    * @throws java.lang.IllegalStateException when the column is not numeric
+    *         or the cell is null
+    */
+   public long getLong(int row, int column) {
+      if ((kinds[column] != INTEGERS && kinds[column] != CENTS) || (nulls[column] != null && nulls[column].get(row))) {
+         throw new IllegalStateException("Column " + column + " of row " + row + " is not a number.");
+      }
+      return ((long[]) columns[column])[row];
+   }
+
+   /*
+   * Picks the encoding of one column: numeric if every value round-trips
+   * through a number, a dictionary if at most half of the values are
+   * distinct, plain strings otherwise.
+   */
+   private void encode(List<List<String>> result, int column) {
+      BitSet columnNulls = new BitSet();
+      boolean integers = true;
+      boolean cents = true;
+      Map<String, Integer> codes = new HashMap<String, Integer>();
+
+      for (int row = 0; row < rows; row++) {
+         String value = result.get(row).get(column);
+         if (value == null) {
+            columnNulls.set(row);
+            continue;
+         }
+         if (integers && !isInteger(value)) {
+            integers = false;
+         }
+         if (cents && !isCents(value)) {
+            cents = false;
+         }
+         if (codes.size() <= rows / 2) {
+            codes.putIfAbsent(value, codes.size());
+         }
+      }
+      nulls[column] = columnNulls.isEmpty() ? null : columnNulls;
+
+      if (integers || cents) {
+         long[] values = new long[rows];
+         for (int row = 0; row < rows; row++) {
+            String value = result.get(row).get(column);
+            if (value != null) {
+               values[row] = integers ? Long.parseLong(value) : Pricing.parseCents(value);
+            }
+         }
+         kinds[column] = integers ? INTEGERS : CENTS;
+         columns[column] = values;
+      }
+      else if (rows > 1 && codes.size() <= rows / 2) {
+         int[] values = new int[rows];
+         String[] dictionary = new String[codes.size()];
+         for (Map.Entry<String, Integer> code : codes.entrySet()) {
+            dictionary[code.getValue()] = code.getKey();
+         }
+         for (int row = 0; row < rows; row++) {
+            String value = result.get(row).get(column);
+            if (value != null) {
+               values[row] = codes.get(value);
+            }
+         }
+         kinds[column] = DICTIONARY;
+         columns[column] = values;
+         dictionaries[column] = dictionary;
+      }
+      else {
+         String[] values = new String[rows];
+         for (int row = 0; row < rows; row++) {
+            values[row] = result.get(row).get(column);
+         }
+         kinds[column] = STRINGS;
+         columns[column] = values;
+      }
+   }
+
+   private static boolean isInteger(String value) {
+      try {
+         return String.valueOf(Long.parseLong(value)).equals(value);
+      }catch (NumberFormatException e) {
+         return false;
+      }
+   }
+
+   private static boolean isCents(String value) {
+      try {
+         return Pricing.formatCents(Pricing.parseCents(value)).equals(value);
+      }catch (NumberFormatException | ArithmeticException e) {
+         return false;
+      }
+   }
+
+   /**
+    * A row view; it holds only its row number.
+    */
+   private final class Row extends AbstractList<String> {
+      private final int row;
+
+      Row(int row) {
+         this.row = row;
+      }
+
+      @Override
+      public String get(int column) {
+         if (column < 0 || column >= kinds.length) {
+            throw new IndexOutOfBoundsException("Column " + column + " of " + kinds.length);
+         }
+         return getString(row, column);
+      }
+
+      @Override
+      public int size() {
+         return kinds.length;
+      }
+   }
+}
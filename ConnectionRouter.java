@@ -0,0 +1,242 @@
+/*
+ * Read/write routing for the PizzaStore user interface
+ * ====================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This class routes statements between the primary database and a set of
+ * streaming replicas. Statements of mutating operations, statements inside
+ * a transaction and every update go to the primary. Statements of
+ * read-only operations go to the replicas in round-robin order, skipping
+ * any replica whose replay lag is above the limit. For a short window after
+ * a user's own write, that user's reads stay on the primary so they always
+ * see what they just wrote.
+ *
+ * A thread may also be given a primary connection of its own, so that an
+ * embedding API never shares the console's connection or its transactions.
+ *
+ */
+public class ConnectionRouter {
+
+   // how long a user's reads stay on the primary after one of their writes
+   public static final long DEFAULT_STICKY_MILLIS = 5000;
+
+   // replicas lagging further behind than this are skipped
+   public static final long DEFAULT_MAX_LAG_MILLIS = 2000;
+
+   // how often the replay lag of a replica is re-checked
+   private static final long LAG_CHECK_INTERVAL_MILLIS = 1000;
+
+   private static final String LAG_QUERY =
+      "SELECT CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+      "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END;";
+
+   private final Connection primary;
+   private final List<Replica> replicas;
+   private final long stickyMillis;
+   private final long maxLagMillis;
+
+   private final AtomicInteger next = new AtomicInteger();
+   private final ConcurrentHashMap<String, Long> lastWrite = new ConcurrentHashMap<String, Long>();
+
+   // the login and kind of the operation running on the current thread
+   private final ThreadLocal<String> currentLogin = new ThreadLocal<String>();
+   private final ThreadLocal<Boolean> currentMutating = new ThreadLocal<Boolean>();
+
+   // the connection used in place of the primary by the current thread, if any
+   private final ThreadLocal<Connection> currentPrimary = new ThreadLocal<Connection>();
+
+   private static class Replica {
+      final Connection connection;
+      volatile long lagMillis = 0;
+      volatile long checkedAt = 0;
+
+      Replica(Connection connection) {
+         this.connection = connection;
+      }
+   }
+
+   public ConnectionRouter(Connection primary, List<Connection> replicaConnections,
+                           long stickyMillis, long maxLagMillis) {
+      this.primary = primary;
+      this.replicas = new ArrayList<Replica>();
+      for (Connection connection : replicaConnections) {
+         this.replicas.add(new Replica(connection));
+      }
+      this.stickyMillis = stickyMillis;
+      this.maxLagMillis = maxLagMillis;
+   }
+
+   /**
+    * Creates a router from the PIZZASTORE_REPLICAS environment variable, a
+    * comma separated list of host:port replica endpoints serving the same
+    * database. Replicas that cannot be reached are left out. Without the
+    * variable every statement goes to the primary.
+    */
+   public static ConnectionRouter fromEnvironment(Connection primary, String dbname, String user, String passwd) {
+      List<Connection> connections = new ArrayList<Connection>();
+      String configured = System.getenv("PIZZASTORE_REPLICAS");
+
+      if (configured != null) {
+         for (String endpoint : configured.split(",")) {
+            if (endpoint.trim().isEmpty()) {
+               continue;
+            }
+            String url = "jdbc:postgresql://" + endpoint.trim() + "/" + dbname;
+            try {
+               connections.add(DriverManager.getConnection(url, user, passwd));
+               System.out.println("Connected to read replica " + url);
+            }catch (SQLException e) {
+               System.err.println("Unable to connect to read replica " + url + ": " + e.getMessage());
+            }
+         }
+      }
+      return new ConnectionRouter(primary, connections, DEFAULT_STICKY_MILLIS, DEFAULT_MAX_LAG_MILLIS);
+   }
+
+   /**
+    * Declares the operation the current thread is about to run. Every
+    * statement issued until the next call is routed accordingly.
+    *
+    * @param login the user running the operation, or null before login
+    * @param mutating true if the operation writes to the database
+    */
+   public void beginOperation(String login, boolean mutating) {
+      currentLogin.set(login);
+      currentMutating.set(mutating);
+   }
+
+   /**
+    * Gives the current thread a connection of its own in place of the
+    * primary, for its updates, transactions and primary reads.
+    *
+    * @param connection the connection, or null to use the shared primary again
+    */
+   public void usePrimary(Connection connection) {
+      if (connection == null) {
+         currentPrimary.remove();
+      }
+      else {
+         currentPrimary.set(connection);
+      }
+   }
+
+   /**
+    * Returns the primary connection of the current thread.
+    */
+   public Connection primary() {
+      Connection own = currentPrimary.get();
+      return own == null ? primary : own;
+   }
+
+   /**
+    * Returns the user of the operation the current thread runs, or null.
+    */
+   public String currentLogin() {
+      return currentLogin.get();
+   }
+
+   /**
+    * Returns true if the operation the current thread runs writes to the
+    * database.
+    */
+   public boolean currentMutating() {
+      return Boolean.TRUE.equals(currentMutating.get());
+   }
+
+   /**
+    * Returns the connection for an update statement and starts the
+    * read-your-writes window of the current user.
+    */
+   public Connection forWrite() {
+      String login = currentLogin.get();
+      if (login != null) {
+         lastWrite.put(login, System.currentTimeMillis());
+      }
+      return primary();
+   }
+
+   /**
+    * Returns the connection for a query statement.
+    */
+   public Connection forRead() throws SQLException {
+      Connection primary = primary();
+      if (replicas.isEmpty() || Boolean.TRUE.equals(currentMutating.get()) || !primary.getAutoCommit()) {
+         return primary;
+      }
+
+      String login = currentLogin.get();
+      if (login == null) {
+         return primary;
+      }
+      Long written = lastWrite.get(login);
+      if (written != null) {
+         if (System.currentTimeMillis() - written < stickyMillis) {
+            return primary;
+         }
+         lastWrite.remove(login, written);
+      }
+
+      int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+      for (int i = 0; i < replicas.size(); i++) {
+         Replica replica = replicas.get((start + i) % replicas.size());
+         if (lagMillis(replica) <= maxLagMillis) {
+            return replica.connection;
+         }
+      }
+      return primary;
+   }
+
+   /*
+   * Returns the replay lag of a replica, re-checking it at most once per
+   * interval. A replica that cannot answer is treated as infinitely behind
+   * until the next check.
+   */
+   private long lagMillis(Replica replica) {
+      long now = System.currentTimeMillis();
+      if (now - replica.checkedAt < LAG_CHECK_INTERVAL_MILLIS) {
+         return replica.lagMillis;
+      }
+      replica.checkedAt = now;
+      try {
+         Statement stmt = replica.connection.createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery(LAG_QUERY);
+            replica.lagMillis = rs.next() ? (long) rs.getDouble(1) : Long.MAX_VALUE;
+         }finally {
+            stmt.close();
+         }
+      }catch (SQLException e) {
+         replica.lagMillis = Long.MAX_VALUE;
+      }
+      return replica.lagMillis;
+   }
+
+   /**
+    * Closes the replica connections. The primary is closed by PizzaStore.
+    */
+   public void close() {
+      for (Replica replica : replicas) {
+         try {
+            replica.connection.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }
+}
@@ -0,0 +1,201 @@
+/*
+ * Post-login prefetch for the PizzaStore user interface
+ * =====================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * This class fetches the data of the screens users open right after logging
+ * in -- their profile and role, their recent orders and the open stores --
+ * as soon as LogIn succeeds. The queries are issued concurrently, one task
+ * each, so reads spread over the replicas and the recent orders scatter to
+ * the order shards while the user is still looking at the menu. Queries
+ * that are not served by a replica run on connections of the prefetch's
+ * own, never on the ones the console's operations use.
+ *
+ * Results are kept per login for a short time. A screen that finds its
+ * data here renders from memory; one that finds nothing, an expired entry
+ * or a failed fetch runs its own query as before. Anything that changes
+ * the cached rows invalidates them. Cached results are held as
+ * ColumnarResults.
+ *
+ */
+public class DashboardPrefetch {
+
+   // how long prefetched results may be shown
+   public static final long DEFAULT_TTL_MILLIS = 30000;
+
+   // how long a screen waits for a prefetch that is still running
+   private static final long MAX_WAIT_MILLIS = 2000;
+
+   private final long ttlMillis;
+   private final ExecutorService executor = PizzaStoreAsync.newExecutor("dashboard-prefetch");
+   private final ConcurrentHashMap<String, Dashboard> dashboards = new ConcurrentHashMap<String, Dashboard>();
+   private List<Connection> connections;
+
+   /**
+    * The prefetched data of one login.
+    */
+   private static final class Dashboard {
+      final long fetchedAt = System.currentTimeMillis();
+
+      // (favoriteItems, phoneNum, role)
+      CompletableFuture<List<String>> profile;
+
+      // (orderID, storeID, totalPrice, orderTimestamp, orderStatus), newest first
+      CompletableFuture<List<List<String>>> recentOrders;
+
+      // (storeID, address, city, state)
+      CompletableFuture<List<List<String>>> openStores;
+   }
+
+   /**
+    * A prefetch query.
+    */
+   private interface Fetch<T> {
+      T run() throws SQLException;
+   }
+
+   public DashboardPrefetch(long ttlMillis) {
+      this.ttlMillis = ttlMillis;
+   }
+
+   public DashboardPrefetch() {
+      this(DEFAULT_TTL_MILLIS);
+   }
+
+   /**
+    * Starts fetching the dashboard of a user who has just logged in,
+    * replacing whatever was cached for the login.
+    */
+   public void start(PizzaStore esql, String login) {
+      Dashboard dashboard = new Dashboard();
+      dashboard.profile = fetch(esql, login, () -> {
+         // profile and role in one round trip
+         List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+            "SELECT favoriteItems, phoneNum, role FROM Users WHERE login = '%s';",
+            login));
+         return rows.isEmpty() ? null : rows.get(0);
+      });
+      dashboard.recentOrders = fetch(esql, login, () -> ColumnarResult.of(PizzaStore.recentOrders(esql, login)));
+      dashboard.openStores = fetch(esql, login, () -> ColumnarResult.of(PizzaStore.openStores(esql)));
+      dashboards.put(login, dashboard);
+   }
+
+   /**
+    * Returns the prefetched (favoriteItems, phoneNum, role) of a login, or
+    * null if it has to be queried.
+    */
+   public List<String> profile(String login) {
+      Dashboard dashboard = current(login);
+      return dashboard == null ? null : result(dashboard.profile);
+   }
+
+   /**
+    * Returns the prefetched 5 most recent orders of a login, or null if
+    * they have to be queried.
+    */
+   public List<List<String>> recentOrders(String login) {
+      Dashboard dashboard = current(login);
+      return dashboard == null ? null : result(dashboard.recentOrders);
+   }
+
+   /**
+    * Returns the prefetched open stores, or null if they have to be queried.
+    */
+   public List<List<String>> openStores(String login) {
+      Dashboard dashboard = current(login);
+      return dashboard == null ? null : result(dashboard.openStores);
+   }
+
+   /**
+    * Drops the prefetched data of one login, e.g. after it placed an order
+    * or changed its profile, or on log out.
+    */
+   public void invalidate(String login) {
+      dashboards.remove(login);
+   }
+
+   /**
+    * Drops every prefetched dashboard, e.g. after an order status or a user
+    * account changed.
+    */
+   public void invalidateAll() {
+      dashboards.clear();
+   }
+
+   public void close() {
+      executor.shutdownNow();
+      synchronized (this) {
+         try {
+            if (connections != null) {
+               for (Connection connection : connections) {
+                  connection.close();
+               }
+            }
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }
+
+   private <T> CompletableFuture<T> fetch(PizzaStore esql, String login, Fetch<T> query) {
+      return CompletableFuture.supplyAsync(() -> {
+         esql.beginOperation(login, false);
+         try {
+            esql.useConnections(connections(esql));
+            return query.run();
+         }catch (SQLException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+         }finally {
+            esql.useConnections(null);
+         }
+      }, executor);
+   }
+
+   /*
+   * The prefetch's own connections to every order shard, opened on first use.
+   */
+   private synchronized List<Connection> connections(PizzaStore esql) throws SQLException {
+      if (connections == null || connections.get(0).isClosed()) {
+         connections = esql.orderShards().connectAll();
+      }
+      return connections;
+   }
+
+   private Dashboard current(String login) {
+      Dashboard dashboard = dashboards.get(login);
+      if (dashboard != null && System.currentTimeMillis() - dashboard.fetchedAt >= ttlMillis) {
+         dashboards.remove(login, dashboard);
+         return null;
+      }
+      return dashboard;
+   }
+
+   /*
+   * Returns a prefetched value, waiting briefly for a fetch that is still
+   * running; null if it failed or is too slow.
+   */
+   private static <T> T result(CompletableFuture<T> future) {
+      try {
+         return future.get(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return null;
+      }catch (Exception e) {
+         return null;
+      }
+   }
+}
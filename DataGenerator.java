@@ -0,0 +1,499 @@
+/*
+ * Synthetic data generator for the PizzaStore user interface
+ * ==========================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * This class writes users.csv, items.csv, store.csv, foodorder.csv and
+ * itemsinorder.csv in the layout of the bundled files, at any scale, so
+ * indexes and queries can be measured against production-sized tables:
+ *
+ *    java DataGenerator --users 1M --orders 50M --out ../data
+ *
+ * Options (counts accept k and M suffixes):
+ *
+ *    --users N      number of users (default 100k); user0 is a manager
+ *                   and user1 a driver, both with password "password"
+ *    --stores N     number of stores (default 1000)
+ *    --items N      menu size; the bundled menu is extended with variants
+ *                   up to N items (default: the bundled menu as is)
+ *    --orders N     number of orders (default 1M)
+ *    --from DATE    first order day (default 2014-01-01)
+ *    --to DATE      day after the last order day (default 2026-01-01)
+ *    --seed N       random seed (default 166)
+ *    --threads N    worker threads (default: number of processors)
+ *    --menu FILE    bundled menu to start from (default items.csv)
+ *    --out DIR      output directory (default data)
+ *
+ * The data is skewed the way real traffic is: item popularity, store
+ * traffic and customer loyalty follow Zipf distributions, and orders peak
+ * at lunch, at dinner and on weekends. The most recent orders are mostly
+ * incomplete, older ones almost all complete.
+ *
+ * The output only depends on the options, not on the thread count. Orders
+ * are generated in chunks of their own random stream, written to part
+ * files in parallel and joined in order at the end. The files load with
+ * load_data.sql, which also backfills the sales rollups.
+ *
+ */
+public class DataGenerator {
+
+   // orders per parallel chunk
+   private static final int CHUNK_ORDERS = 1 << 20;
+
+   // the bundled orders start here
+   private static final int FIRST_ORDER_ID = 10000;
+
+   // most lines an order has
+   private static final int MAX_ORDER_LINES = 6;
+
+   // relative order volume per hour of the day, lunch and dinner peaks
+   private static final double[] HOUR_WEIGHTS = {
+      0.3, 0.2, 0.1, 0.05, 0.05, 0.1, 0.3, 0.6, 0.8, 1.0, 1.6, 3.2,
+      3.8, 2.6, 1.4, 1.2, 1.8, 3.4, 4.2, 3.6, 2.4, 1.6, 1.0, 0.6 };
+
+   // relative order volume per day of the week, Monday first
+   private static final double[] WEEKDAY_WEIGHTS = { 0.85, 0.85, 0.9, 1.0, 1.3, 1.4, 1.15 };
+
+   private static final String[][] CITIES = {
+      { "San Diego", "California" }, { "Los Angeles", "California" }, { "Riverside", "California" },
+      { "San Jose", "California" }, { "Sacramento", "California" }, { "Portland", "Oregon" },
+      { "Seattle", "Washington" }, { "Phoenix", "Arizona" }, { "Las Vegas", "Nevada" },
+      { "Denver", "Colorado" }, { "Houston", "Texas" }, { "Spring", "Texas" }, { "Austin", "Texas" },
+      { "Chicago", "Illinois" }, { "New York City", "New York" }, { "Miami", "Florida" },
+      { "Atlanta", "Georgia" }, { "Boston", "Massachusetts" }, { "Minneapolis", "Minnesota" },
+      { "Salt Lake City", "Utah" } };
+
+   private static final String[] STREETS = {
+      "Hallows", "Bunker Hill", "Jenifer", "Oak", "Maple", "Cedar", "Pine", "Elm", "Washington",
+      "Lake", "Hill", "Sunset", "Park", "Main", "Ridge", "Valley", "Mission", "Harbor", "Meadow", "River" };
+
+   private static final String[] STREET_SUFFIXES = {
+      "Street", "Avenue", "Center", "Terrace", "Road", "Way", "Drive", "Court", "Place", "Parkway" };
+
+   private long seed = 166;
+   private int users = 100000;
+   private int stores = 1000;
+   private int items = 0;
+   private long orders = 1000000;
+   private LocalDate from = LocalDate.of(2014, 1, 1);
+   private LocalDate to = LocalDate.of(2026, 1, 1);
+   private int threads = Runtime.getRuntime().availableProcessors();
+   private File menuFile = new File("items.csv");
+   private File outDir = new File("data");
+
+   // (itemName, ingredients, typeOfItem, price, description)
+   private List<List<String>> menu;
+   private long[] priceCents;
+
+   private Zipf itemPopularity;
+   private Zipf storeTraffic;
+   private Zipf customerLoyalty;
+
+   // "yyyy-MM-dd" of every order day
+   private String[] dayNames;
+
+   /**
+    * Draws indexes 0..n-1 with Zipf-distributed frequencies. Rank k is
+    * mapped to an index by a fixed permutation, so the popular entries are
+    * spread over the table instead of being the first rows.
+    */
+   private static final class Zipf {
+      private final double[] cumulative;
+      private final long step;
+
+      Zipf(int n, double exponent) {
+         cumulative = new double[n];
+         double total = 0;
+         for (int rank = 0; rank < n; rank++) {
+            total += 1.0 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = total;
+         }
+         long candidate = 2654435761L % Math.max(n, 1);
+         while (n > 1 && gcd(candidate, n) != 1) {
+            candidate++;
+         }
+         step = Math.max(candidate, 1);
+      }
+
+      int next(SplittableRandom random) {
+         double u = random.nextDouble() * cumulative[cumulative.length - 1];
+         int low = 0;
+         int high = cumulative.length - 1;
+         while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulative[middle] < u) {
+               low = middle + 1;
+            }
+            else {
+               high = middle;
+            }
+         }
+         return (int) (((low + 1) * step) % cumulative.length);
+      }
+
+      private static long gcd(long a, long b) {
+         return b == 0 ? a : gcd(b, a % b);
+      }
+   }
+
+   /**
+    * A task writing one file.
+    */
+   private interface Table {
+      long write(Writer out) throws IOException;
+   }
+
+   public static void main(String[] args) {
+      try {
+         DataGenerator generator = new DataGenerator();
+         generator.parse(args);
+         generator.generate();
+      }catch (IllegalArgumentException e) {
+         System.err.println(e.getMessage());
+         System.err.println("Usage: java DataGenerator [--users N] [--stores N] [--items N] [--orders N] "
+            + "[--from DATE] [--to DATE] [--seed N] [--threads N] [--menu FILE] [--out DIR]");
+         System.exit(1);
+      }catch (Exception e) {
+         System.err.println("Error while generating data: " + e.getMessage());
+         System.exit(1);
+      }
+   }
+
+   private void parse(String[] args) {
+      for (int i = 0; i < args.length; i++) {
+         if (i + 1 == args.length) {
+            throw new IllegalArgumentException("Missing value of " + args[i]);
+         }
+         String value = args[++i];
+         switch (args[i - 1]) {
+            case "--users": users = (int) count(value); break;
+            case "--stores": stores = (int) count(value); break;
+            case "--items": items = (int) count(value); break;
+            case "--orders": orders = count(value); break;
+            case "--from": from = LocalDate.parse(value); break;
+            case "--to": to = LocalDate.parse(value); break;
+            case "--seed": seed = Long.parseLong(value); break;
+            case "--threads": threads = (int) count(value); break;
+            case "--menu": menuFile = new File(value); break;
+            case "--out": outDir = new File(value); break;
+            default: throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+         }
+      }
+      if (users < 2 || stores < 1 || threads < 1 || !from.isBefore(to)) {
+         throw new IllegalArgumentException("Need at least 2 users, 1 store, 1 thread and --from before --to.");
+      }
+   }
+
+   private static long count(String value) {
+      value = value.trim();
+      long unit = 1;
+      if (value.endsWith("k") || value.endsWith("K")) {
+         unit = 1000;
+      }
+      else if (value.endsWith("m") || value.endsWith("M")) {
+         unit = 1000000;
+      }
+      try {
+         return Long.parseLong(unit == 1 ? value : value.substring(0, value.length() - 1)) * unit;
+      }catch (NumberFormatException e) {
+         throw new IllegalArgumentException("Not a count: " + value);
+      }
+   }
+
+   private void generate() throws Exception {
+      long started = System.currentTimeMillis();
+      loadMenu();
+      itemPopularity = new Zipf(menu.size(), 1.1);
+      storeTraffic = new Zipf(stores, 0.8);
+      customerLoyalty = new Zipf(users, 0.9);
+
+      int days = (int) (to.toEpochDay() - from.toEpochDay());
+      dayNames = new String[days];
+      for (int day = 0; day < days; day++) {
+         dayNames[day] = from.plusDays(day).toString();
+      }
+
+      if (!outDir.isDirectory() && !outDir.mkdirs()) {
+         throw new IOException("Cannot create " + outDir);
+      }
+
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try {
+         List<Future<Long>> tables = new ArrayList<Future<Long>>();
+         tables.add(pool.submit(() -> write("users.csv", this::writeUsers)));
+         tables.add(pool.submit(() -> write("items.csv", this::writeItems)));
+         tables.add(pool.submit(() -> write("store.csv", this::writeStores)));
+
+         int chunks = (int) ((orders + CHUNK_ORDERS - 1) / CHUNK_ORDERS);
+         List<Future<Long>> parts = new ArrayList<Future<Long>>();
+         for (int chunk = 0; chunk < chunks; chunk++) {
+            final int current = chunk;
+            parts.add(pool.submit(() -> writeOrders(current)));
+         }
+
+         String[] names = { "users", "items", "stores" };
+         for (int i = 0; i < tables.size(); i++) {
+            System.out.println(String.format("%,d %s", tables.get(i).get(), names[i]));
+         }
+         long lines = 0;
+         for (Future<Long> part : parts) {
+            lines += part.get();
+         }
+         join("foodorder.csv", "orderID,login,storeID,totalPrice,\"orderTimestamp\",orderStatus", chunks);
+         join("itemsinorder.csv", "orderID,itemName,quantity", chunks);
+         System.out.println(String.format("%,d orders with %,d order lines", orders, lines));
+      }finally {
+         pool.shutdownNow();
+      }
+      System.out.println(String.format("Wrote %s in %.1f s", outDir, (System.currentTimeMillis() - started) / 1000.0));
+   }
+
+   /*
+   * Reads the bundled menu and extends it with variants up to --items.
+   */
+   private void loadMenu() throws IOException {
+      List<List<String>> rows;
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(
+            new FileInputStream(menuFile), StandardCharsets.UTF_8))) {
+         rows = MenuTransfer.readCsv(in);
+      }
+      menu = new ArrayList<List<String>>();
+      for (List<String> row : rows.subList(1, rows.size())) {
+         if (row.size() == 5) {
+            menu.add(row);
+         }
+      }
+      if (menu.isEmpty()) {
+         throw new IOException(menuFile + " has no menu items.");
+      }
+      int base = menu.size();
+      for (int variant = base; variant < items; variant++) {
+         List<String> original = menu.get(variant % base);
+         long cents = Pricing.parseCents(original.get(3)) + 100 * (variant / base % 4);
+         menu.add(List.of(original.get(0) + " No. " + (variant / base + 1), original.get(1),
+            original.get(2), Pricing.formatCents(cents), original.get(4)));
+      }
+      priceCents = new long[menu.size()];
+      for (int item = 0; item < menu.size(); item++) {
+         priceCents[item] = Pricing.parseCents(menu.get(item).get(3));
+      }
+   }
+
+   private long write(String name, Table table) throws IOException {
+      try (Writer out = open(new File(outDir, name))) {
+         return table.write(out);
+      }
+   }
+
+   private static Writer open(File file) throws IOException {
+      return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 20);
+   }
+
+   private long writeUsers(Writer out) throws IOException {
+      SplittableRandom random = new SplittableRandom(seed);
+      out.write("login,password,role,favoriteItems,phoneNum\n");
+      StringBuilder line = new StringBuilder(128);
+      for (int user = 0; user < users; user++) {
+         double roll = random.nextDouble();
+         String role = user == 0 || (user > 1 && roll < 0.01) ? "manager"
+            : user == 1 || roll < 0.04 ? "driver" : "customer";
+         line.setLength(0);
+         line.append("user").append(user).append(',')
+            .append(user < 2 ? "password" : Long.toHexString(random.nextLong() >>> 16)).append(',')
+            .append(role).append(',')
+            .append(MenuTransfer.csvField(menu.get(itemPopularity.next(random)).get(0), false)).append(',')
+            .append(String.format("%03d-%03d-%04d",
+               200 + random.nextInt(800), random.nextInt(1000), random.nextInt(10000)))
+            .append('\n');
+         out.append(line);
+      }
+      return users;
+   }
+
+   private long writeItems(Writer out) throws IOException {
+      out.write(MenuTransfer.HEADER);
+      out.write('\n');
+      for (List<String> item : menu) {
+         out.write(MenuTransfer.csvField(item.get(0), false));
+         out.write(',');
+         out.write(MenuTransfer.csvField(item.get(1), true));
+         out.write(',');
+         out.write(MenuTransfer.csvField(item.get(2), false));
+         out.write(',');
+         out.write(MenuTransfer.csvField(item.get(3), false));
+         out.write(',');
+         out.write(MenuTransfer.csvField(item.get(4), true));
+         out.write('\n');
+      }
+      return menu.size();
+   }
+
+   private long writeStores(Writer out) throws IOException {
+      SplittableRandom random = new SplittableRandom(seed + 1);
+      out.write("storeID,address,city,state,isOpen,reviewScore\n");
+      for (int store = 1; store <= stores; store++) {
+         String[] city = CITIES[random.nextInt(CITIES.length)];
+         // reviews lean positive
+         int review = Math.min(5, 1 + random.nextInt(3) + random.nextInt(3));
+         out.write(String.format("%d,%d %s %s,%s,%s,%s,%d\n", store,
+            1 + random.nextInt(99999), STREETS[random.nextInt(STREETS.length)],
+            STREET_SUFFIXES[random.nextInt(STREET_SUFFIXES.length)], city[0], city[1],
+            random.nextDouble() < 0.92 ? "yes" : "no", review));
+      }
+      return stores;
+   }
+
+   /*
+   * Writes the orders of one chunk and their lines to part files.
+   * @return the number of order lines written
+   */
+   private long writeOrders(int chunk) throws IOException {
+      SplittableRandom random = new SplittableRandom(seed + 16 + chunk);
+      double[] hours = cumulative(HOUR_WEIGHTS);
+      double maxWeekday = 0;
+      for (double weight : WEEKDAY_WEIGHTS) {
+         maxWeekday = Math.max(maxWeekday, weight);
+      }
+      long first = (long) chunk * CHUNK_ORDERS;
+      long last = Math.min(orders, first + CHUNK_ORDERS);
+      int[] picked = new int[MAX_ORDER_LINES];
+      long lines = 0;
+      StringBuilder order = new StringBuilder(96);
+      StringBuilder orderLines = new StringBuilder(256);
+
+      try (Writer orderOut = open(part("foodorder.csv", chunk));
+           Writer lineOut = open(part("itemsinorder.csv", chunk))) {
+         for (long index = first; index < last; index++) {
+            long orderID = FIRST_ORDER_ID + index;
+
+            int day;
+            do {
+               day = random.nextInt(dayNames.length);
+            } while (random.nextDouble() * maxWeekday
+                  >= WEEKDAY_WEIGHTS[(int) Math.floorMod(from.toEpochDay() + day + 3, 7L)]);
+            int hour = pick(hours, random);
+            boolean recent = day == dayNames.length - 1;
+
+            int count = 1;
+            while (count < Math.min(MAX_ORDER_LINES, menu.size()) && random.nextDouble() < 0.45) {
+               count++;
+            }
+            long totalCents = 0;
+            orderLines.setLength(0);
+            for (int line = 0; line < count; line++) {
+               int item;
+               boolean duplicate;
+               do {
+                  item = itemPopularity.next(random);
+                  duplicate = false;
+                  for (int previous = 0; previous < line; previous++) {
+                     duplicate |= picked[previous] == item;
+                  }
+               } while (duplicate);
+               picked[line] = item;
+               double roll = random.nextDouble();
+               int quantity = roll < 0.7 ? 1 : roll < 0.9 ? 2 : 3;
+               totalCents += Pricing.lineTotal(priceCents[item], quantity);
+               orderLines.append(orderID).append(',')
+                  .append(MenuTransfer.csvField(menu.get(item).get(0), false)).append(',')
+                  .append(quantity).append('\n');
+            }
+            lines += count;
+
+            order.setLength(0);
+            order.append(orderID).append(',')
+               .append("user").append(customerLoyalty.next(random)).append(',')
+               .append(storeTraffic.next(random) + 1).append(',')
+               .append(Pricing.formatCents(totalCents)).append(",\"")
+               .append(dayNames[day]).append(' ');
+            twoDigits(order, hour).append(':');
+            twoDigits(order, random.nextInt(60)).append(':');
+            twoDigits(order, random.nextInt(60)).append("\",")
+               .append(random.nextDouble() < (recent ? 0.6 : 0.01) ? "incomplete" : "complete")
+               .append('\n');
+            orderOut.append(order);
+            lineOut.append(orderLines);
+         }
+      }
+      return lines;
+   }
+
+   private static double[] cumulative(double[] weights) {
+      double[] cumulative = new double[weights.length];
+      double total = 0;
+      for (int i = 0; i < weights.length; i++) {
+         total += weights[i];
+         cumulative[i] = total;
+      }
+      return cumulative;
+   }
+
+   private static int pick(double[] cumulative, SplittableRandom random) {
+      double u = random.nextDouble() * cumulative[cumulative.length - 1];
+      int i = 0;
+      while (cumulative[i] < u) {
+         i++;
+      }
+      return i;
+   }
+
+   private static StringBuilder twoDigits(StringBuilder out, int value) {
+      return out.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+   }
+
+   private File part(String name, int chunk) {
+      return new File(outDir, name + ".part" + chunk);
+   }
+
+   /*
+   * Concatenates the part files of a table behind its header and deletes
+   * them.
+   */
+   private void join(String name, String header, int chunks) throws IOException {
+      File file = new File(outDir, name);
+      try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         out.write(ByteBuffer.wrap((header + "\n").getBytes(StandardCharsets.UTF_8)));
+         for (int chunk = 0; chunk < chunks; chunk++) {
+            File part = part(name, chunk);
+            try (FileChannel in = FileChannel.open(part.toPath(), StandardOpenOption.READ)) {
+               long position = 0;
+               long size = in.size();
+               while (position < size) {
+                  position += in.transferTo(position, size - position, out);
+               }
+            }
+            if (!part.delete()) {
+               throw new IOException("Cannot delete " + part);
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,295 @@
+/*
+ * Operation deadlines for the PizzaStore user interface
+ * =====================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * This class gives every user operation a time budget. The deadline is
+ * kept per thread; every statement the operation issues gets the remaining
+ * budget as its query timeout, and a watchdog cancels the statement when
+ * the deadline passes, since the JDBC driver may not enforce timeouts
+ * itself. The cancelled statement fails with a DeadlineExceededException,
+ * which the operations' usual error handling turns into a rollback. A
+ * statement is not even sent once the budget is spent.
+ *
+ * Time spent waiting for the user to type is not charged to the budget.
+ *
+ * Budgets default to 5 seconds for reads and 15 seconds for writes, with
+ * longer ones for the bulk manager operations, and can be changed with
+ * PIZZASTORE_DEADLINES, e.g. "placeOrder=20000,viewMenu=2000"; 0 disables
+ * the deadline of an operation.
+ *
+ */
+public class Deadline {
+
+   public static final long DEFAULT_READ_MILLIS = 5000;
+   public static final long DEFAULT_WRITE_MILLIS = 15000;
+
+   private static final Map<String, Long> BUDGETS = budgets(System.getenv("PIZZASTORE_DEADLINES"));
+
+   private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+
+   private static final ConcurrentHashMap<String, LongAdder> TIMEOUTS = new ConcurrentHashMap<String, LongAdder>();
+
+   private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "deadline-watchdog");
+      thread.setDaemon(true);
+      return thread;
+   });
+
+   private final String operation;
+   private final long budgetMillis;
+   private long deadlineNanos;
+   private long pausedAt = -1;
+   private boolean counted;
+
+   /**
+    * A statement failed because its operation ran out of time.
+    */
+   public static class DeadlineExceededException extends SQLTimeoutException {
+      private static final long serialVersionUID = 1L;
+
+      public DeadlineExceededException(String message, Throwable cause) {
+         super(message, "57014", cause);
+      }
+   }
+
+   /**
+    * Cancels one statement when the deadline passes.
+    */
+   public static final class Watch implements AutoCloseable {
+      private static final Watch NONE = new Watch(null, null, 0);
+
+      private final Deadline deadline;
+      private final ScheduledFuture<?> task;
+      private volatile boolean fired;
+
+      private Watch(Deadline deadline, Statement stmt, long remainingMillis) {
+         this.deadline = deadline;
+         this.task = deadline == null ? null : WATCHDOG.schedule(() -> {
+            fired = true;
+            try {
+               stmt.cancel();
+            }catch (SQLException e) {
+               // the statement finished or the driver cannot cancel.
+            }
+         }, remainingMillis, TimeUnit.MILLISECONDS);
+      }
+
+      /**
+       * Turns the failure of a watched statement into a
+       * DeadlineExceededException if the deadline caused it.
+       */
+      public SQLException failed(SQLException e) {
+         if (deadline == null || e instanceof DeadlineExceededException
+               || (!fired && deadline.remainingMillis() > 0)) {
+            return e;
+         }
+         return deadline.exceeded(e);
+      }
+
+      @Override
+      public void close() {
+         if (task != null) {
+            task.cancel(false);
+         }
+      }
+   }
+
+   /**
+    * A reader whose blocking reads do not count against the deadline of
+    * the reading thread, for the console input of the user interface.
+    */
+   public static class InputReader extends BufferedReader {
+      public InputReader(Reader in) {
+         super(in);
+      }
+
+      @Override
+      public String readLine() throws IOException {
+         Deadline deadline = CURRENT.get();
+         if (deadline != null) {
+            deadline.pause();
+         }
+         try {
+            return super.readLine();
+         }finally {
+            if (deadline != null) {
+               deadline.resume();
+            }
+         }
+      }
+   }
+
+   private Deadline(String operation, long budgetMillis) {
+      this.operation = operation;
+      this.budgetMillis = budgetMillis;
+      this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+   }
+
+   /**
+    * Starts the deadline of an operation on this thread with its configured
+    * budget.
+    *
+    * @return the deadline, or null if the operation has none
+    */
+   public static Deadline begin(String operation, boolean mutating) {
+      return begin(operation, BUDGETS.getOrDefault(operation, mutating ? DEFAULT_WRITE_MILLIS : DEFAULT_READ_MILLIS));
+   }
+
+   /**
+    * Starts the deadline of an operation on this thread.
+    *
+    * @param budgetMillis the budget, or 0 for no deadline
+    * @return the deadline, or null if the operation has none
+    */
+   public static Deadline begin(String operation, long budgetMillis) {
+      Deadline deadline = budgetMillis > 0 ? new Deadline(operation, budgetMillis) : null;
+      CURRENT.set(deadline);
+      return deadline;
+   }
+
+   /**
+    * Ends the deadline started on this thread.
+    */
+   public static void end(Deadline deadline) {
+      CURRENT.remove();
+   }
+
+   /**
+    * Returns the deadline of this thread's operation, to hand to threads
+    * working on its behalf.
+    *
+    * @return the deadline, or null if the operation has none
+    */
+   public static Deadline current() {
+      return CURRENT.get();
+   }
+
+   /**
+    * Makes another thread's deadline the deadline of this thread until
+    * end is called.
+    *
+    * @param deadline the deadline from current, or null
+    */
+   public static void attach(Deadline deadline) {
+      CURRENT.set(deadline);
+   }
+
+   /**
+    * Sets the remaining budget of this thread's operation as the query
+    * timeout of a statement about to run and starts watching it.
+    *
+    * @return the watch, to be closed when the statement finished
+    * @throws Deadline.DeadlineExceededException when the budget is already spent
+    */
+   public static Watch watch(Statement stmt) throws SQLException {
+      Deadline deadline = CURRENT.get();
+      if (deadline == null) {
+         return Watch.NONE;
+      }
+      long remaining = deadline.remainingMillis();
+      if (remaining <= 0) {
+         throw deadline.exceeded(null);
+      }
+      try {
+         stmt.setQueryTimeout((int) Math.max(1, (remaining + 999) / 1000));
+      }catch (SQLException e) {
+         // the driver has no query timeouts; the watchdog still cancels.
+      }
+      return new Watch(deadline, stmt, remaining);
+   }
+
+   /**
+    * Returns the number of deadline timeouts per operation, sorted by
+    * operation.
+    */
+   public static Map<String, Long> timeouts() {
+      Map<String, Long> counts = new TreeMap<String, Long>();
+      for (Map.Entry<String, LongAdder> count : TIMEOUTS.entrySet()) {
+         counts.put(count.getKey(), count.getValue().sum());
+      }
+      return counts;
+   }
+
+   /**
+    * Returns the timeouts per operation as JSON, e.g. {"placeOrder":2}.
+    */
+   public static String snapshot() {
+      StringBuilder json = new StringBuilder("{");
+      for (Map.Entry<String, Long> count : timeouts().entrySet()) {
+         json.append(json.length() == 1 ? "" : ",").append('"').append(count.getKey()).append("\":").append(count.getValue());
+      }
+      return json.append('}').toString();
+   }
+
+   /**
+    * Returns the time left in the budget; zero or less once it is spent.
+    */
+   public synchronized long remainingMillis() {
+      long now = pausedAt >= 0 ? pausedAt : System.nanoTime();
+      return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - now);
+   }
+
+   private synchronized void pause() {
+      pausedAt = System.nanoTime();
+   }
+
+   private synchronized void resume() {
+      deadlineNanos += System.nanoTime() - pausedAt;
+      pausedAt = -1;
+   }
+
+   /*
+   * Counts the timeout, once per operation, and builds its error.
+   */
+   private DeadlineExceededException exceeded(Throwable cause) {
+      long count;
+      synchronized (this) {
+         if (!counted) {
+            counted = true;
+            TIMEOUTS.computeIfAbsent(operation, name -> new LongAdder()).increment();
+         }
+         count = TIMEOUTS.get(operation).sum();
+      }
+      return new DeadlineExceededException(String.format(
+         "%s ran out of its %d ms time budget (%d timeout(s) so far).", operation, budgetMillis, count), cause);
+   }
+
+   private static Map<String, Long> budgets(String configured) {
+      Map<String, Long> budgets = new HashMap<String, Long>();
+      // bulk manager operations
+      budgets.put("updateMenu", 120000L);
+      budgets.put("viewSalesReport", 600000L);
+      if (configured != null) {
+         for (String entry : configured.split(",")) {
+            String[] budget = entry.trim().split("=", 2);
+            if (budget.length == 2) {
+               budgets.put(budget[0].trim(), Long.parseLong(budget[1].trim()));
+            }
+         }
+      }
+      return budgets;
+   }
+}
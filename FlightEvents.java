@@ -0,0 +1,219 @@
+/*
+ * Flight recorder events for the PizzaStore user interface
+ * ========================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.regex.Pattern;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+
+/**
+ * This class defines the Java Flight Recorder events of PizzaStore, so a
+ * recording shows which user operation and which query template caused
+ * the JDBC socket reads it contains:
+ *
+ *    pizzastore.SqlStatement   one per statement, with its SQL template
+ *                              (literals replaced by ?), rows, duration and
+ *                              the user operation it ran for
+ *    pizzastore.UserOperation  one per menu or async operation, with the
+ *                              user's role and the outcome
+ *
+ * Thresholds and stack traces are JFR settings; pizzastore.jfc holds the
+ * defaults and compile.sh starts a continuous recording with it when
+ * PIZZASTORE_JFR is set. Without a recording the events are disabled and
+ * cost a begin() and an isEnabled() check; templates are only built for
+ * statements that are actually recorded.
+ *
+ */
+public class FlightEvents {
+
+   private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+   private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?");
+   private static final Pattern REPEATED_TUPLES = Pattern.compile("(\\([?, ]*\\))(?:\\s*,\\s*\\([?, ]*\\))+");
+   private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+   // the user operation running on this thread, for the statements it issues
+   private static final ThreadLocal<UserOperation> CURRENT = new ThreadLocal<UserOperation>();
+
+   @Name("pizzastore.SqlStatement")
+   @Label("SQL Statement")
+   @Category({ "PizzaStore", "SQL" })
+   @Description("A query or update sent to the database")
+   @Threshold("10 ms")
+   public static class SqlStatement extends Event {
+      @Label("Kind")
+      @Description("query or update")
+      String kind;
+
+      @Label("Template")
+      @Description("The statement with its literals replaced by ?")
+      String template;
+
+      @Label("Rows")
+      @Description("Rows returned or changed, -1 if unknown")
+      long rows;
+
+      @Label("Operation")
+      @Description("The user operation the statement ran for")
+      String operation;
+
+      @Label("Failed")
+      boolean failed;
+
+      // the statement itself is never recorded, it may contain passwords
+      transient String sql;
+   }
+
+   @Name("pizzastore.UserOperation")
+   @Label("User Operation")
+   @Category({ "PizzaStore", "Operations" })
+   @Description("A menu choice or async API call")
+   @Threshold("0 ms")
+   @StackTrace(false)
+   public static class UserOperation extends Event {
+      @Label("Operation")
+      String operation;
+
+      @Label("Role")
+      @Description("The role of the logged in user, if any")
+      String role;
+
+      @Label("Outcome")
+      @Description("ok, denied, timeout, or the error that ended the operation")
+      String outcome;
+   }
+
+   /**
+    * Starts timing a statement.
+    *
+    * @param kind "query" or "update"
+    */
+   public static SqlStatement beginSql(String kind, String sql) {
+      SqlStatement event = new SqlStatement();
+      if (event.isEnabled()) {
+         event.kind = kind;
+         event.sql = sql;
+         event.begin();
+      }
+      return event;
+   }
+
+   /**
+    * Records a finished statement if it ran longer than the threshold.
+    *
+    * @param rows the rows returned or changed, or -1 if unknown
+    */
+   public static void endSql(SqlStatement event, long rows) {
+      if (!event.isEnabled()) {
+         return;
+      }
+      event.end();
+      if (event.shouldCommit()) {
+         event.rows = rows;
+         event.template = template(event.sql);
+         UserOperation operation = CURRENT.get();
+         event.operation = operation == null ? null : operation.operation;
+         event.commit();
+      }
+   }
+
+   /**
+    * Records a statement that failed.
+    */
+   public static void failSql(SqlStatement event) {
+      event.failed = true;
+      endSql(event, -1);
+   }
+
+   /**
+    * Starts timing a user operation on this thread.
+    *
+    * @param role the role of the logged in user, or null
+    */
+   public static UserOperation beginOperation(String operation, String role) {
+      UserOperation event = new UserOperation();
+      event.operation = operation;
+      event.role = role;
+      event.outcome = "ok";
+      CURRENT.set(event);
+      event.begin();
+      return event;
+   }
+
+   /**
+    * Records a finished user operation.
+    */
+   public static void endOperation(UserOperation event) {
+      CURRENT.remove();
+      event.end();
+      if (event.shouldCommit()) {
+         event.commit();
+      }
+   }
+
+   /**
+    * Returns the operation running on this thread, to hand to threads
+    * working on its behalf.
+    *
+    * @return the operation, or null
+    */
+   public static UserOperation currentOperation() {
+      return CURRENT.get();
+   }
+
+   /**
+    * Records the statements of this thread for another thread's operation
+    * until it is detached with null. The operation is still ended by the
+    * thread that began it.
+    */
+   public static void attach(UserOperation event) {
+      if (event == null) {
+         CURRENT.remove();
+      }
+      else {
+         CURRENT.set(event);
+      }
+   }
+
+   /**
+    * Marks the operation running on this thread as failed.
+    */
+   public static void operationFailed(Throwable e) {
+      UserOperation event = CURRENT.get();
+      if (event != null) {
+         event.outcome = (e instanceof Deadline.DeadlineExceededException ? "timeout: " : "error: ")
+            + e.getClass().getSimpleName() + ": " + e.getMessage();
+      }
+   }
+
+   /**
+    * Marks the operation running on this thread as refused for the role.
+    */
+   public static void operationDenied() {
+      UserOperation event = CURRENT.get();
+      if (event != null) {
+         event.outcome = "denied";
+      }
+   }
+
+   /*
+   * Replaces the literals of a statement with ?, and collapses VALUES and IN
+   * lists, so statements that differ only in their values share a template.
+   */
+   static String template(String sql) {
+      String template = STRING_LITERAL.matcher(sql).replaceAll("?");
+      template = NUMBER_LITERAL.matcher(template).replaceAll("?");
+      template = REPEATED_TUPLES.matcher(template).replaceAll("$1, ...");
+      return WHITESPACE.matcher(template).replaceAll(" ").trim();
+   }
+}
@@ -0,0 +1,255 @@
+/*
+ * Ingredient index for the PizzaStore user interface
+ * ==================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * This class is an in-memory inverted index over the menu. Every item gets a
+ * small integer slot, and each normalized ingredient and item type maps to a
+ * BitSet of the slots that contain it, so ingredient searches such as
+ * "cheese, pepperoni, not gluten" are answered with bitset intersections.
+ * The index is loaded once from Items and kept up to date by updateMenu.
+ *
+ */
+public class IngredientIndex {
+
+   // menu rows by slot; a null entry is a free slot
+   private final List<List<String>> rows = new ArrayList<List<String>>();
+   private long[] prices = new long[16];
+   private final Map<String, Integer> slots = new HashMap<String, Integer>();
+   private final BitSet live = new BitSet();
+
+   private final Map<String, BitSet> byIngredient = new HashMap<String, BitSet>();
+   private final Map<String, BitSet> byType = new HashMap<String, BitSet>();
+
+   /**
+    * Replaces the whole index with the current contents of Items.
+    *
+    * @throws java.sql.SQLException when the menu query failed
+    */
+   public void load(PizzaStore esql) throws SQLException {
+      load(esql.executeQueryAndReturnResult(
+         "SELECT itemName, ingredients, typeOfItem, price, description FROM Items;"));
+   }
+
+   /**
+    * Replaces the whole index with the given menu rows, in the Items column
+    * layout (itemName, ingredients, typeOfItem, price, description).
+    */
+   public void load(List<List<String>> items) {
+      synchronized (this) {
+         rows.clear();
+         slots.clear();
+         live.clear();
+         byIngredient.clear();
+         byType.clear();
+         for (List<String> item : items) {
+            put(item.get(0), item.get(1), item.get(2), item.get(3), item.get(4));
+         }
+      }
+   }
+
+   /**
+    * Adds an item or replaces the indexed version of an existing item.
+    */
+   public synchronized void put(String itemName, String ingredients, String typeOfItem,
+                                String price, String description) {
+      Integer slot = slots.get(itemName);
+      if (slot != null) {
+         unindex(slot);
+      }
+      else {
+         slot = live.nextClearBit(0);
+         slots.put(itemName, slot);
+         while (rows.size() <= slot) {
+            rows.add(null);
+         }
+         if (prices.length <= slot) {
+            prices = Arrays.copyOf(prices, prices.length * 2);
+         }
+      }
+
+      List<String> row = new ArrayList<String>(5);
+      row.add(itemName);
+      row.add(ingredients);
+      row.add(typeOfItem);
+      row.add(price);
+      row.add(description);
+      rows.set(slot, row);
+      prices[slot] = Pricing.parseCents(price);
+      live.set(slot);
+
+      for (String ingredient : ingredients.split(",")) {
+         String key = normalize(ingredient);
+         if (!key.isEmpty()) {
+            bits(byIngredient, key).set(slot);
+         }
+      }
+      bits(byType, normalize(typeOfItem)).set(slot);
+   }
+
+   /**
+    * Removes an item from the index. Unknown items are ignored.
+    */
+   public synchronized void remove(String itemName) {
+      Integer slot = slots.remove(itemName);
+      if (slot != null) {
+         unindex(slot);
+         rows.set(slot, null);
+         live.clear(slot);
+      }
+   }
+
+   /**
+    * Re-indexes an item after one of its columns changed in updateMenu.
+    * The column index follows the Items layout
+    * (itemName, ingredients, typeOfItem, price, description).
+    */
+   public synchronized void update(String itemName, int column, String value) {
+      Integer slot = slots.get(itemName);
+      if (slot == null) {
+         return;
+      }
+      List<String> row = new ArrayList<String>(rows.get(slot));
+      row.set(column, value);
+      if (column == 0) {
+         remove(itemName);
+      }
+      put(row.get(0), row.get(1), row.get(2), row.get(3), row.get(4));
+   }
+
+   /**
+    * Returns the normalized ingredients of an item, without duplicates, or
+    * an empty list for an unknown item.
+    */
+   public synchronized List<String> ingredientsOf(String itemName) {
+      Integer slot = slots.get(itemName);
+      List<String> ingredients = new ArrayList<String>();
+      if (slot == null) {
+         return ingredients;
+      }
+      for (String ingredient : rows.get(slot).get(1).split(",")) {
+         String key = normalize(ingredient);
+         if (!key.isEmpty() && !ingredients.contains(key)) {
+            ingredients.add(key);
+         }
+      }
+      return ingredients;
+   }
+
+   /**
+    * Returns the current price of an item in cents, or -1 for an item that
+    * is not on the menu.
+    */
+   public synchronized long priceOf(String itemName) {
+      Integer slot = slots.get(itemName);
+      return slot == null ? -1 : prices[slot];
+   }
+
+   /**
+    * Finds the menu items that match an ingredient expression and the
+    * optional type and price filters.
+    *
+    * @param expression comma separated ingredients; an ingredient prefixed
+    *        with "not " or "-" must be absent, every other one present
+    * @param types the allowed item types, or null for any type
+    * @param maxPriceCents the maximum price in cents, or a negative value
+    *        for any price
+    * @return the matching rows in the Items column layout
+    */
+   public synchronized List<List<String>> search(String expression, String[] types, long maxPriceCents) {
+      BitSet result = (BitSet) live.clone();
+
+      for (String term : expression.split(",")) {
+         String key = normalize(term);
+         boolean negated = false;
+         if (key.startsWith("not ")) {
+            key = key.substring(4).trim();
+            negated = true;
+         }
+         else if (key.startsWith("-")) {
+            key = key.substring(1).trim();
+            negated = true;
+         }
+         if (key.isEmpty()) {
+            continue;
+         }
+
+         BitSet matches = byIngredient.get(key);
+         if (negated) {
+            if (matches != null) {
+               result.andNot(matches);
+            }
+         }
+         else if (matches == null) {
+            return new ArrayList<List<String>>();
+         }
+         else {
+            result.and(matches);
+         }
+      }
+
+      if (types != null) {
+         BitSet typeMatches = new BitSet();
+         for (String type : types) {
+            BitSet matches = byType.get(normalize(type));
+            if (matches != null) {
+               typeMatches.or(matches);
+            }
+         }
+         result.and(typeMatches);
+      }
+
+      List<List<String>> found = new ArrayList<List<String>>(result.cardinality());
+      for (int slot = result.nextSetBit(0); slot >= 0; slot = result.nextSetBit(slot + 1)) {
+         if (maxPriceCents < 0 || prices[slot] <= maxPriceCents) {
+            found.add(rows.get(slot));
+         }
+      }
+      return found;
+   }
+
+   private void unindex(int slot) {
+      List<String> row = rows.get(slot);
+      for (String ingredient : row.get(1).split(",")) {
+         BitSet bits = byIngredient.get(normalize(ingredient));
+         if (bits != null) {
+            bits.clear(slot);
+         }
+      }
+      BitSet typeBits = byType.get(normalize(row.get(2)));
+      if (typeBits != null) {
+         typeBits.clear(slot);
+      }
+   }
+
+   private static BitSet bits(Map<String, BitSet> index, String key) {
+      BitSet bits = index.get(key);
+      if (bits == null) {
+         bits = new BitSet();
+         index.put(key, bits);
+      }
+      return bits;
+   }
+
+   /*
+   * Normalizes an ingredient or type name: case-insensitive, surrounding
+   * quotes and blanks removed, inner whitespace collapsed.
+   */
+   static String normalize(String value) {
+      return value.replace("\"", "").trim().replaceAll("\\s+", " ").toLowerCase();
+   }
+}
@@ -0,0 +1,367 @@
+/*
+ * Menu import and export for the PizzaStore user interface
+ * ========================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * This class moves the whole menu in and out of the Items table as CSV in
+ * the items.csv layout (itemName, "ingredients", typeOfItem, price,
+ * "description"). An import is diffed against the current catalog first;
+ * the resulting plan can be shown as a dry run and is applied as a single
+ * transaction of batched INSERT ... ON CONFLICT and DELETE statements, so a
+ * seasonal menu swap either happens completely or not at all.
+ *
+ */
+public class MenuTransfer {
+
+   public static final String HEADER = "itemName,\"ingredients\",typeOfItem,price,\"description\"";
+
+   // rows per INSERT statement
+   private static final int BATCH_SIZE = 500;
+
+   /**
+    * The changes an import would make. Rows are in the Items column layout.
+    */
+   public static final class Plan {
+      public final List<List<String>> inserts = new ArrayList<List<String>>();
+      public final List<List<String>> updates = new ArrayList<List<String>>();
+      public final List<String> deletes = new ArrayList<String>();
+
+      // items missing from the file that past orders still reference; they stay on the menu
+      public final List<String> kept = new ArrayList<String>();
+
+      public boolean isEmpty() {
+         return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
+      }
+
+      /**
+       * Returns a human readable summary of the plan.
+       */
+      public String report() {
+         StringBuilder report = new StringBuilder();
+         report.append(String.format("%d item(s) added, %d updated, %d removed.%n",
+            inserts.size(), updates.size(), deletes.size()));
+         for (List<String> row : inserts) {
+            report.append("  + ").append(row.get(0)).append(" ($").append(row.get(3)).append(")\n");
+         }
+         for (List<String> row : updates) {
+            report.append("  ~ ").append(row.get(0)).append(" ($").append(row.get(3)).append(")\n");
+         }
+         for (String itemName : deletes) {
+            report.append("  - ").append(itemName).append('\n');
+         }
+         if (!kept.isEmpty()) {
+            report.append(String.format(
+               "%d item(s) are not in the file but are kept because past orders reference them:%n", kept.size()));
+            for (String itemName : kept) {
+               report.append("  = ").append(itemName).append('\n');
+            }
+         }
+         return report.toString();
+      }
+   }
+
+   /**
+    * Writes the Items table to a CSV file in the items.csv layout.
+    *
+    * @return the number of items written
+    * @throws java.sql.SQLException when the menu query failed
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public static int exportMenu(PizzaStore esql, File file) throws SQLException, IOException {
+      List<List<String>> items = esql.executeQueryAndReturnResult(
+         "SELECT itemName, ingredients, typeOfItem, price, description FROM Items ORDER BY typeOfItem, itemName;");
+
+      try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(file), StandardCharsets.UTF_8))) {
+         out.write(HEADER);
+         out.write('\n');
+         for (List<String> item : items) {
+            out.write(csvField(item.get(0), false));
+            out.write(',');
+            out.write(csvField(item.get(1), true));
+            out.write(',');
+            out.write(csvField(item.get(2), false));
+            out.write(',');
+            out.write(csvField(item.get(3), false));
+            out.write(',');
+            out.write(csvField(item.get(4), true));
+            out.write('\n');
+         }
+      }
+      return items.size();
+   }
+
+   /**
+    * Reads a menu CSV and diffs it against the current Items table.
+    *
+    * @throws java.lang.IllegalArgumentException when a row is malformed
+    * @throws java.sql.SQLException when the menu query failed
+    * @throws java.io.IOException when the file cannot be read
+    */
+   public static Plan planImport(PizzaStore esql, File file) throws SQLException, IOException {
+      Map<String, List<String>> imported = new LinkedHashMap<String, List<String>>();
+      List<List<String>> records;
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file), StandardCharsets.UTF_8))) {
+         records = readCsv(reader);
+      }
+
+      for (int i = 1; i < records.size(); i++) { // record 0 is the header
+         List<String> row = records.get(i);
+         if (row.size() == 1 && row.get(0).isEmpty()) {
+            continue;
+         }
+         if (row.size() != 5) {
+            throw new IllegalArgumentException("Line " + (i + 1) + ": expected 5 columns but found " + row.size() + '.');
+         }
+         if (row.get(0).isEmpty() || row.get(0).length() > 50 || row.get(2).isEmpty()) {
+            throw new IllegalArgumentException("Line " + (i + 1) + ": invalid item name or type.");
+         }
+         try {
+            long cents = Pricing.parseCents(row.get(3));
+            if (cents < 0) {
+               throw new NumberFormatException(row.get(3));
+            }
+            row.set(3, Pricing.formatCents(cents));
+         }catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Line " + (i + 1) + ": invalid price " + row.get(3) + '.');
+         }
+         if (imported.put(row.get(0), row) != null) {
+            throw new IllegalArgumentException("Line " + (i + 1) + ": duplicate item " + row.get(0) + '.');
+         }
+      }
+
+      Map<String, List<String>> current = new HashMap<String, List<String>>();
+      for (List<String> row : esql.executeQueryAndReturnResult(
+            "SELECT itemName, ingredients, typeOfItem, price, description FROM Items;")) {
+         List<String> normalized = new ArrayList<String>(5);
+         for (String value : row) {
+            normalized.add(value == null ? "" : value.trim());
+         }
+         current.put(normalized.get(0), normalized);
+      }
+
+      Plan plan = new Plan();
+      for (List<String> row : imported.values()) {
+         List<String> existing = current.get(row.get(0));
+         if (existing == null) {
+            plan.inserts.add(row);
+         }
+         else if (!existing.equals(row)) {
+            plan.updates.add(row);
+         }
+      }
+      List<String> removed = new ArrayList<String>();
+      for (String itemName : current.keySet()) {
+         if (!imported.containsKey(itemName)) {
+            removed.add(itemName);
+         }
+      }
+
+      // deleting an item would cascade to its order lines, so items that any
+      // shard or the archive still references are kept instead
+      if (!removed.isEmpty()) {
+         Set<String> referenced = new HashSet<String>();
+         for (List<String> row : esql.orderShards().queryAll(
+               "SELECT DISTINCT itemName FROM ItemsInOrder WHERE itemName IN (" + sqlList(removed) + ");")) {
+            referenced.add(row.get(0));
+         }
+         for (List<String> row : esql.executeQueryAndReturnResult(
+               "SELECT DISTINCT itemName FROM ArchivedOrderItem WHERE itemName IN (" + sqlList(removed) + ");")) {
+            referenced.add(row.get(0));
+         }
+         for (String itemName : removed) {
+            (referenced.contains(itemName) ? plan.kept : plan.deletes).add(itemName);
+         }
+      }
+      return plan;
+   }
+
+   /**
+    * Applies an import plan to Items in one transaction and reloads the
+    * ingredient index.
+    *
+    * @throws java.sql.SQLException when a statement failed; nothing is changed then
+    */
+   public static void applyImport(PizzaStore esql, Plan plan) throws SQLException {
+      if (plan.isEmpty()) {
+         return;
+      }
+      List<List<String>> upserts = new ArrayList<List<String>>(plan.inserts);
+      upserts.addAll(plan.updates);
+
+      esql.beginTransaction();
+      try {
+         for (int start = 0; start < upserts.size(); start += BATCH_SIZE) {
+            StringBuilder insert = new StringBuilder(
+               "INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES ");
+            for (List<String> row : upserts.subList(start, Math.min(start + BATCH_SIZE, upserts.size()))) {
+               if (insert.charAt(insert.length() - 1) == ')') {
+                  insert.append(", ");
+               }
+               insert.append(String.format("(%s, %s, %s, %s, %s)",
+                  sqlString(row.get(0)), sqlString(row.get(1)), sqlString(row.get(2)), row.get(3),
+                  row.get(4).isEmpty() ? "NULL" : sqlString(row.get(4))));
+            }
+            insert.append(" ON CONFLICT (itemName) DO UPDATE SET ingredients = EXCLUDED.ingredients, " +
+               "typeOfItem = EXCLUDED.typeOfItem, price = EXCLUDED.price, description = EXCLUDED.description;");
+            esql.executeUpdate(insert.toString());
+         }
+         if (!plan.deletes.isEmpty()) {
+            // an order placed since the plan was made still keeps its item
+            esql.executeUpdate("DELETE FROM Items WHERE itemName IN (" + sqlList(plan.deletes) + ") " +
+               "AND NOT EXISTS (SELECT 1 FROM ItemsInOrder I WHERE I.itemName = Items.itemName);");
+         }
+         esql.commitTransaction();
+      }catch (SQLException e) {
+         esql.rollbackTransaction();
+         throw e;
+      }
+      esql.ingredientIndex().load(esql);
+   }
+
+   /**
+    * Interactive export and import, for updateMenu.
+    */
+   public static void transferMenu(PizzaStore esql, boolean importing) {
+      try {
+         System.out.print("Enter the CSV file path: ");
+         File file = new File(PizzaStore.in.readLine().trim());
+
+         if (!importing) {
+            int count = exportMenu(esql, file);
+            System.out.println("Exported " + count + " items to " + file + '.');
+            return;
+         }
+
+         Plan plan = planImport(esql, file);
+         System.out.println("Dry run:");
+         System.out.print(plan.report());
+         if (plan.isEmpty()) {
+            System.out.println("The menu already matches " + file + '.');
+            return;
+         }
+
+         System.out.print("Apply these changes? (yes/no): ");
+         if (!PizzaStore.in.readLine().trim().equalsIgnoreCase("yes")) {
+            System.out.println("Import cancelled. The menu has not been changed.");
+            return;
+         }
+         applyImport(esql, plan);
+         System.out.println("Menu imported successfully!");
+      }catch (Exception e) {
+         FlightEvents.operationFailed(e);
+         System.err.println("Error while transferring menu: " + e.getMessage());
+      }
+   }
+
+   /*
+   * Splits CSV text into records the way Postgres COPY ... CSV reads it:
+   * quotes may open anywhere in a field, "" inside quotes is a quote and
+   * quoted fields may span lines. Fields are trimmed, since items.csv puts
+   * a space after every comma.
+   */
+   static List<List<String>> readCsv(BufferedReader reader) throws IOException {
+      List<List<String>> records = new ArrayList<List<String>>();
+      List<String> record = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      boolean any = false;
+
+      int c;
+      while ((c = reader.read()) != -1) {
+         any = true;
+         if (quoted) {
+            if (c == '"') {
+               reader.mark(1);
+               int next = reader.read();
+               if (next == '"') {
+                  field.append('"');
+               }
+               else {
+                  quoted = false;
+                  if (next == -1) {
+                     break;
+                  }
+                  reader.reset();
+               }
+            }
+            else {
+               field.append((char) c);
+            }
+         }
+         else if (c == '"') {
+            quoted = true;
+         }
+         else if (c == ',') {
+            record.add(field.toString().trim());
+            field.setLength(0);
+         }
+         else if (c == '\n') {
+            record.add(field.toString().trim());
+            field.setLength(0);
+            records.add(record);
+            record = new ArrayList<String>();
+            any = false;
+         }
+         else if (c != '\r') {
+            field.append((char) c);
+         }
+      }
+      if (any) {
+         record.add(field.toString().trim());
+         records.add(record);
+      }
+      return records;
+   }
+
+   /*
+   * Formats one CSV field, quoting it when asked to or when it has to be.
+   */
+   static String csvField(String value, boolean quote) {
+      if (value == null) {
+         return "";
+      }
+      value = value.trim();
+      if (quote || value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0) {
+         return '"' + value.replace("\"", "\"\"") + '"';
+      }
+      return value;
+   }
+
+   private static String sqlString(String value) {
+      return "'" + value.replace("'", "''") + "'";
+   }
+
+   private static String sqlList(List<String> values) {
+      List<String> quoted = new ArrayList<String>(values.size());
+      for (String value : values) {
+         quoted.add(sqlString(value));
+      }
+      return String.join(", ", quoted);
+   }
+}
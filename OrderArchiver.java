@@ -0,0 +1,292 @@
+/*
+ * Order partition maintenance for the PizzaStore user interface
+ * =============================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * This class maintains the monthly FoodOrder and ItemsInOrder partitions of
+ * every order shard in the background. Partitions are created a few months
+ * ahead with the ensure_order_partition function from create_tables.sql.
+ *
+ * Archiving is opt-in with PIZZASTORE_ARCHIVE_MONTHS: partitions older than
+ * that many months are copied into the ArchivedOrder and ArchivedOrderItem
+ * tables of the main database and then dropped, so the live tables, their
+ * indexes and vacuum work stay bounded to the retention window while every
+ * instance can still look archived orders up by orderID. For shard 0 the
+ * copy and the drop are one transaction; for the other shards the copy is
+ * committed first and repeating it is harmless, so a pass that died in
+ * between simply finishes the drops.
+ *
+ * Every instance runs the maintenance, but a pass only proceeds while it
+ * holds a database advisory lock, so one instance at a time does the work.
+ *
+ */
+public class OrderArchiver {
+
+   // months of orders kept in the live tables when archiving is enabled
+   public static final int DEFAULT_RETENTION_MONTHS = 24;
+
+   // months of empty partitions created ahead of time
+   public static final int MONTHS_AHEAD = 3;
+
+   // how often the maintenance runs
+   private static final long MAINTENANCE_INTERVAL_HOURS = 6;
+
+   // pg advisory lock key of the maintenance pass ("PZAR"), also taken by
+   // SalesRollups.rebuild so it never sees orders halfway to the archive
+   static final long MAINTENANCE_LOCK = 0x505A4152L;
+
+   // archived rows copied from an extra shard per batch
+   private static final int COPY_BATCH = 1000;
+
+   private static final DateTimeFormatter SUFFIX = DateTimeFormatter.ofPattern("yyyy_MM");
+
+   private final OrderShards shards;
+   private final int retentionMonths;
+   private ScheduledExecutorService scheduler;
+
+   /**
+    * @param retentionMonths the months of orders kept live, or 0 to never
+    *        archive and only create partitions
+    */
+   public OrderArchiver(OrderShards shards, int retentionMonths) {
+      this.shards = shards;
+      this.retentionMonths = retentionMonths;
+   }
+
+   /**
+    * Creates the archiver from the PIZZASTORE_ARCHIVE_MONTHS environment
+    * variable, the months of orders kept in the live tables. Without it
+    * nothing is archived.
+    */
+   public static OrderArchiver fromEnvironment(OrderShards shards) {
+      String months = System.getenv("PIZZASTORE_ARCHIVE_MONTHS");
+      return new OrderArchiver(shards,
+         months == null || months.trim().isEmpty() ? 0 : Integer.parseInt(months.trim()));
+   }
+
+   /**
+    * Starts the background maintenance: once right away, then periodically.
+    */
+   public void start() {
+      scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread thread = new Thread(r, "order-archiver");
+         thread.setDaemon(true);
+         return thread;
+      });
+      scheduler.scheduleWithFixedDelay(() -> {
+         try {
+            maintain();
+         }catch (Exception e) {
+            System.err.println("Order partition maintenance failed: " + e.getMessage());
+         }
+      }, 0, MAINTENANCE_INTERVAL_HOURS, TimeUnit.HOURS);
+   }
+
+   public void stop() {
+      if (scheduler != null) {
+         scheduler.shutdownNow();
+      }
+   }
+
+   /**
+    * Runs one maintenance pass over every shard on dedicated connections,
+    * so it never joins a transaction of the interactive session. The pass
+    * is skipped while another instance runs one.
+    *
+    * @return the number of partitions archived, or -1 if skipped
+    * @throws java.sql.SQLException when a shard cannot be reached or a
+    *         partition statement failed
+    */
+   public int maintain() throws SQLException {
+      LocalDate thisMonth = LocalDate.now().withDayOfMonth(1);
+
+      List<Connection> connections = shards.connectAll();
+      try {
+         Connection main = connections.get(0);
+         // session level, so closing the connection releases it as well
+         if (!"t".equals(queryValue(main, "SELECT pg_try_advisory_lock(" + MAINTENANCE_LOCK + ");"))) {
+            return -1;
+         }
+
+         int archived = 0;
+         for (int shard = 0; shard < connections.size(); shard++) {
+            Connection connection = connections.get(shard);
+
+            for (int i = 0; i <= MONTHS_AHEAD; i++) {
+               update(connection, "SELECT ensure_order_partition('" + thisMonth.plusMonths(i) + "');");
+            }
+            if (retentionMonths <= 0) {
+               continue;
+            }
+
+            LocalDate cutoff = thisMonth.minusMonths(retentionMonths);
+            for (String partition : partitions(connection)) {
+               LocalDate month = LocalDate.parse(partition.substring("foodorder_".length()) + "_01",
+                  DateTimeFormatter.ofPattern("yyyy_MM_dd"));
+               if (month.isBefore(cutoff)) {
+                  archive(main, connection, shard, month.format(SUFFIX));
+                  archived++;
+               }
+            }
+         }
+         update(main, "SELECT pg_advisory_unlock(" + MAINTENANCE_LOCK + ");");
+         return archived;
+      }finally {
+         for (Connection connection : connections) {
+            try {
+               connection.close();
+            }catch (SQLException e) {
+               // ignored.
+            }
+         }
+      }
+   }
+
+   /*
+   * Copies one month of a shard into the archive tables and drops the
+   * month's partitions.
+   */
+   private static void archive(Connection main, Connection connection, int shard, String suffix) throws SQLException {
+      if (shard == 0) {
+         main.setAutoCommit(false);
+         try {
+            update(main, "INSERT INTO ArchivedOrder SELECT orderID, login, storeID, totalPrice, orderTimestamp, " +
+               "orderStatus FROM FoodOrder_" + suffix + " ON CONFLICT DO NOTHING;");
+            update(main, "INSERT INTO ArchivedOrderItem SELECT orderID, itemName, quantity, orderTimestamp " +
+               "FROM ItemsInOrder_" + suffix + " ON CONFLICT DO NOTHING;");
+            dropPartitions(main, suffix);
+            main.commit();
+         }catch (SQLException e) {
+            main.rollback();
+            throw e;
+         }finally {
+            main.setAutoCommit(true);
+         }
+         return;
+      }
+
+      main.setAutoCommit(false);
+      connection.setAutoCommit(false); // lets the driver stream the month with a cursor
+      try {
+         copy(connection, main, "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder_" +
+            suffix + ";", "INSERT INTO ArchivedOrder VALUES (?, ?, ?, CAST(? AS decimal), CAST(? AS timestamp), ?) " +
+            "ON CONFLICT DO NOTHING;", 6);
+         copy(connection, main, "SELECT orderID, itemName, quantity, orderTimestamp FROM ItemsInOrder_" + suffix + ";",
+            "INSERT INTO ArchivedOrderItem VALUES (?, ?, ?, CAST(? AS timestamp)) ON CONFLICT DO NOTHING;", 4);
+         main.commit();
+         dropPartitions(connection, suffix);
+         connection.commit();
+      }catch (SQLException e) {
+         main.rollback();
+         connection.rollback();
+         throw e;
+      }finally {
+         main.setAutoCommit(true);
+         connection.setAutoCommit(true);
+      }
+   }
+
+   private static void copy(Connection from, Connection to, String select, String insert, int columns)
+      throws SQLException {
+      Statement stmt = from.createStatement();
+      PreparedStatement pstmt = to.prepareStatement(insert);
+      try {
+         stmt.setFetchSize(COPY_BATCH);
+         ResultSet rs = stmt.executeQuery(select);
+         int batched = 0;
+         while (rs.next()) {
+            for (int i = 1; i <= columns; i++) {
+               pstmt.setObject(i, rs.getObject(i));
+            }
+            pstmt.addBatch();
+            if (++batched % COPY_BATCH == 0) {
+               pstmt.executeBatch();
+            }
+         }
+         pstmt.executeBatch();
+      }finally {
+         pstmt.close();
+         stmt.close();
+      }
+   }
+
+   private static void dropPartitions(Connection connection, String suffix) throws SQLException {
+      // the item partition references the order partition, so it goes first
+      update(connection, "DROP TABLE IF EXISTS ItemsInOrder_" + suffix + ";");
+      update(connection, "ALTER TABLE FoodOrder DETACH PARTITION FoodOrder_" + suffix + ";");
+      update(connection, "DROP TABLE FoodOrder_" + suffix + ";");
+   }
+
+   /**
+    * Looks an order up in the archive.
+    *
+    * @param orderID the order to find
+    * @return null if the order is not archived; otherwise the order header
+    *         (orderID, login, storeID, totalPrice, orderTimestamp,
+    *         orderStatus) followed by one (itemName, quantity) row per item
+    * @throws java.sql.SQLException when the archive cannot be queried
+    */
+   public List<List<String>> lookup(int orderID) throws SQLException {
+      List<List<String>> header = shards.query(0, String.format(
+         "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus FROM ArchivedOrder " +
+         "WHERE orderID = %d ORDER BY orderTimestamp LIMIT 1;",
+         orderID));
+      if (header.isEmpty()) {
+         return null;
+      }
+      List<List<String>> found = new ArrayList<List<String>>(header);
+      found.addAll(shards.query(0, String.format(
+         "SELECT itemName, quantity FROM ArchivedOrderItem WHERE orderID = %d AND orderTimestamp = '%s';",
+         orderID, header.get(0).get(4))));
+      return found;
+   }
+
+   private static List<String> partitions(Connection connection) throws SQLException {
+      List<String> result = new ArrayList<String>();
+      Statement stmt = connection.createStatement();
+      ResultSet rs = stmt.executeQuery(
+         "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+         "WHERE i.inhparent = 'foodorder'::regclass AND c.relname ~ '^foodorder_[0-9]{4}_[0-9]{2}$' " +
+         "ORDER BY c.relname;");
+      while (rs.next()) {
+         result.add(rs.getString(1));
+      }
+      stmt.close();
+      return result;
+   }
+
+   private static void update(Connection connection, String sql) throws SQLException {
+      Statement stmt = connection.createStatement();
+      stmt.execute(sql);
+      stmt.close();
+   }
+
+   private static String queryValue(Connection connection, String sql) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(sql);
+         return rs.next() ? rs.getString(1) : null;
+      }finally {
+         stmt.close();
+      }
+   }
+}
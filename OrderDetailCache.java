@@ -0,0 +1,127 @@
+/*
+ * Order detail cache for the PizzaStore user interface
+ * ====================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * This class keeps the details of orders that can no longer change --
+ * completed orders and archived orders -- in a bounded least recently used
+ * map, so drivers and managers re-checking the same orders read them from
+ * memory. Incomplete orders are never cached; an order that is switched
+ * back to incomplete is evicted by updateOrderStatus, and by the order
+ * status events when another instance switches it. An entry also expires
+ * after a while, in case such an event was missed.
+ *
+ */
+public class OrderDetailCache {
+
+   // default number of cached orders
+   public static final int DEFAULT_CAPACITY = 4096;
+
+   // default lifetime of a cached order
+   public static final long DEFAULT_TTL_MILLIS = 60000;
+
+   private final long ttlNanos;
+   private final Map<Integer, Entry> details;
+
+   /**
+    * The header and items of one order. Instances are immutable.
+    */
+   public static final class Detail {
+      public final int orderID;
+      public final String login;
+      public final String orderTimestamp;
+      public final String totalPrice;
+      public final String orderStatus;
+      public final boolean archived;
+
+      // (itemName, quantity) rows, stored column-wise
+      public final List<List<String>> items;
+
+      public Detail(int orderID, String login, String orderTimestamp, String totalPrice,
+                    String orderStatus, boolean archived, List<List<String>> items) {
+         this.orderID = orderID;
+         this.login = login;
+         this.orderTimestamp = orderTimestamp;
+         this.totalPrice = totalPrice;
+         this.orderStatus = orderStatus == null ? null : orderStatus.trim();
+         this.archived = archived;
+         this.items = ColumnarResult.of(items);
+      }
+
+      /**
+       * Tells whether the order can no longer change.
+       */
+      public boolean isFinal() {
+         return archived || "complete".equalsIgnoreCase(orderStatus);
+      }
+   }
+
+   /**
+    * A cached order and when it expires, in System.nanoTime.
+    */
+   private static final class Entry {
+      final Detail detail;
+      final long expiresAt;
+
+      Entry(Detail detail, long expiresAt) {
+         this.detail = detail;
+         this.expiresAt = expiresAt;
+      }
+   }
+
+   public OrderDetailCache(int capacity, long ttlMillis) {
+      this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+      this.details = new LinkedHashMap<Integer, Entry>(capacity * 4 / 3 + 1, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            return size() > capacity;
+         }
+      };
+   }
+
+   public OrderDetailCache() {
+      this(DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS);
+   }
+
+   /**
+    * Returns the cached details of an order, or null.
+    */
+   public synchronized Detail get(int orderID) {
+      Entry entry = details.get(orderID);
+      if (entry == null) {
+         return null;
+      }
+      if (System.nanoTime() - entry.expiresAt >= 0) {
+         details.remove(orderID);
+         return null;
+      }
+      return entry.detail;
+   }
+
+   /**
+    * Caches the details of an order if it can no longer change.
+    */
+   public synchronized void put(Detail detail) {
+      if (detail.isFinal()) {
+         details.put(detail.orderID, new Entry(detail, System.nanoTime() + ttlNanos));
+      }
+   }
+
+   /**
+    * Evicts an order whose status changed.
+    */
+   public synchronized void invalidate(int orderID) {
+      details.remove(orderID);
+   }
+}
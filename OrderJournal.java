@@ -0,0 +1,794 @@
+/*
+ * Order journal for the PizzaStore user interface
+ * ===============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+
+/**
+ * This class is a local write-ahead journal for confirmed orders, so order
+ * intake keeps working while Postgres is slow or restarting. placeOrder
+ * appends the order to the journal and acknowledges it at once; a
+ * background replayer then writes it to FoodOrder, ItemsInOrder and the
+ * sales rollups on its own connections, retrying with back-off while the
+ * database is unavailable.
+ *
+ * The journal is a directory of memory-mapped segment files, written
+ * append-only and rolled over when full. Every record carries a CRC32, and
+ * is flushed to disk before the order is acknowledged (or, with an
+ * interval sync policy, within the interval). Once an order is in the
+ * database a DONE record is appended, and segments whose orders are all
+ * done are deleted. At startup the segments are scanned, a torn record at
+ * the tail is discarded, and every order without a DONE record is replayed.
+ *
+ * OrderIDs come from blocks of each shard's FoodOrderIDs sequence that the
+ * replayer reserves ahead of time, so they are unique across PizzaStore
+ * instances and an acknowledged orderID is never changed; order intake
+ * keeps working through an outage until a shard's block runs out. The
+ * replayer connects and reserves the blocks in its retry loop, so a
+ * database that is down at startup only delays them. While a shard has no
+ * orderIDs, or the replayer has stopped because the journal cannot be
+ * written, isAvailable is false and orders are placed synchronously.
+ * Replaying is idempotent: an order already stored under its orderID and
+ * timestamp is skipped. Orders the database rejects outright (for instance
+ * an item removed from the menu) are written to rejected-orders.log, and
+ * the stock they reserved, which the order record carries, is given back.
+ *
+ * For the extra shards the sales rollups in the main database follow the
+ * order's commit. A STORED record between the two keeps a failed rollup
+ * update from being skipped on retry; only a crash after the rollups
+ * commit and before the DONE record is written can count them twice.
+ *
+ * Segment layout: magic, reserved int, segment number, then records of
+ *    length  crc32(type + payload)  type  payload
+ * where type is ORDER, STORED or DONE.
+ * ending at the first zero length.
+ *
+ */
+public class OrderJournal {
+
+   // size of a segment file
+   public static final int DEFAULT_SEGMENT_BYTES = 1 << 20;
+
+   private static final int MAGIC = 0x505A4A31;
+   private static final int SEGMENT_HEADER_BYTES = 16;
+   private static final int RECORD_HEADER_BYTES = 9;
+
+   private static final byte ORDER = 1;
+   private static final byte DONE = 2;
+   private static final byte STORED = 3;
+
+   // orderIDs reserved per shard at a time; more are reserved when half are used
+   private static final int ID_BLOCK = 256;
+
+   // replay back-off while the database is unavailable
+   private static final long MIN_RETRY_MILLIS = 500;
+   private static final long MAX_RETRY_MILLIS = 30000;
+
+   private final PizzaStore esql;
+   private final File dir;
+   private final int segmentBytes;
+
+   // 0 flushes every record before it is acknowledged, otherwise the flush interval
+   private final long syncIntervalMillis;
+
+   // segment number -> orders in it that are not in the database yet
+   private final TreeMap<Long, Integer> pendingBySegment = new TreeMap<Long, Integer>();
+   private final ArrayDeque<Entry> pending = new ArrayDeque<Entry>();
+
+   // reserved FoodOrderIDs sequence values per shard, or null before start
+   private List<ArrayDeque<Long>> reservedIDs;
+
+   private long activeSegment;
+   private MappedByteBuffer active;
+
+   private volatile boolean running = false;
+
+   // set when the replayer stopped because the journal could not be written
+   private volatile boolean failed = false;
+   private Thread replayer;
+   private ScheduledExecutorService syncer;
+   private List<Connection> connections;
+
+   /**
+    * A journaled order.
+    */
+   private static final class Entry {
+      final int orderID;
+      final String login;
+      final String storeID;
+      final String orderTimestamp;
+      final long totalCents;
+
+      // (itemName, quantity, unit price in cents)
+      final List<List<String>> orderItems;
+
+      // the stock the order reserved, given back if it is rejected
+      final List<String> reservedIngredients;
+      final long[] reservedAmounts;
+      final long segment;
+
+      // in its shard, with only the main database's rollups left; replayer only
+      boolean stored;
+
+      Entry(int orderID, String login, String storeID, String orderTimestamp, long totalCents,
+            List<List<String>> orderItems, List<String> reservedIngredients, long[] reservedAmounts, long segment) {
+         this.orderID = orderID;
+         this.login = login;
+         this.storeID = storeID;
+         this.orderTimestamp = orderTimestamp;
+         this.totalCents = totalCents;
+         this.orderItems = orderItems;
+         this.reservedIngredients = reservedIngredients;
+         this.reservedAmounts = reservedAmounts;
+         this.segment = segment;
+      }
+   }
+
+   /**
+    * Opens the journal and recovers the orders that were not replayed yet.
+    *
+    * @param syncIntervalMillis 0 to flush every order before acknowledging
+    *        it, otherwise the interval of a background flush
+    * @throws java.io.IOException when the journal directory cannot be used
+    */
+   public OrderJournal(PizzaStore esql, File dir, int segmentBytes, long syncIntervalMillis) throws IOException {
+      this.esql = esql;
+      this.dir = dir;
+      this.segmentBytes = segmentBytes;
+      this.syncIntervalMillis = syncIntervalMillis;
+      recover();
+   }
+
+   /**
+    * Creates the journal from the PIZZASTORE_JOURNAL_DIR (default
+    * "journal"; "none" disables the journal) and PIZZASTORE_JOURNAL_SYNC
+    * ("always", the default, or a flush interval in milliseconds)
+    * environment variables.
+    *
+    * @return the journal, or null when it is disabled
+    * @throws java.io.IOException when the journal directory cannot be used
+    */
+   public static OrderJournal fromEnvironment(PizzaStore esql) throws IOException {
+      String dir = System.getenv("PIZZASTORE_JOURNAL_DIR");
+      String sync = System.getenv("PIZZASTORE_JOURNAL_SYNC");
+      if (dir != null && dir.trim().equalsIgnoreCase("none")) {
+         return null;
+      }
+      return new OrderJournal(esql,
+         new File(dir == null || dir.trim().isEmpty() ? "journal" : dir.trim()),
+         DEFAULT_SEGMENT_BYTES,
+         sync == null || sync.trim().isEmpty() || sync.trim().equalsIgnoreCase("always") ? 0 : Long.parseLong(sync.trim()));
+   }
+
+   /**
+    * Starts the replayer, which reserves the first orderIDs of every shard
+    * and then drains the orders recovered at startup.
+    */
+   public void start() {
+      List<ArrayDeque<Long>> ids = new ArrayList<ArrayDeque<Long>>();
+      for (int shard = 0; shard < esql.orderShards().shardCount(); shard++) {
+         ids.add(new ArrayDeque<Long>());
+      }
+
+      synchronized (this) {
+         reservedIDs = ids;
+         running = true;
+      }
+
+      replayer = new Thread(this::replay, "order-journal-replayer");
+      replayer.setDaemon(true);
+      replayer.start();
+
+      if (syncIntervalMillis > 0) {
+         syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "order-journal-sync");
+            thread.setDaemon(true);
+            return thread;
+         });
+         syncer.scheduleWithFixedDelay(this::sync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   /**
+    * Stops the replayer and flushes the journal. Orders not replayed yet
+    * stay in the journal and are replayed on the next start.
+    */
+   public void stop() {
+      synchronized (this) {
+         running = false;
+         notifyAll();
+      }
+      if (replayer != null) {
+         replayer.interrupt();
+         try {
+            replayer.join(5000);
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      if (syncer != null) {
+         syncer.shutdownNow();
+      }
+      sync();
+      closeConnections();
+   }
+
+   /**
+    * Tells whether orders for a shard can be journaled now: the replayer
+    * is running and has orderIDs for the shard.
+    */
+   public synchronized boolean isAvailable(int shard) {
+      return running && !failed && reservedIDs != null && !reservedIDs.get(shard).isEmpty();
+   }
+
+   /**
+    * Journals a confirmed order and allocates its orderID. The order is
+    * durable when this returns (within the sync interval, if one is set)
+    * and reaches the database through the replayer.
+    *
+    * @param shard the shard owning the order's store
+    * @param orderItems the order lines as (itemName, quantity, unit price in cents)
+    * @param reservation the stock taken for the order, or null
+    * @return the orderID
+    * @throws java.io.IOException when the journal cannot be written or
+    *         is not available, see isAvailable
+    */
+   public synchronized int append(int shard, String login, String storeID, String orderTimestamp,
+                                  long totalCents, List<List<String>> orderItems,
+                                  StoreInventory.Reservation reservation) throws IOException {
+      if (!running || failed || reservedIDs == null) {
+         throw new IOException("The order journal is not running.");
+      }
+      ArrayDeque<Long> ids = reservedIDs.get(shard);
+      if (ids.isEmpty()) {
+         throw new IOException("The order journal has no orderIDs reserved for order shard " + shard + ".");
+      }
+      int orderID = esql.orderShards().orderID(ids.peek(), shard);
+
+      List<String> reservedIngredients = new ArrayList<String>();
+      long[] reservedAmounts = new long[reservation == null ? 0 : reservation.size()];
+      for (int i = 0; i < reservedAmounts.length; i++) {
+         reservedIngredients.add(reservation.ingredient(i));
+         reservedAmounts[i] = reservation.amount(i);
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(orderID);
+      out.writeUTF(login);
+      out.writeUTF(storeID);
+      out.writeUTF(orderTimestamp);
+      out.writeLong(totalCents);
+      out.writeInt(orderItems.size());
+      for (List<String> orderItem : orderItems) {
+         out.writeUTF(orderItem.get(0));
+         out.writeInt(Integer.parseInt(orderItem.get(1)));
+         out.writeLong(Long.parseLong(orderItem.get(2)));
+      }
+      out.writeInt(reservedAmounts.length);
+      for (int i = 0; i < reservedAmounts.length; i++) {
+         out.writeUTF(reservedIngredients.get(i));
+         out.writeLong(reservedAmounts[i]);
+      }
+      write(ORDER, bytes.toByteArray());
+
+      ids.poll();
+      pending.add(new Entry(orderID, login, storeID, orderTimestamp, totalCents, orderItems,
+         reservedIngredients, reservedAmounts, activeSegment));
+      pendingBySegment.merge(activeSegment, 1, Integer::sum);
+      notifyAll();
+      return orderID;
+   }
+
+   /**
+    * Returns the number of journaled orders not yet in the database.
+    */
+   public synchronized int pendingCount() {
+      return pending.size();
+   }
+
+   /*
+   * Appends one record to the active segment, rolling over to a new
+   * segment when it does not fit.
+   */
+   private void write(byte type, byte[] payload) throws IOException {
+      int length = RECORD_HEADER_BYTES + payload.length;
+      if (active.remaining() < length) {
+         active.force();
+         openSegment(activeSegment + 1, Math.max(segmentBytes, SEGMENT_HEADER_BYTES + length));
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(type);
+      crc.update(payload);
+
+      int start = active.position();
+      active.putInt(payload.length);
+      active.putInt((int) crc.getValue());
+      active.put(type);
+      active.put(payload);
+      if (syncIntervalMillis == 0) {
+         active.force(start, length);
+      }
+   }
+
+   private synchronized void sync() {
+      if (active != null) {
+         active.force();
+      }
+   }
+
+   /*
+   * Creates and maps a new segment and makes it the active one.
+   */
+   private void openSegment(long segment, int size) throws IOException {
+      try (FileChannel channel = FileChannel.open(segmentFile(segment).toPath(),
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         active = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+      active.putInt(MAGIC);
+      active.putInt(0);
+      active.putLong(segment);
+      active.force();
+      activeSegment = segment;
+      pendingBySegment.putIfAbsent(segment, 0);
+   }
+
+   /*
+   * Scans every segment in order, collects the orders without a DONE
+   * record and continues appending after the last valid record.
+   */
+   private void recover() throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Unable to create order journal directory " + dir);
+      }
+      File[] files = dir.listFiles((d, name) -> name.matches("orders-\\d+\\.journal"));
+      long[] segments = new long[files == null ? 0 : files.length];
+      for (int i = 0; i < segments.length; i++) {
+         String name = files[i].getName();
+         segments[i] = Long.parseLong(name.substring("orders-".length(), name.length() - ".journal".length()));
+      }
+      Arrays.sort(segments);
+
+      Map<Integer, Entry> recovered = new LinkedHashMap<Integer, Entry>();
+      for (int i = 0; i < segments.length; i++) {
+         MappedByteBuffer buffer;
+         try (FileChannel channel = FileChannel.open(segmentFile(segments[i]).toPath(),
+               StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+         }
+         pendingBySegment.put(segments[i], 0);
+
+         if (buffer.capacity() < SEGMENT_HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            System.err.println("Order journal segment " + segmentFile(segments[i]) + " is not a journal; skipped.");
+            continue;
+         }
+         buffer.position(SEGMENT_HEADER_BYTES);
+
+         while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length == 0) {
+               buffer.position(start);
+               break;
+            }
+            int checksum = buffer.getInt();
+            byte type = buffer.get();
+            if (length < 0 || length > buffer.remaining()) {
+               buffer.position(start);
+               discardTail(buffer, segments[i], i == segments.length - 1);
+               break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+               buffer.position(start);
+               discardTail(buffer, segments[i], i == segments.length - 1);
+               break;
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            if (type == ORDER) {
+               int orderID = in.readInt();
+               String login = in.readUTF();
+               String storeID = in.readUTF();
+               String orderTimestamp = in.readUTF();
+               long totalCents = in.readLong();
+               int count = in.readInt();
+               List<List<String>> orderItems = new ArrayList<List<String>>(count);
+               for (int item = 0; item < count; item++) {
+                  orderItems.add(Arrays.asList(in.readUTF(), String.valueOf(in.readInt()), String.valueOf(in.readLong())));
+               }
+               // records written before reservations were journaled end here
+               List<String> reservedIngredients = new ArrayList<String>();
+               long[] reservedAmounts = new long[in.available() > 0 ? in.readInt() : 0];
+               for (int r = 0; r < reservedAmounts.length; r++) {
+                  reservedIngredients.add(in.readUTF());
+                  reservedAmounts[r] = in.readLong();
+               }
+               recovered.put(orderID, new Entry(orderID, login, storeID, orderTimestamp, totalCents,
+                  orderItems, reservedIngredients, reservedAmounts, segments[i]));
+               pendingBySegment.merge(segments[i], 1, Integer::sum);
+            }
+            else if (type == STORED) {
+               Entry stored = recovered.get(in.readInt());
+               if (stored != null) {
+                  stored.stored = true;
+               }
+            }
+            else if (type == DONE) {
+               Entry done = recovered.remove(in.readInt());
+               if (done != null) {
+                  pendingBySegment.merge(done.segment, -1, Integer::sum);
+               }
+            }
+         }
+
+         if (i == segments.length - 1) {
+            active = buffer;
+            activeSegment = segments[i];
+         }
+      }
+
+      if (active == null) {
+         openSegment(1, segmentBytes);
+      }
+      pending.addAll(recovered.values());
+      compact();
+      if (!pending.isEmpty()) {
+         System.out.println("Recovered " + pending.size() + " journaled order(s) not yet in the database.");
+      }
+   }
+
+   /*
+   * Drops a torn or corrupt record and everything after it. In the last
+   * segment the rest is zeroed, so appends continue cleanly from there.
+   */
+   private void discardTail(MappedByteBuffer buffer, long segment, boolean last) {
+      System.err.println("Order journal segment " + segmentFile(segment) + " is damaged at offset " +
+         buffer.position() + "; the rest of the segment is ignored.");
+      if (last) {
+         int start = buffer.position();
+         for (int i = start; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) 0);
+         }
+         buffer.force();
+         buffer.position(start);
+      }
+   }
+
+   /*
+   * Deletes the oldest segments as long as all of their orders are in the
+   * database. The active segment is always kept.
+   */
+   private void compact() {
+      while (!pendingBySegment.isEmpty()) {
+         Map.Entry<Long, Integer> oldest = pendingBySegment.firstEntry();
+         if (oldest.getKey() == activeSegment || oldest.getValue() > 0) {
+            return;
+         }
+         if (!segmentFile(oldest.getKey()).delete()) {
+            return;
+         }
+         pendingBySegment.remove(oldest.getKey());
+      }
+   }
+
+   /*
+   * The replayer: reserves orderIDs when a shard runs low and writes the
+   * journaled orders to the database in order, backing off while the
+   * database cannot be reached.
+   */
+   private void replay() {
+      long retryMillis = 0;
+      while (true) {
+         Entry entry;
+         synchronized (this) {
+            while (running && pending.isEmpty() && !needsIDs()) {
+               try {
+                  wait();
+               }catch (InterruptedException e) {
+                  return;
+               }
+            }
+            if (!running) {
+               return;
+            }
+            entry = pending.peek();
+         }
+
+         try {
+            if (connections == null) {
+               connections = esql.orderShards().connectAll();
+            }
+            reserveIDs();
+            if (entry != null) {
+               store(entry);
+               finish(entry);
+               esql.dashboards().invalidate(entry.login);
+            }
+            retryMillis = 0;
+         }catch (SQLException e) {
+            String state = e.getSQLState();
+            if (entry != null && state != null && (state.startsWith("22") || state.startsWith("23"))) {
+               // the database will never accept this order; keep it out of the way
+               reject(entry, e);
+               continue;
+            }
+            if (retryMillis == 0) {
+               System.err.println("Order journal replay paused, database unavailable: " + e.getMessage());
+            }
+            closeConnections();
+            retryMillis = Math.min(Math.max(retryMillis * 2, MIN_RETRY_MILLIS), MAX_RETRY_MILLIS);
+            try {
+               Thread.sleep(retryMillis);
+            }catch (InterruptedException ie) {
+               return;
+            }
+         }catch (IOException e) {
+            System.err.println("Unable to write to the order journal: " + e.getMessage());
+            failed = true;
+            return;
+         }
+      }
+   }
+
+   /*
+   * Reserves another block of orderIDs for every shard that has used half
+   * of its block.
+   */
+   private void reserveIDs() throws SQLException {
+      for (int shard = 0; shard < connections.size(); shard++) {
+         synchronized (this) {
+            if (reservedIDs.get(shard).size() >= ID_BLOCK / 2) {
+               continue;
+            }
+         }
+         List<List<String>> values = query(connections.get(shard), String.format(
+            "SELECT nextval('FoodOrderIDs') FROM generate_series(1, %d);",
+            ID_BLOCK));
+         synchronized (this) {
+            for (List<String> value : values) {
+               reservedIDs.get(shard).add(Long.parseLong(value.get(0)));
+            }
+         }
+      }
+   }
+
+   private synchronized boolean needsIDs() {
+      for (ArrayDeque<Long> ids : reservedIDs) {
+         if (ids.size() < ID_BLOCK / 2) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /*
+   * Stores one journaled order in its shard in a single transaction and,
+   * for the extra shards, then its rollups in the main database.
+   */
+   private void store(Entry entry) throws SQLException, IOException {
+      int shard = esql.orderShards().shardForStore(Integer.parseInt(entry.storeID));
+      if (!entry.stored) {
+         storeOrder(entry, shard);
+         if (shard != 0) {
+            markStored(entry);
+         }
+      }
+
+      // the rollups live in the main database, so for the other shards they follow the commit
+      if (shard != 0) {
+         Connection main = connections.get(0);
+         main.setAutoCommit(false);
+         try {
+            for (String statement : SalesRollups.orderStatements(entry.storeID, entry.orderTimestamp,
+                  entry.totalCents, entry.orderItems)) {
+               update(main, statement);
+            }
+            main.commit();
+         }catch (SQLException e) {
+            try {
+               main.rollback();
+            }catch (SQLException ignored) {
+               // the connection is dropped by the caller anyway.
+            }
+            throw e;
+         }finally {
+            try {
+               main.setAutoCommit(true);
+            }catch (SQLException ignored) {
+               // ignored.
+            }
+         }
+      }
+   }
+
+   /*
+   * Writes the order, and for shard 0 its rollups, in one transaction.
+   * OrderIDs come from the shard's sequence and only this replayer writes
+   * this one, so the check for an earlier replay cannot race an insert.
+   */
+   private void storeOrder(Entry entry, int shard) throws SQLException {
+      Connection connection = connections.get(shard);
+      int orderID = entry.orderID;
+
+      connection.setAutoCommit(false);
+      try {
+         List<List<String>> existing = query(connection, String.format(
+            "SELECT login, orderTimestamp FROM FoodOrder WHERE orderID = %d;",
+            orderID));
+         for (List<String> order : existing) {
+            if (order.get(0).equals(entry.login) && order.get(1).startsWith(entry.orderTimestamp)) {
+               connection.commit();
+               return; // replayed before the DONE or STORED record was written
+            }
+         }
+         if (!existing.isEmpty()) {
+            // the acknowledged orderID is never changed; this order goes to rejected-orders.log
+            throw new SQLException("OrderID " + orderID + " belongs to another order.", "23505");
+         }
+
+         for (String statement : PizzaStore.orderStatements(orderID, entry.login, entry.storeID,
+               entry.totalCents, entry.orderTimestamp, entry.orderItems)) {
+            update(connection, statement);
+         }
+         if (shard == 0) {
+            for (String statement : SalesRollups.orderStatements(entry.storeID, entry.orderTimestamp,
+                  entry.totalCents, entry.orderItems)) {
+               update(connection, statement);
+            }
+         }
+         connection.commit();
+      }catch (SQLException e) {
+         try {
+            connection.rollback();
+         }catch (SQLException ignored) {
+            // the connection is dropped by the caller anyway.
+         }
+         throw e;
+      }finally {
+         try {
+            connection.setAutoCommit(true);
+         }catch (SQLException ignored) {
+            // ignored.
+         }
+      }
+   }
+
+   /*
+   * Records that an order is in its shard, so a retry only redoes its rollups.
+   */
+   private synchronized void markStored(Entry entry) throws IOException {
+      write(STORED, ByteBuffer.allocate(4).putInt(0, entry.orderID).array());
+      entry.stored = true;
+   }
+
+   /*
+   * Marks an order as replayed and drops segments that are done.
+   */
+   private synchronized void finish(Entry entry) throws IOException {
+      ByteBuffer payload = ByteBuffer.allocate(4).putInt(0, entry.orderID);
+      write(DONE, payload.array());
+      pending.poll();
+      pendingBySegment.merge(entry.segment, -1, Integer::sum);
+      compact();
+   }
+
+   private void reject(Entry entry, SQLException cause) {
+      System.err.println("Journaled order " + entry.orderID + " was rejected by the database: " + cause.getMessage());
+      try (Writer out = new OutputStreamWriter(new FileOutputStream(new File(dir, "rejected-orders.log"), true),
+            StandardCharsets.UTF_8)) {
+         out.write(String.join("\t", String.valueOf(entry.orderID), entry.login, entry.storeID,
+            entry.orderTimestamp, Pricing.formatCents(entry.totalCents), entry.orderItems.toString(),
+            cause.getMessage().replace('\n', ' ')));
+         out.write('\n');
+         finish(entry);
+
+         // the stock the order took is not sold after all
+         StoreInventory inventory = esql.inventory();
+         inventory.release(inventory.reservation(Integer.parseInt(entry.storeID),
+            entry.reservedIngredients, entry.reservedAmounts));
+      }catch (IOException e) {
+         System.err.println("Unable to record rejected order " + entry.orderID + ": " + e.getMessage());
+         failed = true;
+         synchronized (this) {
+            running = false;
+         }
+      }
+   }
+
+   private File segmentFile(long segment) {
+      return new File(dir, String.format("orders-%020d.journal", segment));
+   }
+
+   private void closeConnections() {
+      List<Connection> open = connections;
+      connections = null;
+      if (open == null) {
+         return;
+      }
+      for (Connection connection : open) {
+         try {
+            connection.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }
+
+   private static List<List<String>> query(Connection connection, String query) throws SQLException {
+      List<List<String>> result = new ArrayList<List<String>>();
+      Statement stmt = connection.createStatement();
+      FlightEvents.SqlStatement event = FlightEvents.beginSql("query", query);
+      try {
+         ResultSet rs = stmt.executeQuery(query);
+         int numCol = rs.getMetaData().getColumnCount();
+         while (rs.next()) {
+            List<String> record = new ArrayList<String>(numCol);
+            for (int i = 1; i <= numCol; i++) {
+               record.add(rs.getString(i));
+            }
+            result.add(record);
+         }
+         FlightEvents.endSql(event, result.size());
+      }catch (SQLException e) {
+         FlightEvents.failSql(event);
+         throw e;
+      }finally {
+         stmt.close();
+      }
+      return result;
+   }
+
+   private static void update(Connection connection, String sql) throws SQLException {
+      Statement stmt = connection.createStatement();
+      FlightEvents.SqlStatement event = FlightEvents.beginSql("update", sql);
+      try {
+         FlightEvents.endSql(event, stmt.executeUpdate(sql));
+      }catch (SQLException e) {
+         FlightEvents.failSql(event);
+         throw e;
+      }finally {
+         stmt.close();
+      }
+   }
+}
@@ -0,0 +1,240 @@
+/*
+ * Live order rates for the PizzaStore user interface
+ * ==================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * This class counts the orders and revenue of every store over sliding
+ * windows of the last 1, 5 and 15 minutes, in memory, so the live rates
+ * never touch FoodOrder. Each store has a ring of per-second buckets of
+ * LongAdder cells. Placing an order adds to the bucket of the current
+ * second; a bucket left over from an earlier lap of the ring is replaced
+ * rather than cleared, so writers never wait for each other or for a
+ * reset. Reading a rate sums the buckets of the window.
+ *
+ */
+public class OrderRates {
+
+   // the rate windows, in seconds
+   public static final int[] WINDOWS = { 60, 300, 900 };
+
+   // ring size; a power of two larger than the widest window
+   private static final int SLOTS = 1024;
+
+   private final ConcurrentHashMap<Integer, AtomicReferenceArray<Bucket>> stores =
+      new ConcurrentHashMap<Integer, AtomicReferenceArray<Bucket>>();
+
+   /**
+    * The orders and revenue of one store in one second.
+    */
+   private static final class Bucket {
+      final long second;
+      final LongAdder orders = new LongAdder();
+      final LongAdder revenueCents = new LongAdder();
+
+      Bucket(long second) {
+         this.second = second;
+      }
+   }
+
+   /**
+    * The rates of one store, per minute, for each of the WINDOWS.
+    */
+   public static final class Rate {
+      public final int storeID;
+      public final double[] ordersPerMinute;
+      public final long[] revenueCentsPerMinute;
+
+      Rate(int storeID, double[] ordersPerMinute, long[] revenueCentsPerMinute) {
+         this.storeID = storeID;
+         this.ordersPerMinute = ordersPerMinute;
+         this.revenueCentsPerMinute = revenueCentsPerMinute;
+      }
+   }
+
+   /**
+    * Counts a committed order.
+    */
+   public void recordOrder(int storeID, long totalCents) {
+      recordOrder(storeID, totalCents, System.currentTimeMillis());
+   }
+
+   public void recordOrder(int storeID, long totalCents, long orderMillis) {
+      long second = orderMillis / 1000;
+      AtomicReferenceArray<Bucket> ring = stores.computeIfAbsent(storeID, id -> new AtomicReferenceArray<Bucket>(SLOTS));
+      int slot = (int) (second & (SLOTS - 1));
+      Bucket bucket = ring.get(slot);
+      while (bucket == null || bucket.second < second) {
+         Bucket fresh = new Bucket(second);
+         if (ring.compareAndSet(slot, bucket, fresh)) {
+            bucket = fresh;
+         }
+         else {
+            bucket = ring.get(slot);
+         }
+      }
+      if (bucket.second == second) {
+         bucket.orders.increment();
+         bucket.revenueCents.add(totalCents);
+      }
+   }
+
+   /**
+    * Returns the current rates of a store; all zero for a store without
+    * recent orders.
+    */
+   public Rate rate(int storeID) {
+      return rate(storeID, System.currentTimeMillis() / 1000);
+   }
+
+   /**
+    * Returns the current rates of every store that had an order in the
+    * widest window, busiest first by the narrowest window.
+    */
+   public List<Rate> rates() {
+      long now = System.currentTimeMillis() / 1000;
+      List<Rate> rates = new ArrayList<Rate>();
+      for (Integer storeID : stores.keySet()) {
+         Rate rate = rate(storeID, now);
+         if (rate.ordersPerMinute[WINDOWS.length - 1] > 0) {
+            rates.add(rate);
+         }
+      }
+      rates.sort(Comparator.comparingDouble((Rate r) -> -r.ordersPerMinute[0])
+         .thenComparingDouble(r -> -r.ordersPerMinute[WINDOWS.length - 1]));
+      return rates;
+   }
+
+   /**
+    * Returns the rates of every active store as JSON:
+    * {"timestamp":..., "windows":[60,300,900], "stores":[{"storeID":1,
+    * "ordersPerMinute":[...], "revenuePerMinute":["12.34", ...]}, ...]}
+    */
+   public String snapshot() {
+      StringBuilder json = new StringBuilder();
+      json.append("{\"timestamp\":").append(System.currentTimeMillis()).append(",\"windows\":[");
+      for (int w = 0; w < WINDOWS.length; w++) {
+         json.append(w == 0 ? "" : ",").append(WINDOWS[w]);
+      }
+      json.append("],\"stores\":[");
+      List<Rate> rates = rates();
+      for (int i = 0; i < rates.size(); i++) {
+         Rate rate = rates.get(i);
+         json.append(i == 0 ? "" : ",").append("{\"storeID\":").append(rate.storeID).append(",\"ordersPerMinute\":[");
+         for (int w = 0; w < WINDOWS.length; w++) {
+            json.append(w == 0 ? "" : ",").append(String.format(Locale.ROOT, "%.3f", rate.ordersPerMinute[w]));
+         }
+         json.append("],\"revenuePerMinute\":[");
+         for (int w = 0; w < WINDOWS.length; w++) {
+            json.append(w == 0 ? "\"" : ",\"").append(Pricing.formatCents(rate.revenueCentsPerMinute[w])).append('"');
+         }
+         json.append("]}");
+      }
+      return json.append("]}").toString();
+   }
+
+   /*
+   * Sums the buckets of each window ending with the current second.
+   */
+   private Rate rate(int storeID, long now) {
+      long[] orders = new long[WINDOWS.length];
+      long[] revenue = new long[WINDOWS.length];
+      AtomicReferenceArray<Bucket> ring = stores.get(storeID);
+      if (ring != null) {
+         for (int slot = 0; slot < SLOTS; slot++) {
+            Bucket bucket = ring.get(slot);
+            if (bucket == null) {
+               continue;
+            }
+            long age = now - bucket.second;
+            for (int w = 0; w < WINDOWS.length; w++) {
+               if (age >= 0 && age < WINDOWS[w]) {
+                  orders[w] += bucket.orders.sum();
+                  revenue[w] += bucket.revenueCents.sum();
+               }
+            }
+         }
+      }
+      double[] ordersPerMinute = new double[WINDOWS.length];
+      long[] revenuePerMinute = new long[WINDOWS.length];
+      for (int w = 0; w < WINDOWS.length; w++) {
+         ordersPerMinute[w] = orders[w] * 60.0 / WINDOWS[w];
+         revenuePerMinute[w] = revenue[w] * 60 / WINDOWS[w];
+      }
+      return new Rate(storeID, ordersPerMinute, revenuePerMinute);
+   }
+
+   /**
+    * Shows managers the live order and revenue rates of the stores.
+    */
+   public static void viewOrderRates(PizzaStore esql, String token) {
+      try {
+         String userRole = esql.authenticate(token).role;
+
+         if (!userRole.equalsIgnoreCase("manager")) {
+            FlightEvents.operationDenied();
+            System.out.println("Invalid role access. Exiting live order rates.");
+            return;
+         }
+
+         System.out.println("Which rates would you like to view?");
+         System.out.println("1. Busiest stores right now");
+         System.out.println("2. One store");
+         System.out.println("3. Snapshot as JSON");
+         System.out.println("4. Exit live order rates");
+
+         List<Rate> rates;
+         switch(PizzaStore.readChoice()) {
+            case 1:
+               rates = esql.orderRates().rates();
+               if (rates.isEmpty()) {
+                  System.out.println("No orders in the last " + WINDOWS[WINDOWS.length - 1] / 60 + " minutes.");
+                  return;
+               }
+               break;
+
+            case 2:
+               System.out.print("Enter the storeID: ");
+               rates = List.of(esql.orderRates().rate(Integer.parseInt(PizzaStore.in.readLine().trim())));
+               break;
+
+            case 3:
+               System.out.println(esql.orderRates().snapshot());
+               return;
+
+            case 4:
+               System.out.println("Exiting live order rates.");
+               return;
+
+            default:
+               System.out.println("Invalid choice. Please try again.");
+               return;
+         }
+
+         System.out.println(String.format("%-8s %24s   %30s", "Store", "Orders/min (1m 5m 15m)", "Revenue/min (1m 5m 15m)"));
+         for (Rate rate : rates) {
+            System.out.println(String.format("%-8d %8.2f%8.2f%8.2f   %10s%10s%10s", rate.storeID,
+               rate.ordersPerMinute[0], rate.ordersPerMinute[1], rate.ordersPerMinute[2],
+               "$" + Pricing.formatCents(rate.revenueCentsPerMinute[0]),
+               "$" + Pricing.formatCents(rate.revenueCentsPerMinute[1]),
+               "$" + Pricing.formatCents(rate.revenueCentsPerMinute[2])));
+         }
+      }catch (Exception e) {
+         FlightEvents.operationFailed(e);
+         System.err.println("Error while viewing live order rates: " + e.getMessage());
+      }
+   }
+}
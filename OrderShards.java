@@ -0,0 +1,401 @@
+/*
+ * Order sharding for the PizzaStore user interface
+ * ================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * This class spreads FoodOrder and ItemsInOrder over N databases by store.
+ * Shard 0 is the main PizzaStore database and goes through the normal
+ * execute methods; shards 1..N-1 are the extra databases listed in
+ * PIZZASTORE_ORDER_SHARDS, created with create_order_shard.sql.
+ *
+ * A store's new orders go to shard storeID mod N, and every orderID is
+ * allocated so that orderID mod N is its shard, which lets an order be found
+ * from its ID alone. Orders placed before a shard was added stay where they
+ * were - the orders from before sharding all live in the main database - so
+ * an order missing from its shard is looked for on the others, main
+ * database first. Orders are never moved between shards, so adding a shard
+ * needs no migration. Per-user history queries are scattered to every shard
+ * in parallel and merged by orderTimestamp.
+ *
+ * The extra shard connections are shared by the console; a thread that
+ * works alongside it, such as the async facade, is given connections of its
+ * own with use, so it never joins a console transaction on a shard.
+ *
+ */
+public class OrderShards {
+
+   private final PizzaStore esql;
+   private final List<Connection> shards;
+   private final ExecutorService pool;
+
+   /**
+    * The rows of a query about one order and the shard they came from.
+    */
+   public static final class OrderRows {
+      public final int shard;
+      public final List<List<String>> rows;
+
+      OrderRows(int shard, List<List<String>> rows) {
+         this.shard = shard;
+         this.rows = rows;
+      }
+   }
+
+   // connections of its own for the current thread, as returned by connectAll
+   private final ThreadLocal<List<Connection>> currentConnections = new ThreadLocal<List<Connection>>();
+
+   // connection settings, kept for opening dedicated connections
+   private final List<String> urls;
+   private final String user;
+   private final String passwd;
+
+   public OrderShards(PizzaStore esql, List<Connection> extraShards, List<String> urls, String user, String passwd) {
+      this.esql = esql;
+      this.urls = urls;
+      this.user = user;
+      this.passwd = passwd;
+      this.shards = new ArrayList<Connection>();
+      this.shards.add(null); // shard 0 is the main database
+      this.shards.addAll(extraShards);
+      this.pool = Executors.newFixedThreadPool(this.shards.size(), r -> {
+         Thread thread = new Thread(r, "order-shard-query");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   /**
+    * Creates the shard set from the PIZZASTORE_ORDER_SHARDS environment
+    * variable, a comma separated list of host:port/dbname endpoints for
+    * shards 1..N-1. Without the variable all orders stay in the main
+    * database. A shard that cannot be reached is a fatal configuration
+    * error, since its orders would silently disappear otherwise.
+    *
+    * @throws java.sql.SQLException when a shard cannot be reached
+    */
+   public static OrderShards fromEnvironment(PizzaStore esql, String mainUrl, String user, String passwd)
+      throws SQLException {
+      List<Connection> connections = new ArrayList<Connection>();
+      List<String> urls = new ArrayList<String>();
+      urls.add(mainUrl);
+      String configured = System.getenv("PIZZASTORE_ORDER_SHARDS");
+
+      if (configured != null) {
+         for (String endpoint : configured.split(",")) {
+            if (!endpoint.trim().isEmpty()) {
+               String url = "jdbc:postgresql://" + endpoint.trim();
+               connections.add(DriverManager.getConnection(url, user, passwd));
+               urls.add(url);
+            }
+         }
+      }
+      return new OrderShards(esql, connections, urls, user, passwd);
+   }
+
+   /**
+    * Opens a new connection to every shard, in shard order, for background
+    * work that must not share the interactive connections or their
+    * transactions. The caller closes them.
+    *
+    * @throws java.sql.SQLException when a shard cannot be reached
+    */
+   public List<Connection> connectAll() throws SQLException {
+      List<Connection> connections = new ArrayList<Connection>();
+      for (int shard = 0; shard < urls.size(); shard++) {
+         connections.add(connect(shard));
+      }
+      return connections;
+   }
+
+   /**
+    * Opens a new connection to one shard, as connectAll does for all of
+    * them. The caller closes it.
+    *
+    * @throws java.sql.SQLException when the shard cannot be reached
+    */
+   public Connection connect(int shard) throws SQLException {
+      return DriverManager.getConnection(urls.get(shard), user, passwd);
+   }
+
+   /**
+    * Gives the current thread connections of its own to the extra shards,
+    * in place of the shared ones. Shard 0 is given with
+    * PizzaStore.usePrimary.
+    *
+    * @param connections the connections from connectAll, or null to use
+    *        the shared ones again
+    */
+   public void use(List<Connection> connections) {
+      if (connections == null) {
+         currentConnections.remove();
+      }
+      else {
+         currentConnections.set(connections);
+      }
+   }
+
+   /**
+    * Returns the connections given to the current thread, or null.
+    */
+   public List<Connection> current() {
+      return currentConnections.get();
+   }
+
+   private Connection connection(int shard) {
+      List<Connection> own = currentConnections.get();
+      return own == null ? shards.get(shard) : own.get(shard);
+   }
+
+   public int shardCount() {
+      return shards.size();
+   }
+
+   public int shardForStore(int storeID) {
+      return Math.floorMod(storeID, shards.size());
+   }
+
+   public int shardForOrder(int orderID) {
+      return Math.floorMod(orderID, shards.size());
+   }
+
+   /**
+    * Runs a query about one order on the shard its orderID maps to and,
+    * if that shard has no rows, on the main database and then the other
+    * shards, for orders placed before their shard existed.
+    *
+    * @return the rows and the shard holding the order; no rows and the
+    *         shard of the orderID if no shard has it
+    * @throws java.sql.SQLException when a query failed
+    */
+   public OrderRows queryOrder(int orderID, String query) throws SQLException {
+      int owner = shardForOrder(orderID);
+      List<List<String>> rows = query(owner, query);
+      for (int shard = 0; rows.isEmpty() && shard < shards.size(); shard++) {
+         if (shard != owner) {
+            rows = query(shard, query);
+            if (!rows.isEmpty()) {
+               return new OrderRows(shard, rows);
+            }
+         }
+      }
+      return new OrderRows(owner, rows);
+   }
+
+   /**
+    * Allocates the next orderID on a shard from the shard's FoodOrderIDs
+    * sequence. FoodOrder is partitioned, so its key includes orderTimestamp
+    * and cannot keep orderID unique; the sequence does, across concurrent
+    * placements and PizzaStore instances. A sequence value v becomes
+    * v * N + shard, which maps back to the shard.
+    *
+    * @throws java.sql.SQLException when the query failed
+    */
+   public int nextOrderID(int shard) throws SQLException {
+      List<List<String>> next = query(shard, "SELECT nextval('FoodOrderIDs');");
+      return orderID(Long.parseLong(next.get(0).get(0)), shard);
+   }
+
+   /**
+    * Turns a value of a shard's FoodOrderIDs sequence into its orderID.
+    */
+   public int orderID(long sequenceValue, int shard) {
+      return Math.toIntExact(sequenceValue * shards.size() + shard);
+   }
+
+   /**
+    * Runs a query on one shard.
+    *
+    * @throws java.sql.SQLException when the query failed
+    */
+   public List<List<String>> query(int shard, String query) throws SQLException {
+      if (shard == 0) {
+         return esql.executeQueryAndReturnResult(query);
+      }
+
+      Statement stmt = connection(shard).createStatement();
+      FlightEvents.SqlStatement event = FlightEvents.beginSql("query", query);
+      Deadline.Watch watch = null;
+      try {
+         watch = Deadline.watch(stmt);
+         ResultSet rs = stmt.executeQuery(query);
+         ResultSetMetaData rsmd = rs.getMetaData();
+         int numCol = rsmd.getColumnCount();
+
+         List<List<String>> result = new ArrayList<List<String>>();
+         while (rs.next()) {
+            List<String> record = new ArrayList<String>(numCol);
+            for (int i = 1; i <= numCol; ++i) {
+               record.add(rs.getString(i));
+            }
+            result.add(record);
+         }
+         FlightEvents.endSql(event, result.size());
+         return result;
+      }catch (SQLException e) {
+         FlightEvents.failSql(event);
+         throw watch == null ? e : watch.failed(e);
+      }finally {
+         if (watch != null) {
+            watch.close();
+         }
+         stmt.close();
+      }
+   }
+
+   /**
+    * Runs an update statement on one shard.
+    *
+    * @throws java.sql.SQLException when the update failed
+    */
+   public void executeUpdate(int shard, String sql) throws SQLException {
+      if (shard == 0) {
+         esql.executeUpdate(sql);
+         return;
+      }
+      Statement stmt = connection(shard).createStatement();
+      FlightEvents.SqlStatement event = FlightEvents.beginSql("update", sql);
+      Deadline.Watch watch = null;
+      try {
+         watch = Deadline.watch(stmt);
+         FlightEvents.endSql(event, stmt.executeUpdate(sql));
+      }catch (SQLException e) {
+         FlightEvents.failSql(event);
+         throw watch == null ? e : watch.failed(e);
+      }finally {
+         if (watch != null) {
+            watch.close();
+         }
+         stmt.close();
+      }
+   }
+
+   public void beginTransaction(int shard) throws SQLException {
+      if (shard == 0) {
+         esql.beginTransaction();
+      }
+      else {
+         connection(shard).setAutoCommit(false);
+      }
+   }
+
+   public void commitTransaction(int shard) throws SQLException {
+      if (shard == 0) {
+         esql.commitTransaction();
+      }
+      else {
+         connection(shard).commit();
+         connection(shard).setAutoCommit(true);
+      }
+   }
+
+   public void rollbackTransaction(int shard) {
+      if (shard == 0) {
+         esql.rollbackTransaction();
+         return;
+      }
+      try {
+         connection(shard).rollback();
+         connection(shard).setAutoCommit(true);
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+   /**
+    * Runs the same query on every shard in parallel and returns the rows of
+    * all shards, in shard order.
+    *
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public List<List<String>> queryAll(String query) throws SQLException {
+      if (shards.size() == 1) {
+         return query(0, query);
+      }
+
+      List<Future<List<List<String>>>> futures = new ArrayList<Future<List<List<String>>>>();
+      for (int shard = 0; shard < shards.size(); shard++) {
+         final int target = shard;
+         // the pool threads work for the caller's operation and deadline
+         futures.add(pool.submit(esql.onBehalf(() -> query(target, query))));
+      }
+
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (Future<List<List<String>>> future : futures) {
+         try {
+            result.addAll(future.get());
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while querying order shards.");
+         }catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+               throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Order shard query failed: " + e.getCause().getMessage(), e.getCause());
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Scatters a query to every shard and merges the rows by a timestamp
+    * column. When limit is positive the query should already carry the same
+    * ORDER BY and LIMIT, so each shard returns only its own top rows and the
+    * merge keeps the overall top rows.
+    *
+    * @param timestampColumn the index of the yyyy-MM-dd HH:mm:ss column
+    * @param descending true for newest first
+    * @param limit the number of rows to keep, or 0 for all
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public List<List<String>> queryAllByTimestamp(String query, int timestampColumn, boolean descending, int limit)
+      throws SQLException {
+      List<List<String>> result = queryAll(query);
+      if (shards.size() == 1) {
+         return result;
+      }
+
+      // the timestamp text format sorts chronologically
+      Comparator<List<String>> order = Comparator.comparing(row -> row.get(timestampColumn));
+      result.sort(descending ? order.reversed() : order);
+      if (limit > 0 && result.size() > limit) {
+         return new ArrayList<List<String>>(result.subList(0, limit));
+      }
+      return result;
+   }
+
+   /**
+    * Closes the extra shard connections and the query threads.
+    */
+   public void close() {
+      pool.shutdownNow();
+      for (Connection shard : shards) {
+         try {
+            if (shard != null) {
+               shard.close();
+            }
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }
+}
@@ -0,0 +1,512 @@
+/*
+ * Order status events for the PizzaStore user interface
+ * =====================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+
+/**
+ * This class pushes order status changes to subscribers instead of having
+ * them poll FoodOrder. A trigger on FoodOrder of every shard notifies the
+ * order_status channel when a status changes, whichever instance changed
+ * it; a background thread LISTENs on a connection of its own to each shard
+ * and publishes the notifications. A small HTTP server streams the events
+ * as Server-Sent Events:
+ *
+ *    GET /orders/status?token=...[&amp;login=...][&amp;storeID=...]
+ *
+ * The session token may also be sent as "Authorization: Bearer ...".
+ * Customers only receive events of their own orders; drivers and managers
+ * may filter by login and/or storeID or receive every event.
+ *
+ * Every subscriber has a bounded buffer. A subscriber that falls so far
+ * behind that its buffer is full is sent a final "dropped" event and
+ * disconnected, so a slow consumer never holds up publishing. Idle streams
+ * only carry a heartbeat comment now and then, and publishing with no
+ * subscribers costs nothing. The token of every stream is checked again
+ * every few seconds, and a stream whose token was revoked or expired is
+ * sent a "revoked" event and closed.
+ *
+ * Changes made while a shard's listening connection is down are not
+ * published. With a JDBC driver that does not deliver notification
+ * payloads, only the changes made by this process are published.
+ *
+ * The same server serves JSON snapshots added with addSnapshot, e.g. the
+ * live order rates, to managers.
+ *
+ */
+public class OrderStatusEvents {
+
+   // events buffered per subscriber before it is dropped
+   public static final int DEFAULT_BUFFER_SIZE = 64;
+
+   // heartbeat on idle streams, so dead connections are noticed
+   private static final long HEARTBEAT_SECONDS = 30;
+
+   // how often the token of an open stream is verified again
+   private static final long REVERIFY_SECONDS = 5;
+
+   // the channel notified by the FoodOrder trigger, see create_tables.sql
+   private static final String CHANNEL = "order_status";
+
+   // how often the listening connections are read for notifications
+   private static final long LISTEN_POLL_MILLIS = 250;
+
+   // PGConnection.getNotifications, PGNotification.getName and getParameter,
+   // looked up reflectively since the driver is only on the runtime class path
+   private static final Method[] NOTIFICATIONS = notificationMethods();
+
+   private static final Event DROPPED = new Event(0, 0, null, null, null);
+
+   private final SessionTokens tokens;
+   private final int port;
+   private final int bufferSize;
+   private final AtomicLong sequence = new AtomicLong();
+   private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+   private final CopyOnWriteArrayList<IntConsumer> changeListeners = new CopyOnWriteArrayList<IntConsumer>();
+   private final Map<String, Supplier<String>> snapshots = new ConcurrentHashMap<String, Supplier<String>>();
+
+   private HttpServer server;
+   private ExecutorService executor;
+
+   // the listening thread and its connections by shard; only used on that thread
+   private volatile boolean listening;
+   private ScheduledExecutorService listener;
+   private OrderShards shards;
+   private Connection[] channels;
+   private boolean failing;
+
+   /**
+    * A status change of one order.
+    */
+   private static final class Event {
+      final long id;
+      final int orderID;
+      final String login;
+      final String storeID;
+      final String orderStatus;
+
+      Event(long id, int orderID, String login, String storeID, String orderStatus) {
+         this.id = id;
+         this.orderID = orderID;
+         this.login = login;
+         this.storeID = storeID;
+         this.orderStatus = orderStatus;
+      }
+   }
+
+   /**
+    * An open stream and its filter; a null filter field matches anything.
+    */
+   private static final class Subscriber {
+      final String token;
+      final String login;
+      final String storeID;
+      final BlockingQueue<Event> buffer;
+
+      Subscriber(String token, String login, String storeID, int bufferSize) {
+         this.token = token;
+         this.login = login;
+         this.storeID = storeID;
+         this.buffer = new ArrayBlockingQueue<Event>(bufferSize);
+      }
+
+      boolean matches(Event event) {
+         return (login == null || login.equals(event.login)) && (storeID == null || storeID.equals(event.storeID));
+      }
+   }
+
+   public OrderStatusEvents(SessionTokens tokens, int port, int bufferSize) {
+      this.tokens = tokens;
+      this.port = port;
+      this.bufferSize = bufferSize;
+   }
+
+   /**
+    * Creates the event stream from the PIZZASTORE_EVENTS_PORT environment
+    * variable. Without it events are still accepted but nobody can
+    * subscribe.
+    */
+   public static OrderStatusEvents fromEnvironment(SessionTokens tokens) {
+      String port = System.getenv("PIZZASTORE_EVENTS_PORT");
+      return new OrderStatusEvents(tokens,
+         port == null || port.trim().isEmpty() ? -1 : Integer.parseInt(port.trim()), DEFAULT_BUFFER_SIZE);
+   }
+
+   /**
+    * Serves a JSON document to managers at a path, e.g. /stores/rates.
+    * Snapshots must be added before start.
+    */
+   public void addSnapshot(String path, Supplier<String> json) {
+      snapshots.put(path, json);
+   }
+
+   /**
+    * Starts the subscription server if a port is configured.
+    *
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public void start() throws IOException {
+      if (port < 0) {
+         return;
+      }
+      server = HttpServer.create(new InetSocketAddress(port), 0);
+      // one blocked thread per open stream; virtual threads where available
+      executor = PizzaStoreAsync.newExecutor("order-status-events");
+      server.setExecutor(executor);
+      server.createContext("/orders/status", this::subscribe);
+      for (Map.Entry<String, Supplier<String>> snapshot : snapshots.entrySet()) {
+         server.createContext(snapshot.getKey(), exchange -> serveSnapshot(exchange, snapshot.getValue()));
+      }
+      server.start();
+      System.out.println("Order status events on http://localhost:" + server.getAddress().getPort() + "/orders/status");
+   }
+
+   /**
+    * Calls a listener with the orderID of every published status change,
+    * e.g. to evict a cached order.
+    */
+   public void addChangeListener(IntConsumer listener) {
+      changeListeners.add(listener);
+   }
+
+   /**
+    * Starts publishing the status changes of every shard from the
+    * notifications of the FoodOrder trigger.
+    */
+   public void listen(OrderShards shards) {
+      if (NOTIFICATIONS == null) {
+         System.err.println("The JDBC driver does not deliver notifications; only local order status changes are published.");
+         return;
+      }
+      this.shards = shards;
+      this.channels = new Connection[shards.shardCount()];
+      listening = true;
+      listener = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread thread = new Thread(r, "order-status-listener");
+         thread.setDaemon(true);
+         return thread;
+      });
+      listener.scheduleWithFixedDelay(this::receive, 0, LISTEN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   public void stop() {
+      if (server != null) {
+         server.stop(0);
+         executor.shutdownNow();
+      }
+      if (listener != null) {
+         listener.shutdown();
+         try {
+            listener.awaitTermination(LISTEN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         for (Connection channel : channels) {
+            try {
+               if (channel != null) {
+                  channel.close();
+               }
+            }catch (SQLException e) {
+               // ignored.
+            }
+         }
+      }
+      for (Subscriber subscriber : subscribers) {
+         drop(subscriber);
+      }
+   }
+
+   /**
+    * Publishes a status change committed by this process. While the
+    * notifications are received, the change arrives through them like the
+    * changes of the other instances, so nothing is done here.
+    */
+   public void publishLocal(int orderID, String login, String storeID, String orderStatus) {
+      if (!listening) {
+         publish(orderID, login, storeID, orderStatus);
+      }
+   }
+
+   /*
+   * Publishes a committed status change to the matching subscribers.
+   */
+   private void publish(int orderID, String login, String storeID, String orderStatus) {
+      for (IntConsumer listener : changeListeners) {
+         listener.accept(orderID);
+      }
+      if (subscribers.isEmpty()) {
+         return;
+      }
+      Event event = new Event(sequence.incrementAndGet(), orderID, login, storeID, orderStatus);
+      for (Subscriber subscriber : subscribers) {
+         if (subscriber.matches(event) && !subscriber.buffer.offer(event)) {
+            drop(subscriber);
+         }
+      }
+   }
+
+   /*
+   * Reads the notifications of every shard and publishes them, connecting
+   * and LISTENing first where needed. Runs on the listening thread.
+   */
+   private void receive() {
+      for (int shard = 0; shard < channels.length; shard++) {
+         try {
+            if (channels[shard] == null || channels[shard].isClosed()) {
+               channels[shard] = shards.connect(shard);
+               Statement listen = channels[shard].createStatement();
+               try {
+                  listen.execute("LISTEN " + CHANNEL + ";");
+               }finally {
+                  listen.close();
+               }
+            }
+            // the driver only reads pending notifications while a statement runs
+            Statement stmt = channels[shard].createStatement();
+            try {
+               stmt.executeQuery("SELECT 1;").close();
+            }finally {
+               stmt.close();
+            }
+            Object[] received = (Object[]) NOTIFICATIONS[0].invoke(channels[shard]);
+            if (received != null) {
+               for (Object notification : received) {
+                  if (CHANNEL.equals(NOTIFICATIONS[1].invoke(notification))) {
+                     deliver((String) NOTIFICATIONS[2].invoke(notification));
+                  }
+               }
+            }
+            failing = false;
+         }catch (SQLException | ReflectiveOperationException | IllegalArgumentException e) {
+            if (!failing) {
+               System.err.println("Unable to receive order status changes of shard " + shard + ": " + e.getMessage());
+               failing = true;
+            }
+            try {
+               if (channels[shard] != null) {
+                  channels[shard].close();
+               }
+            }catch (SQLException ignored) {
+               // reconnects on the next poll.
+            }
+            channels[shard] = null;
+         }
+      }
+   }
+
+   /*
+   * Publishes one notification of the trigger,
+   * "orderID,storeID,orderStatus,login".
+   */
+   private void deliver(String payload) {
+      String[] fields = payload == null ? new String[0] : payload.split(",", 4);
+      if (fields.length != 4) {
+         return;
+      }
+      try {
+         publish(Integer.parseInt(fields[0]), fields[3], fields[1], fields[2]);
+      }catch (NumberFormatException e) {
+         // not from the trigger.
+      }
+   }
+
+   private static Method[] notificationMethods() {
+      try {
+         Class<?> notification = Class.forName("org.postgresql.PGNotification");
+         return new Method[] {
+            Class.forName("org.postgresql.PGConnection").getMethod("getNotifications"),
+            notification.getMethod("getName"),
+            notification.getMethod("getParameter") };
+      }catch (ReflectiveOperationException e) {
+         return null;
+      }
+   }
+
+   /*
+   * Disconnects a subscriber: its pending events are discarded and the
+   * stream ends with a "dropped" event.
+   */
+   private void drop(Subscriber subscriber) {
+      if (subscribers.remove(subscriber)) {
+         subscriber.buffer.clear();
+         subscriber.buffer.offer(DROPPED);
+      }
+   }
+
+   private void subscribe(HttpExchange exchange) throws IOException {
+      try {
+         Map<String, String> params = queryParameters(exchange.getRequestURI().getRawQuery());
+         String token = token(exchange, params);
+         SessionTokens.Session session = authenticate(exchange, token);
+         if (session == null) {
+            return;
+         }
+
+         // customers only follow their own orders
+         String login = session.role.equalsIgnoreCase("customer") ? session.login : params.get("login");
+         Subscriber subscriber = new Subscriber(token, login, params.get("storeID"), bufferSize);
+
+         exchange.getResponseHeaders().add("Content-Type", "text/event-stream; charset=utf-8");
+         exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+         exchange.sendResponseHeaders(200, 0);
+         OutputStream out = exchange.getResponseBody();
+         write(out, ": subscribed\n\n");
+
+         subscribers.add(subscriber);
+         try {
+            long lastWrite = System.nanoTime();
+            while (true) {
+               Event event = subscriber.buffer.poll(REVERIFY_SECONDS, TimeUnit.SECONDS);
+               try {
+                  tokens.verify(subscriber.token);
+               }catch (SecurityException e) {
+                  write(out, "event: revoked\ndata: {\"reason\":\"session ended\"}\n\n");
+                  return;
+               }
+               if (event == null) {
+                  if (System.nanoTime() - lastWrite >= TimeUnit.SECONDS.toNanos(HEARTBEAT_SECONDS)) {
+                     write(out, ": heartbeat\n\n");
+                     lastWrite = System.nanoTime();
+                  }
+               }
+               else if (event == DROPPED) {
+                  write(out, "event: dropped\ndata: {\"reason\":\"slow consumer\"}\n\n");
+                  return;
+               }
+               else {
+                  write(out, String.format(
+                     "event: status\nid: %d\ndata: {\"orderID\":%d,\"login\":\"%s\",\"storeID\":\"%s\",\"orderStatus\":\"%s\"}\n\n",
+                     event.id, event.orderID, json(event.login), json(event.storeID), json(event.orderStatus)));
+                  lastWrite = System.nanoTime();
+               }
+            }
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }catch (IOException e) {
+            // the subscriber went away.
+         }finally {
+            subscribers.remove(subscriber);
+         }
+      }finally {
+         exchange.close();
+      }
+   }
+
+   private void serveSnapshot(HttpExchange exchange, Supplier<String> json) throws IOException {
+      try {
+         SessionTokens.Session session = authenticate(exchange,
+            token(exchange, queryParameters(exchange.getRequestURI().getRawQuery())));
+         if (session == null) {
+            return;
+         }
+         if (!session.role.trim().equalsIgnoreCase("manager")) {
+            respond(exchange, 403, "Managers only.");
+            return;
+         }
+         byte[] body = json.get().getBytes(StandardCharsets.UTF_8);
+         exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+         exchange.sendResponseHeaders(200, body.length);
+         exchange.getResponseBody().write(body);
+      }finally {
+         exchange.close();
+      }
+   }
+
+   /*
+   * Returns the token of a request, from the token parameter or a bearer
+   * Authorization header, or null.
+   */
+   private static String token(HttpExchange exchange, Map<String, String> params) {
+      String token = params.get("token");
+      String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      if (token == null && authorization != null && authorization.startsWith("Bearer ")) {
+         token = authorization.substring("Bearer ".length()).trim();
+      }
+      return token;
+   }
+
+   /*
+   * Verifies the token of a request
+   * @return the session, or null after answering 401
+   */
+   private SessionTokens.Session authenticate(HttpExchange exchange, String token) throws IOException {
+      try {
+         return tokens.verify(token);
+      }catch (SecurityException e) {
+         respond(exchange, 401, e.getMessage());
+         return null;
+      }
+   }
+
+   private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+      byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(status, body.length);
+      exchange.getResponseBody().write(body);
+   }
+
+   private static void write(OutputStream out, String text) throws IOException {
+      out.write(text.getBytes(StandardCharsets.UTF_8));
+      out.flush();
+   }
+
+   private static Map<String, String> queryParameters(String query) {
+      Map<String, String> params = new HashMap<String, String>();
+      if (query == null) {
+         return params;
+      }
+      for (String pair : query.split("&")) {
+         int eq = pair.indexOf('=');
+         if (eq > 0) {
+            params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+               URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+         }
+      }
+      return params;
+   }
+
+   private static String json(String value) {
+      StringBuilder escaped = new StringBuilder(value.length());
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         if (c == '"' || c == '\\') {
+            escaped.append('\\').append(c);
+         }
+         else if (c < ' ') {
+            escaped.append(String.format("\\u%04x", (int) c));
+         }
+         else {
+            escaped.append(c);
+         }
+      }
+      return escaped.toString();
+   }
+}
@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -21,12 +22,19 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
 import java.lang.Math;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 
 /**
@@ -39,9 +47,73 @@ public class PizzaStore {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // routes reads to the replicas and writes to the primary connection above
+   private ConnectionRouter _router = null;
+
+   // FoodOrder/ItemsInOrder shards; shard 0 is the connection above
+   private OrderShards _orderShards = null;
+
+   // creates monthly order partitions ahead of time and archives old ones
+   private OrderArchiver _orderArchiver = null;
+
+   // local write-ahead journal of confirmed orders, drained to the order shards
+   private OrderJournal _orderJournal = null;
+
+   // live most-ordered items per store and chain-wide
+   private final PopularItems _popularItems = new PopularItems();
+
+   // ingredient -> item bitsets for menu search
+   private final IngredientIndex _ingredientIndex = new IngredientIndex();
+
+   // live per-store orders and revenue per minute
+   private final OrderRates _orderRates = new OrderRates();
+
+   // the menu, store pricing rules and stores, kept in a snapshot file across restarts
+   private final CacheSnapshot _snapshot = CacheSnapshot.fromEnvironment();
+
+   // (storeID, address, city, state, isOpen) of every store, or null until loaded
+   private volatile List<List<String>> _stores;
+
+   // identical read queries running at the same time share one result
+   private final QueryCoalescer _coalescer = new QueryCoalescer();
+
+   // per-store ingredient stock, reserved when orders are placed
+   private final StoreInventory _inventory = new StoreInventory();
+
+   // money arithmetic in long cents plus the per-store tax and discount rules
+   private final Pricing _pricing = new Pricing();
+
+   // signs and verifies the stateless session tokens handed out by LogIn
+   private final SessionTokens _sessionTokens = SessionTokens.fromEnvironment();
+
+   // details of completed and archived orders, which no longer change
+   private final OrderDetailCache _orderDetails = new OrderDetailCache();
+
+   // profile, recent orders and open stores fetched right after login
+   private final DashboardPrefetch _dashboards = new DashboardPrefetch();
+
+   // pushes order status changes to subscribed drivers, managers and customers
+   private final OrderStatusEvents _statusEvents = OrderStatusEvents.fromEnvironment(this._sessionTokens);
+
+   // background connect and cache loading in fast-start mode, null otherwise
+   private CompletableFuture<Void> _startup = null;
+
+   // what readPriceFilter returns for a price it rejected
+   private static final long INVALID_PRICE = -2;
+
+   // cheap statements run right after a background connect so the driver
+   // classes and the server's catalog caches are warm for the first prompt
+   private static final String[] WARM_UP_QUERIES = {
+      "SELECT role FROM Users WHERE login = '' AND password = '';",
+      "SELECT * FROM Items LIMIT 0;",
+      "SELECT storeID, address, city, state, isOpen, reviewScore FROM Store LIMIT 0;",
+      "SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder LIMIT 0;"
+   };
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
+   // Reads through Deadline.InputReader so typing time is not charged to an operation's deadline.
+   static BufferedReader in = new Deadline.InputReader(
                                 new InputStreamReader(System.in));
 
    /**
@@ -56,20 +128,140 @@ public class PizzaStore {
    public PizzaStore(String dbname, String dbport, String user, String passwd) throws SQLException {
 
       System.out.print("Connecting to database...");
+      connect(dbname, dbport, user, passwd, true);
+   }//end PizzaStore
+
+   private PizzaStore() {
+   }//end PizzaStore
+
+   /**
+    * Creates a new instance of PizzaStore that connects, warms up and loads
+    * its caches on a background thread, so the first menu can be shown
+    * right away. beginOperation waits until the startup has finished.
+    *
+    * @param dbname the name of the database
+    * @param dbport the PostgreSQL server port
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @return the instance, possibly still connecting
+    */
+   public static PizzaStore startInBackground(String dbname, String dbport, String user, String passwd) {
+      PizzaStore esql = new PizzaStore();
+      esql._startup = CompletableFuture.runAsync(() -> {
+         esql.connect(dbname, dbport, user, passwd, false);
+         esql.warmUp();
+         esql.loadCaches();
+      }, task -> {
+         Thread thread = new Thread(task, "pizzastore-startup");
+         thread.setDaemon(true);
+         thread.start();
+      });
+      return esql;
+   }//end startInBackground
+
+   /*
+   * Loads the JDBC driver and obtains the physical connection plus the
+   * replica and shard connections. A failure is fatal, as before any menu
+   * could have worked without a database.
+   */
+   private void connect(String dbname, String dbport, String user, String passwd, boolean verbose) {
       try{
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver");
          // constructs the connection URL
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
+         if (verbose) {
+            System.out.println ("Connection URL: " + url + "\n");
+         }
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
-         System.out.println("Done");
+         this._router = ConnectionRouter.fromEnvironment(this._connection, dbname, user, passwd);
+         this._orderShards = OrderShards.fromEnvironment(this, url, user, passwd);
+         this._orderArchiver = OrderArchiver.fromEnvironment(this._orderShards);
+         this._orderJournal = OrderJournal.fromEnvironment(this);
+         if (verbose) {
+            System.out.println("Done");
+         }
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
          System.exit(-1);
       }//end catch
-   }//end PizzaStore
+   }//end connect
+
+   /*
+   * Runs the warm-up statements; failures only cost the warm-up.
+   */
+   private void warmUp() {
+      for (String query : WARM_UP_QUERIES) {
+         try{
+            executeQuery(query);
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }
+   }//end warmUp
+
+   /**
+    * Method to fill the in-memory caches from the database and start the
+    * order archiver and journal replayer. Each cache that fails to load is
+    * reported and left empty.
+    */
+   public void loadCaches() {
+      try{
+         this._popularItems.seed(this);
+      }catch (SQLException e){
+         System.err.println("Unable to load popular items: " + e.getMessage());
+      }//end try
+
+      // the reference data comes from the warm snapshot when there is one and is
+      // checked against the database in the background
+      this._snapshot.add("ingredient index",
+         "SELECT itemName, ingredients, typeOfItem, price, description FROM Items", this._ingredientIndex::load);
+      this._snapshot.add("store pricing rules",
+         "SELECT storeID, taxRateBps, discountBps, discountMinimum FROM StorePricing", this._pricing::load);
+      this._snapshot.add("stores",
+         "SELECT storeID, address, city, state, isOpen FROM Store", stores -> this._stores = stores);
+      this._snapshot.restore(this);
+      this._snapshot.start(this);
+      this._sessionTokens.start(this);
+
+      try{
+         this._inventory.load(this);
+         this._inventory.start(this);
+      }catch (SQLException e){
+         System.err.println("Unable to load store inventory: " + e.getMessage());
+      }//end try
+
+      this._orderArchiver.start();
+
+      if (this._orderJournal != null) {
+         this._orderJournal.start();
+      }//end if
+
+      // orders completed elsewhere may be switched back while cached here
+      this._statusEvents.addChangeListener(this._orderDetails::invalidate);
+      this._statusEvents.listen(this._orderShards);
+
+      try{
+         this._statusEvents.addSnapshot("/stores/rates", this._orderRates::snapshot);
+         this._statusEvents.addSnapshot("/operations/timeouts", Deadline::snapshot);
+         this._statusEvents.addSnapshot("/queries/coalesced", this._coalescer::snapshot);
+         this._statusEvents.start();
+      }catch (IOException e){
+         System.err.println("Unable to start the order status events: " + e.getMessage());
+      }//end try
+   }//end loadCaches
+
+   /*
+   * Waits for a background startup to finish.
+   */
+   private void awaitStartup() {
+      if (this._startup != null) {
+         this._startup.join();
+      }
+   }//end awaitStartup
 
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
@@ -80,15 +272,45 @@ public class PizzaStore {
     */
    public void executeUpdate (String sql) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = this._router.forWrite().createStatement ();
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+      FlightEvents.SqlStatement event = FlightEvents.beginSql("update", sql);
+      Deadline.Watch watch = null;
+      try{
+         // bounds the update by the remaining deadline of the operation
+         watch = Deadline.watch (stmt);
+         // issues the update instruction
+         FlightEvents.endSql(event, stmt.executeUpdate (sql));
+      }catch (SQLException e){
+         FlightEvents.failSql(event);
+         throw watch == null ? e : watch.failed (e);
+      }finally{
+         if (watch != null) watch.close ();
+         // close the instruction
+         stmt.close ();
+         // later reads must not share a result read before this update
+         this._coalescer.invalidate ();
+      }//end try
    }//end executeUpdate
 
+   /*
+   * Issues a query within the remaining deadline of the operation, recording
+   * a failure with the statement's flight event
+   */
+   private static ResultSet issueQuery(Statement stmt, String query, FlightEvents.SqlStatement event) throws SQLException {
+      Deadline.Watch watch = null;
+      try{
+         watch = Deadline.watch (stmt);
+         return stmt.executeQuery (query);
+      }catch (SQLException e){
+         FlightEvents.failSql(event);
+         stmt.close ();
+         throw watch == null ? e : watch.failed (e);
+      }finally{
+         if (watch != null) watch.close ();
+      }//end try
+   }//end issueQuery
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
@@ -100,10 +322,11 @@ public class PizzaStore {
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = this._router.forRead().createStatement ();
 
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      FlightEvents.SqlStatement event = FlightEvents.beginSql("query", query);
+      ResultSet rs = issueQuery (stmt, query, event);
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -128,6 +351,7 @@ public class PizzaStore {
          System.out.println ();
          ++rowCount;
       }//end while
+      FlightEvents.endSql(event, rowCount);
       stmt.close();
       return rowCount;
    }//end executeQuery
@@ -135,18 +359,26 @@ public class PizzaStore {
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
-    * a list of records. Each record in turn is a list of attribute values
+    * a list of records. Each record in turn is a list of attribute values.
+    * A SELECT that is already running with the same SQL is not issued
+    * again; its result is shared and cannot be modified.
     *
     * @param query the input query string
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      Connection route = this._router.forRead();
+      return this._coalescer.query(route, query, null, () -> queryAndReturnResult(route, query));
+   }//end executeQueryAndReturnResult
+
+   private List<List<String>> queryAndReturnResult (Connection route, String query) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = route.createStatement ();
 
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      FlightEvents.SqlStatement event = FlightEvents.beginSql("query", query);
+      ResultSet rs = issueQuery (stmt, query, event);
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -165,10 +397,58 @@ public class PizzaStore {
 			record.add(rs.getString (i));
         result.add(record);
       }//end while
+      FlightEvents.endSql(event, result.size());
       stmt.close ();
       return result;
+   }//end queryAndReturnResult
+
+   /**
+    * Method to execute a parameterized query SQL instruction (i.e. SELECT).
+    * The parameters are bound to the '?' placeholders in order, so values
+    * typed by users never become part of the SQL text. Like the plain
+    * version, identical SELECTs running at the same time share one result.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param parameters the placeholder values
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, List<Object> parameters) throws SQLException {
+      Connection route = this._router.forRead();
+      return this._coalescer.query(route, query, parameters, () -> queryAndReturnResult(route, query, parameters));
    }//end executeQueryAndReturnResult
 
+   private List<List<String>> queryAndReturnResult (Connection route, String query, List<Object> parameters)
+      throws SQLException {
+      PreparedStatement stmt = route.prepareStatement (query);
+      FlightEvents.SqlStatement event = FlightEvents.beginSql("query", query);
+      Deadline.Watch watch = null;
+      try{
+         for (int i = 0; i < parameters.size(); ++i){
+            stmt.setObject (i + 1, parameters.get(i));
+         }//end for
+         watch = Deadline.watch (stmt);
+         ResultSet rs = stmt.executeQuery ();
+         int numCol = rs.getMetaData ().getColumnCount ();
+         List<List<String>> result = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>(numCol);
+            for (int i = 1; i <= numCol; ++i){
+               record.add(rs.getString (i));
+            }//end for
+            result.add(record);
+         }//end while
+         FlightEvents.endSql(event, result.size());
+         return result;
+      }catch (SQLException e){
+         FlightEvents.failSql(event);
+         throw watch == null ? e : watch.failed (e);
+      }finally{
+         if (watch != null) watch.close ();
+         stmt.close ();
+      }//end try
+   }//end queryAndReturnResult
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -179,10 +459,11 @@ public class PizzaStore {
     */
    public int executeQuery (String query) throws SQLException {
        // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+       Statement stmt = this._router.forRead().createStatement ();
 
        // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+       FlightEvents.SqlStatement event = FlightEvents.beginSql("query", query);
+       ResultSet rs = issueQuery (stmt, query, event);
 
        int rowCount = 0;
 
@@ -190,6 +471,7 @@ public class PizzaStore {
        while (rs.next()){
           rowCount++;
        }//end while
+       FlightEvents.endSql(event, rowCount);
        stmt.close ();
        return rowCount;
    }
@@ -204,7 +486,7 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+	Statement stmt = this._router.primary().createStatement ();
 
 	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
 	if (rs.next())
@@ -212,11 +494,238 @@ public class PizzaStore {
 	return -1;
    }
 
+   /**
+    * Method to start a transaction on the physical connection. Every
+    * statement issued afterwards is part of the transaction until
+    * commitTransaction or rollbackTransaction is called.
+    *
+    * @throws java.sql.SQLException when autocommit cannot be disabled
+    */
+   public void beginTransaction() throws SQLException {
+      this._router.primary().setAutoCommit(false);
+   }
+
+   /**
+    * Method to commit the current transaction and return the connection
+    * to autocommit mode.
+    *
+    * @throws java.sql.SQLException when the commit failed
+    */
+   public void commitTransaction() throws SQLException {
+      Connection primary = this._router.primary();
+      primary.commit();
+      primary.setAutoCommit(true);
+      this._coalescer.invalidate();
+   }
+
+   /**
+    * Method to roll back the current transaction and return the connection
+    * to autocommit mode.
+    */
+   public void rollbackTransaction() {
+      try{
+         Connection primary = this._router.primary();
+         primary.rollback();
+         primary.setAutoCommit(true);
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }
+
+   /**
+    * Method to declare the user operation the current thread is about to
+    * run. Statements of read-only operations may be served by a replica;
+    * statements of mutating operations always go to the primary.
+    *
+    * In fast-start mode this waits until the background connect is done.
+    *
+    * @param login the user running the operation, or null before login
+    * @param mutating true if the operation writes to the database
+    */
+   public void beginOperation(String login, boolean mutating) {
+      awaitStartup();
+      this._router.beginOperation(login, mutating);
+   }
+
+   /**
+    * Method to run the statements of the current thread on a connection of
+    * its own instead of the shared primary connection.
+    *
+    * @param connection the connection, or null for the shared one again
+    */
+   public void usePrimary(Connection connection) {
+      this._router.usePrimary(connection);
+   }
+
+   /**
+    * Method to run the statements of the current thread on connections of
+    * its own to every order shard, the main database included.
+    *
+    * @param connections the connections from OrderShards.connectAll, or
+    *        null for the shared ones again
+    */
+   public void useConnections(List<Connection> connections) {
+      this._router.usePrimary(connections == null ? null : connections.get(0));
+      this._orderShards.use(connections);
+   }
+
+   /**
+    * Runs a task on another thread as part of the operation of the calling
+    * thread: it gets the caller's routing, deadline and flight recording.
+    * Must be called on the calling thread.
+    *
+    * @return the task to run on the other thread
+    */
+   public <T> Callable<T> onBehalf(Callable<T> task) {
+      String login = this._router.currentLogin();
+      boolean mutating = this._router.currentMutating();
+      Connection primary = this._router.primary();
+      List<Connection> shardConnections = this._orderShards.current();
+      Deadline deadline = Deadline.current();
+      FlightEvents.UserOperation operation = FlightEvents.currentOperation();
+      return () -> {
+         this._router.beginOperation(login, mutating);
+         this._router.usePrimary(primary);
+         this._orderShards.use(shardConnections);
+         Deadline.attach(deadline);
+         FlightEvents.attach(operation);
+         try {
+            return task.call();
+         }finally {
+            FlightEvents.attach(null);
+            Deadline.end(deadline);
+            this._orderShards.use(null);
+            this._router.usePrimary(null);
+            this._router.beginOperation(null, false);
+         }
+      };
+   }
+
+   /**
+    * Method to get the shards holding FoodOrder and ItemsInOrder.
+    *
+    * @return the order shards; shard 0 is this connection
+    */
+   public OrderShards orderShards() {
+      return this._orderShards;
+   }
+
+   /**
+    * Method to get the archiver holding orders moved out of FoodOrder.
+    *
+    * @return the order archiver
+    */
+   public OrderArchiver orderArchiver() {
+      return this._orderArchiver;
+   }
+
+   /**
+    * Method to get the ingredient index kept in step with Items.
+    *
+    * @return the ingredient index
+    */
+   public IngredientIndex ingredientIndex() {
+      return this._ingredientIndex;
+   }
+
+   /**
+    * Method to get the read query coalescer and its counts.
+    *
+    * @return the coalescer
+    */
+   public QueryCoalescer coalescer() {
+      return this._coalescer;
+   }
+
+   /**
+    * Method to get the live order rates of the stores.
+    *
+    * @return the order rates
+    */
+   public OrderRates orderRates() {
+      return this._orderRates;
+   }
+
+   /**
+    * Method to get the per-store ingredient stock.
+    *
+    * @return the store inventory
+    */
+   public StoreInventory inventory() {
+      return this._inventory;
+   }
+
+   /**
+    * Method to get the per-store pricing rules.
+    *
+    * @return the pricing engine
+    */
+   public Pricing pricing() {
+      return this._pricing;
+   }
+
+   /**
+    * Method to get the session token facility used by LogIn.
+    *
+    * @return the session tokens
+    */
+   public SessionTokens sessionTokens() {
+      return this._sessionTokens;
+   }
+
+   /**
+    * Method to get the dashboards prefetched after login.
+    *
+    * @return the dashboard prefetch
+    */
+   public DashboardPrefetch dashboards() {
+      return this._dashboards;
+   }
+
+   /**
+    * Method to get the order status event stream.
+    *
+    * @return the status events
+    */
+   public OrderStatusEvents statusEvents() {
+      return this._statusEvents;
+   }
+
+   /**
+    * Method to verify the session token passed to a user operation. The
+    * token is checked locally, without a Users lookup.
+    *
+    * @param token the token returned by LogIn
+    * @return the verified session
+    * @throws java.lang.SecurityException when the token is invalid, expired or revoked
+    */
+   public SessionTokens.Session authenticate(String token) {
+      return this._sessionTokens.verify(token);
+   }
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
       try{
+         awaitStartup();
+         this._dashboards.close ();
+         this._statusEvents.stop ();
+         this._snapshot.stop ();
+         this._sessionTokens.stop ();
+         this._inventory.stop ();
+         if (this._orderJournal != null){
+            this._orderJournal.stop ();
+         }//end if
+         if (this._orderArchiver != null){
+            this._orderArchiver.stop ();
+         }//end if
+         if (this._orderShards != null){
+            this._orderShards.close ();
+         }//end if
+         if (this._router != null){
+            this._router.close ();
+         }//end if
          if (this._connection != null){
             this._connection.close ();
          }//end if
@@ -243,14 +752,19 @@ public class PizzaStore {
       Greeting();
       PizzaStore esql = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the PizzaStore object and creates a physical
-         // connection.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
-         esql = new PizzaStore (dbname, dbport, user, "");
+         if (isFastStart()) {
+            // connect while the menu is shown; the first choice waits for it
+            esql = startInBackground (dbname, dbport, user, "");
+         }
+         else {
+            // instantiate the PizzaStore object and creates a physical
+            // connection.
+            esql = new PizzaStore (dbname, dbport, user, "");
+            esql.loadCaches();
+         }//end if
 
          boolean keepon = true;
          while(keepon) {
@@ -261,15 +775,35 @@ public class PizzaStore {
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
             String authorisedUser = null;
-            switch (readChoice()){
+            int mainChoice = readChoice();
+            esql.beginOperation(null, true);
+            String mainName = mainChoice == 1 ? "createUser" : mainChoice == 2 ? "logIn" : "mainMenu";
+            FlightEvents.UserOperation mainOperation = FlightEvents.beginOperation(mainName, null);
+            Deadline mainDeadline = Deadline.begin(mainName, mainChoice == 1);
+            switch (mainChoice){
                case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 2:
+                  authorisedUser = LogIn(esql);
+                  if (authorisedUser != null) {
+                     // fetch the first screens while the user menu is shown
+                     esql._dashboards.start(esql, esql.authenticate(authorisedUser).login);
+                  }
+                  break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
+            Deadline.end(mainDeadline);
+            FlightEvents.endOperation(mainOperation);
             if (authorisedUser != null) {
               boolean usermenu = true;
               while(usermenu) {
+                SessionTokens.Session session;
+                try {
+                   session = esql.authenticate(authorisedUser);
+                }catch (SecurityException e) {
+                   System.out.println(e.getMessage());
+                   break;
+                }
                 System.out.println("MAIN MENU");
                 System.out.println("---------");
                 System.out.println("1. View Profile");
@@ -287,10 +821,18 @@ public class PizzaStore {
                 //**the following functionalities should only be able to be used by managers**
                 System.out.println("10. Update Menu");
                 System.out.println("11. Update User");
+                System.out.println("12. Sales Reports");
+                System.out.println("13. Store Inventory");
+                System.out.println("14. Live Order Rates");
+                System.out.println("15. Reorder");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out\n");
-                switch (readChoice()){
+                int choice = readChoice();
+                esql.beginOperation(session.login, isMutatingOperation(choice));
+                FlightEvents.UserOperation operation = FlightEvents.beginOperation(operationName(choice), session.role);
+                Deadline deadline = Deadline.begin(operationName(choice), isMutatingOperation(choice));
+                switch (choice){
                    case 1: viewProfile(esql, authorisedUser); break;
                    case 2: updateProfile(esql, authorisedUser); break;
                    case 3: viewMenu(esql); break;
@@ -302,12 +844,22 @@ public class PizzaStore {
                    case 9: updateOrderStatus(esql, authorisedUser); break;
                    case 10: updateMenu(esql, authorisedUser); break;
                    case 11: updateUser(esql, authorisedUser); break;
+                   case 12: SalesRollups.viewSalesReport(esql, authorisedUser); break;
+                   case 13: StoreInventory.manageInventory(esql, authorisedUser); break;
+                   case 14: OrderRates.viewOrderRates(esql, authorisedUser); break;
+                   case 15: reorder(esql, authorisedUser); break;
 
 
 
-                   case 20: usermenu = false; break;
+                   case 20:
+                      esql._sessionTokens.revoke(session);
+                      esql._dashboards.invalidate(session.login);
+                      usermenu = false;
+                      break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
+                Deadline.end(deadline);
+                FlightEvents.endOperation(operation);
               }
             }
          }//end while
@@ -327,6 +879,62 @@ public class PizzaStore {
       }//end try
    }//end main
 
+   /*
+    * Fast-start mode is enabled with PIZZASTORE_FAST_START=1 (or true/yes)
+    * @return true if the connection should be opened in the background
+    **/
+   public static boolean isFastStart() {
+      String configured = System.getenv("PIZZASTORE_FAST_START");
+      return configured != null &&
+         (configured.trim().equals("1") || configured.trim().equalsIgnoreCase("true") || configured.trim().equalsIgnoreCase("yes"));
+   }
+
+   /*
+    * Classifies the user menu choices: mutating operations run entirely on
+    * the primary, read-only ones may be served by a replica.
+    * @return true if the operation behind the choice writes to the database
+    **/
+   public static boolean isMutatingOperation(int choice) {
+      switch (choice) {
+         case 2:  // updateProfile
+         case 4:  // placeOrder
+         case 15: // reorder
+         case 9:  // updateOrderStatus
+         case 10: // updateMenu
+         case 11: // updateUser
+            return true;
+         default:
+            return false;
+      }
+   }
+
+   /*
+    * Names the operation behind a user menu choice, for flight recordings
+    * and deadlines
+    * @return the operation name
+    **/
+   public static String operationName(int choice) {
+      switch (choice) {
+         case 1:  return "viewProfile";
+         case 2:  return "updateProfile";
+         case 3:  return "viewMenu";
+         case 4:  return "placeOrder";
+         case 5:  return "viewAllOrders";
+         case 6:  return "viewRecentOrders";
+         case 7:  return "viewOrderInfo";
+         case 8:  return "viewStores";
+         case 9:  return "updateOrderStatus";
+         case 10: return "updateMenu";
+         case 11: return "updateUser";
+         case 12: return "viewSalesReport";
+         case 13: return "manageInventory";
+         case 14: return "viewOrderRates";
+         case 15: return "reorder";
+         case 20: return "logOut";
+         default: return "unknown";
+      }
+   }
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -383,6 +991,7 @@ public class PizzaStore {
          esql.executeUpdate(query); // create user in db
          System.out.println("User created successfully!");
       }catch (Exception e) {
+         FlightEvents.operationFailed(e);
          System.err.println("Error while creating user: " + e.getMessage());
       }
    }// end CreateUser
@@ -409,7 +1018,7 @@ public class PizzaStore {
 
    /*
    * Check log in credentials for an existing user
-   * @return User login or null if the user does not exist
+   * @return a signed session token or null if the user does not exist
    */
    // USER (login!!,password,role,favoriteItems,phoneNum)
    public static String LogIn(PizzaStore esql) {
@@ -419,14 +1028,11 @@ public class PizzaStore {
          System.out.print("Enter password: ");
          String password = in.readLine().trim();
 
-         String query = String.format(
-            "SELECT * FROM Users WHERE login = '%s' AND password = '%s';",
-            login, password);
-         int userCount = esql.executeQuery(query);
+         String token = authenticateUser(esql, login, password);
 
-         if (userCount != 0) {
+         if (token != null) {
             System.out.println("Login successful!");
-            return login;
+            return token;
          } else {
             System.out.println("Invalid login or password.");
             return null;
@@ -437,16 +1043,38 @@ public class PizzaStore {
       }
    }// end
 
+   /*
+   * Checks a login and password against Users
+   * @return a signed session token or null if the credentials are wrong
+   */
+   public static String authenticateUser(PizzaStore esql, String login, String password) throws SQLException {
+      String query = String.format(
+         "SELECT role FROM Users WHERE login = '%s' AND password = '%s';",
+         login, password);
+      List<List<String>> userResult = esql.executeQueryAndReturnResult(query);
+
+      if (userResult.isEmpty()) {
+         return null;
+      }
+      return esql._sessionTokens.mint(login, userResult.get(0).get(0));
+   }
+
    // Rest of the functions definition go in here
 
-   public static void viewProfile (PizzaStore esql, String login) {
+   public static void viewProfile (PizzaStore esql, String token) {
       try {
-         String query = String.format(
-            "SELECT favoriteItems, phoneNum FROM Users WHERE login = '%s';",
-            login);
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-            
-         List<String> userProfile = result.get(0);
+         SessionTokens.Session session = esql.authenticate(token);
+         String login = session.login;
+
+         // favoriteItems, phoneNum
+         List<String> userProfile = esql._dashboards.profile(login);
+         if (userProfile == null) {
+            String query = String.format(
+               "SELECT favoriteItems, phoneNum FROM Users WHERE login = '%s';",
+               login);
+            List<List<String>> result = esql.executeQueryAndReturnResult(query);
+            userProfile = result.get(0);
+         }
          String currentFavoriteItem = userProfile.get(0) != null ? userProfile.get(0) : "No favorite item set";
          String currentPhone = userProfile.get(1);
 
@@ -455,22 +1083,36 @@ public class PizzaStore {
          System.out.println("Phone Number: " + currentPhone + '\n');
       }
       catch (Exception e) {
+         FlightEvents.operationFailed(e);
          System.err.println("Error while viewing profile: " + e.getMessage());
       }
    }
 
-   public static void updateProfile(PizzaStore esql, String login) {
+   public static void updateProfile(PizzaStore esql, String token) {
       try {
+         SessionTokens.Session session = esql.authenticate(token);
+         String login = session.login;
+
          System.out.println("Please choose what you would like to update:");
          System.out.println("1. Update Favorite Item");
          System.out.println("2. Update Phone Number");
          System.out.println("3. Update Password");
          System.out.println("4. Exit update profile");
 
+         esql._dashboards.invalidate(login);
          switch(readChoice()) {
             case 1:
-               System.out.print("Enter new Favorite Item: ");
+               List<String> suggested = esql._popularItems.topItems(1);
+               if (suggested.isEmpty()) {
+                  System.out.print("Enter new Favorite Item: ");
+               }
+               else {
+                  System.out.print("Enter new Favorite Item (press enter for " + suggested.get(0) + "): ");
+               }
                String newFavoriteItem = in.readLine().trim();
+               if (newFavoriteItem.isEmpty() && !suggested.isEmpty()) {
+                  newFavoriteItem = suggested.get(0);
+               }
                String updateFavoriteItemQuery = String.format(
                   "UPDATE Users SET favoriteItems = '%s' WHERE login = '%s';",
                   newFavoriteItem, login);
@@ -514,6 +1156,7 @@ public class PizzaStore {
          }
       } // end of try
       catch (Exception e) {
+         FlightEvents.operationFailed(e);
          System.err.println("Error while updating profile: " + e.getMessage());
       }
    }
@@ -528,238 +1171,204 @@ public class PizzaStore {
          System.out.println("4. Filter display based on price (lowest->highest)");
          System.out.println("5. Filter display based on both type and price (highest->lowest)");
          System.out.println("6. Filter display based on both type and price (lowest->highest)");
-         System.out.println("7.. Exit view menu");
-         
-         String typeInput = "";
-         String[] types;
-
-         switch(readChoice()) {
-            case 1: // BASIC IMPLEMENTATION
-               String itemMenu = String.format(
-                  "SELECT * FROM Items;");
-               List<List<String>> result = esql.executeQueryAndReturnResult(itemMenu);
-         
-               if (result.isEmpty()) {
-                  System.out.println("The menu is currently empty.");
-                  return;
-               }
-               else {
-                  System.out.println("Full menu:");
-                  System.out.println("*******************************************************");
-
-                  for (List<String> row : result) {
-                     String itemName = row.get(0);
-                     String ingredients = row.get(1);
-                     String typeOfItem = row.get(2);
-                     String price = row.get(3);
-                     String description = row.get(4);
-                     System.out.println("(Item type: " + typeOfItem + ") " + itemName + " - $" + price);
-                     System.out.println("\tDescription: " + description);
-                     System.out.println("\t\tIngredients: " + ingredients);
-                  }
-                  System.out.println("*******************************************************");
-               } // end case 1 basic implementation
+         System.out.println("7. Search by ingredients (with optional type and price filters)");
+         System.out.println("8. Search by type, price range and name");
+         System.out.println("9. Exit view menu");
+
+         // options 1-6 and 8 are all one catalog search with different filters
+         List<String> types = null;
+         long minPrice = -1;
+         long maxPrice = -1;
+         String namePrefix = null;
+         boolean ascending = true;
+
+         int choice = readChoice();
+         switch(choice) {
+            case 1: // every item, cheapest first
                break;
 
             case 2: // filter based only on type
-               System.out.print("Enter food type to filter by (e.g., entree, drinks, sides). Separate with commas for multiple types: ");
-               typeInput = in.readLine().trim();
-               types = typeInput.split(",\\s*");
-
-               for (int i = 0; i < types.length; i++) {
-                  types[i] = types[i].toLowerCase();
-                  if (!(types[i].equalsIgnoreCase("entree") || types[i].equalsIgnoreCase("drinks") || types[i].equalsIgnoreCase("sides"))) {
-                     System.out.println("Invalid type entered: " + types[i] + ". Only 'entree', 'drinks', or 'sides' are allowed. Exiting view menu.");
-                     return;
-                  }
-               }
-
-               String typeQuery = String.format(
-                  "SELECT * FROM Items WHERE typeOfItem IN ('%s');",
-                  String.join("', '", types));
-               List<List<String>> typeResult = esql.executeQueryAndReturnResult(typeQuery);
-
-               if(typeResult.isEmpty()) {
-                  System.out.println("No items found for the specified type.");
+               types = readItemTypes(false);
+               if (types == null) {
+                  return;
                }
-               else {
-                  System.out.println("Menu filtered by: Item type (" + String.join(", ", types) + "):");
-                  System.out.println("*******************************************************");
-
-                  for (List<String> row : typeResult) {
-                     String itemName = row.get(0);
-                     String ingredients = row.get(1);
-                     String typeOfItem = row.get(2);
-                     String price = row.get(3);
-                     String description = row.get(4);
-                     System.out.println("(Item type: " + typeOfItem + ") " + itemName + " - $" + price);
-                     System.out.println("\t" + description);
-                     System.out.println("\t\t" + ingredients);
-                  }
-                  System.out.println("*******************************************************");
-               } // end case 2 type filter
                break;
 
             case 3: // filter based only on price highest->lowest
-               System.out.print("Enter the maximum price to filter by: ");
-               double maxPrice = Double.parseDouble(in.readLine().trim());
-
-               String priceQuery = String.format(
-                  "SELECT * FROM Items WHERE price <= %d ORDER BY price DESC;"
-                  , maxPrice);
-               List<List<String>> priceResult = esql.executeQueryAndReturnResult(priceQuery);
-
-               if (priceResult.isEmpty()) {
-                  System.out.println("No items found for the specified price range.");
-               }
-               else {
-                  System.out.println("Menu filtered by: Price <= $" + maxPrice + ":");
-                  System.out.println("*******************************************************");
-
-                  for (List<String> row : priceResult) {
-                     String itemName = row.get(0);
-                     String ingredients = row.get(1);
-                     String typeOfItem = row.get(2);
-                     String price = row.get(3);
-                     String description = row.get(4);
-                     System.out.println("(Item type: " + typeOfItem + ") " + itemName + " - $" + price);
-                     System.out.println("\t" + description);
-                     System.out.println("\t\t" + ingredients);
-                  }
-                  System.out.println("*******************************************************");
+            case 4: // filter based on price lowest->highest
+               maxPrice = readPriceFilter("Enter the maximum price to filter by: ", false);
+               if (maxPrice == INVALID_PRICE) {
+                  return;
                }
+               ascending = choice == 4;
                break;
 
-            case 4: // filter based on price lowest->highest
-               System.out.print("Enter the maximum price to filter by: ");
-               double maxPriceTwo = Double.parseDouble(in.readLine().trim());
-
-               String priceQueryTwo = String.format(
-                  "SELECT * FROM Items WHERE price <= %d ORDER BY price ASC;"
-                  , maxPriceTwo);
-               List<List<String>> priceResultTwo = esql.executeQueryAndReturnResult(priceQueryTwo);
-
-               if (priceResultTwo.isEmpty()) {
-                  System.out.println("No items found for the specified price range.");
+            case 5: // filter based on both type and price highest->lowest
+            case 6: // filter based on both type and price lowest->highest
+               types = readItemTypes(false);
+               if (types == null) {
+                  return;
                }
-               else {
-                  System.out.println("Menu filtered by: Price <= $" + maxPriceTwo + ":");
-                  System.out.println("*******************************************************");
-
-                  for (List<String> row : priceResultTwo) {
-                     String itemName = row.get(0);
-                     String ingredients = row.get(1);
-                     String typeOfItem = row.get(2);
-                     String price = row.get(3);
-                     String description = row.get(4);
-                     System.out.println("(Item type: " + typeOfItem + ") " + itemName + " - $" + price);
-                     System.out.println("\t" + description);
-                     System.out.println("\t\t" + ingredients);
-                  }
-                  System.out.println("*******************************************************");
+               maxPrice = readPriceFilter("Enter the maximum price to filter by: ", false);
+               if (maxPrice == INVALID_PRICE) {
+                  return;
                }
+               ascending = choice == 6;
                break;
 
-            case 5: // filter based on both type and price highest->lowest
-               System.out.print("Enter item type to filter by (e.g., entree, drinks, sides). Separate with commas for multiple types: ");
-               typeInput = in.readLine().trim();
-               types = typeInput.split(",\\s*");
-
-               for (int i = 0; i < types.length; i++) {
-                  types[i] = types[i].toLowerCase();
-                  if (!(types[i].equals("entree") || types[i].equals("drinks") || types[i].equals("sides"))) {
-                      System.out.println("Invalid type entered: " + types[i] + ". Only 'entree', 'drinks', or 'sides' are allowed. Exiting view menu.");
-                      return;
-                  }
+            case 7: // ingredient search, answered from the in-memory ingredient index
+               System.out.print("Enter ingredients separated by commas, prefix with 'not' to exclude (e.g., cheese, pepperoni, not gluten): ");
+               String expression = in.readLine().trim();
+               System.out.print("Enter item types separated by commas, or press enter for all types: ");
+               String typeInput = in.readLine().trim();
+               String[] searchTypes = typeInput.isEmpty() ? null : typeInput.split(",\\s*");
+               long searchMaxPrice = readPriceFilter("Enter the maximum price, or press enter for any price: ", true);
+               if (searchMaxPrice == INVALID_PRICE) {
+                  return;
                }
 
-               System.out.print("Enter the maximum price to filter by: ");
-               maxPrice = Double.parseDouble(in.readLine().trim());
+               List<List<String>> searchResult = esql._ingredientIndex.search(expression, searchTypes, searchMaxPrice);
 
-               String bothQuery = String.format(
-                  "SELECT * FROM Items WHERE typeOfItem IN ('%s') AND price <= %d ORDER BY price DESC;", 
-                  String.join("', '", types), maxPrice);
-               List<List<String>> bothResult = esql.executeQueryAndReturnResult(bothQuery);
-
-               if (bothResult.isEmpty()) {
-                  System.out.println("No items found for the specified filters.");
+               if (searchResult.isEmpty()) {
+                  System.out.println("No items found for the specified ingredients.");
                }
                else {
-                  System.out.println("Menu filtered by: Item Type (" + String.join(", ", types) + "), Price <= $" + maxPrice + ":");
-                  System.out.println("*******************************************************");
-                  for (List<String> row : bothResult) {
-                     String itemName = row.get(0);
-                     String ingredients = row.get(1);
-                     String typeOfItem = row.get(2);
-                     String price = row.get(3);
-                     String description = row.get(4);
-                     System.out.println("(Item type: " + typeOfItem + ") " + itemName + " - $" + price);
-                     System.out.println("\t" + description);
-                     System.out.println("\t\t" + ingredients);
-                  }
-                  System.out.println("*******************************************************");
+                  System.out.println("Menu filtered by: Ingredients (" + expression + "):");
+                  printMenuItems(searchResult);
                }
-               break;
-
-            case 6: // filter based on both type and price highest->lowest
-            System.out.print("Enter item type to filter by (e.g., entree, drinks, sides). Separate with commas for multiple types: ");
-            typeInput = in.readLine().trim();
-            types = typeInput.split(",\\s*");
+               return;
 
-            for (int i = 0; i < types.length; i++) {
-               types[i] = types[i].toLowerCase();
-               if (!(types[i].equals("entree") || types[i].equals("drinks") || types[i].equals("sides"))) {
-                   System.out.println("Invalid type entered: " + types[i] + ". Only 'entree', 'drinks', or 'sides' are allowed. Exiting view menu.");
-                   return;
+            case 8: // any combination of filters
+               types = readItemTypes(true);
+               if (types == null) {
+                  return;
                }
-            }
-
-            System.out.print("Enter the maximum price to filter by: ");
-            maxPrice = Double.parseDouble(in.readLine().trim());
-
-            String bothQueryTwo = String.format(
-               "SELECT * FROM Items WHERE typeOfItem IN ('%s') AND price <= %d ORDER BY price ASC;", 
-               String.join("', '", types), maxPrice);
-            List<List<String>> bothResultTwo = esql.executeQueryAndReturnResult(bothQueryTwo);
-
-            if (bothResultTwo.isEmpty()) {
-               System.out.println("No items found for the specified filters.");
-            }
-            else {
-               System.out.println("Menu filtered by: Item Type (" + String.join(", ", types) + "), Price <= $" + maxPrice + ":");
-               System.out.println("*******************************************************");
-               for (List<String> row : bothResultTwo) {
-                  String itemName = row.get(0);
-                  String ingredients = row.get(1);
-                  String typeOfItem = row.get(2);
-                  String price = row.get(3);
-                  String description = row.get(4);
-                  System.out.println("(Item type: " + typeOfItem + ") " + itemName + " - $" + price);
-                  System.out.println("\t" + description);
-                  System.out.println("\t\t" + ingredients);
+               minPrice = readPriceFilter("Enter the minimum price, or press enter for any price: ", true);
+               if (minPrice == INVALID_PRICE) {
+                  return;
                }
-               System.out.println("*******************************************************");
-            }
-            break;
+               maxPrice = readPriceFilter("Enter the maximum price, or press enter for any price: ", true);
+               if (maxPrice == INVALID_PRICE) {
+                  return;
+               }
+               System.out.print("Enter the start of the item name, or press enter for any name: ");
+               namePrefix = in.readLine().trim();
+               System.out.print("List the highest prices first? (y/n): ");
+               ascending = !in.readLine().trim().equalsIgnoreCase("y");
+               break;
 
-            case 7:
+            case 9:
                System.out.println("Exiting view menu.");
                return;
 
             default:
                System.out.println("Invalid choice. Please try again.");
-               break;
+               return;
          }
+         browseMenu(esql, new CatalogSearch(types, minPrice, maxPrice, namePrefix, ascending, CatalogSearch.DEFAULT_PAGE_SIZE));
       }catch (Exception e) {
+         FlightEvents.operationFailed(e);
          System.err.println("Error while viewing menu: " + e.getMessage());
       }
    }
 
+   /*
+   * Reads a price filter of viewMenu in cents
+   * @param optional whether an empty input means no limit
+   * @return the price, -1 for no limit, or INVALID_PRICE after reporting a
+   *         malformed or negative price
+   */
+   private static long readPriceFilter(String prompt, boolean optional) throws IOException {
+      System.out.print(prompt);
+      String priceInput = in.readLine().trim();
+      if (optional && priceInput.isEmpty()) {
+         return -1;
+      }
+      try {
+         long price = Pricing.parseCents(priceInput);
+         if (price >= 0) {
+            return price;
+         }
+      }catch (NumberFormatException e) {
+         // reported below.
+      }
+      System.out.println("Invalid price format. Exiting view menu.");
+      return INVALID_PRICE;
+   }
+
+   /*
+   * Reads a comma separated list of item types
+   * @return the types, empty if optional and none were entered, or null if
+   *         a type is invalid
+   */
+   private static List<String> readItemTypes(boolean optional) throws IOException {
+      System.out.print("Enter item type to filter by (e.g., entree, drinks, sides). Separate with commas for multiple types"
+         + (optional ? ", or press enter for all types: " : ": "));
+      String typeInput = in.readLine().trim();
+      List<String> types = new ArrayList<String>();
+      if (optional && typeInput.isEmpty()) {
+         return types;
+      }
+      for (String type : typeInput.split(",\\s*")) {
+         type = type.toLowerCase();
+         if (!(type.equals("entree") || type.equals("drinks") || type.equals("sides"))) {
+            System.out.println("Invalid type entered: " + type + ". Only 'entree', 'drinks', or 'sides' are allowed. Exiting view menu.");
+            return null;
+         }
+         types.add(type);
+      }
+      return types;
+   }
+
+   /*
+   * Shows the results of a catalog search a page at a time.
+   */
+   private static void browseMenu(PizzaStore esql, CatalogSearch search) throws Exception {
+      CatalogSearch.Page page = search.first(esql);
+      if (page.items.isEmpty()) {
+         System.out.println("No items found for the specified filters.");
+         return;
+      }
+      System.out.println("Menu filtered by: " + search.describe() + " (about " + search.estimateCount(esql) + " items):");
+      while (true) {
+         printMenuItems(page.items);
+         if (!page.hasMore) {
+            return;
+         }
+         System.out.print("Page " + page.number + ". Press enter for the next page, or type 'q' to stop: ");
+         String answer = in.readLine();
+         if (answer == null || answer.trim().equalsIgnoreCase("q")) {
+            return;
+         }
+         page = search.next(esql, page);
+      }
+   }
+
+   private static void printMenuItems(List<List<String>> items) {
+      System.out.println("*******************************************************");
+      for (List<String> row : items) {
+         String itemName = row.get(0);
+         String ingredients = row.get(1);
+         String typeOfItem = row.get(2);
+         String price = row.get(3);
+         String description = row.get(4);
+         System.out.println("(Item type: " + typeOfItem + ") " + itemName + " - $" + price);
+         System.out.println("\t" + description);
+         System.out.println("\t\t" + ingredients);
+      }
+      System.out.println("*******************************************************");
+   }
+
    // STORE (storeID!!,address,city,state,isOpen,reviewScore)
-   public static void placeOrder(PizzaStore esql, String login) {
+   public static void placeOrder(PizzaStore esql, String token) {
       try {
-         String storeQuery = "SELECT storeID, address, city, state FROM Store WHERE isOpen = true;";
-         List<List<String>> stores = esql.executeQueryAndReturnResult(storeQuery);
+         SessionTokens.Session session = esql.authenticate(token);
+         String login = session.login;
+
+         List<List<String>> stores = esql._dashboards.openStores(login);
+         if (stores == null) {
+            stores = openStores(esql);
+         }
           
          if (stores.isEmpty()) {
             System.out.println("Sorry, there are no open stores available to place an order.");
@@ -786,10 +1395,18 @@ public class PizzaStore {
   
          String selectedStoreID = stores.get(storeChoice - 1).get(0);
          System.out.println("You have selected store " + selectedStoreID + '.');
+
+         List<String> popular = esql._popularItems.topItems(selectedStoreID, 5);
+         if (popular.isEmpty()) {
+            popular = esql._popularItems.topItems(5);
+         }
+         if (!popular.isEmpty()) {
+            System.out.println("Popular right now: " + String.join(", ", popular));
+         }
          System.out.println("Loading menu");
          viewMenu(esql);
 
-         double totalOrderPrice = 0.0;
+         long subtotalCents = 0;
          String itemName = "";
          int itemQuantity = 0;
          List<List<String>> orderItems = new ArrayList<>();
@@ -812,8 +1429,8 @@ public class PizzaStore {
                continue;
             }
   
-            double itemPrice = Double.parseDouble(itemResults.get(0).get(0));
-            System.out.println("You have selected " + itemName + " - $" + itemPrice);
+            long itemPrice = Pricing.parseCents(itemResults.get(0).get(0));
+            System.out.println("You have selected " + itemName + " - $" + Pricing.formatCents(itemPrice));
             System.out.print("Enter the quantity you want to order: ");
             itemQuantity = Integer.parseInt(in.readLine().trim());
   
@@ -822,47 +1439,26 @@ public class PizzaStore {
                continue;
             }
   
-            double itemTotalPrice = itemPrice * itemQuantity;
-            totalOrderPrice += itemTotalPrice;
+            subtotalCents += Pricing.lineTotal(itemPrice, itemQuantity);
   
             System.out.println("Added " + itemQuantity + " of " + itemName + " to your order.");
-            System.out.println("Total so far: $" + totalOrderPrice);
+            System.out.println("Total so far: $" + Pricing.formatCents(subtotalCents));
   
-            orderItems.add(Arrays.asList(itemName, String.valueOf(itemQuantity)));
+            orderItems.add(Arrays.asList(itemName, String.valueOf(itemQuantity), String.valueOf(itemPrice)));
   
          }while (true);
   
-         if (totalOrderPrice > 0) {
-            System.out.println("Total order price: $" + totalOrderPrice);
+         if (subtotalCents > 0) {
+            long totalOrderPrice = esql._pricing.orderTotal(Integer.parseInt(selectedStoreID), subtotalCents);
+            if (totalOrderPrice != subtotalCents) {
+               System.out.println("Subtotal: $" + Pricing.formatCents(subtotalCents) + " (store tax and discounts applied)");
+            }
+            System.out.println("Total order price: $" + Pricing.formatCents(totalOrderPrice));
             System.out.print("Enter 'yes' to confirm your order: ");
             String confirmation = in.readLine().trim();
               
             if (confirmation.equalsIgnoreCase("yes")) {
-               String lastOrderQuery = "SELECT MAX(orderID) FROM FoodOrder;";
-               List<List<String>> lastOrderResult = esql.executeQueryAndReturnResult(lastOrderQuery);
-  
-               int orderID = 10000; // default starting orderID is used if there is no order in FoodOrder
-               if (lastOrderResult.get(0).get(0) != null) {
-                  orderID = Integer.parseInt(lastOrderResult.get(0).get(0)) + 1;
-               }
-  
-               String orderTimestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-               String orderStatus = "incomplete";
-  
-               String insertOrderQuery = String.format(
-                  "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) VALUES (%d, '%s', '%s', %d, '%s', '%s');",
-                  orderID, login, selectedStoreID, totalOrderPrice, orderTimestamp, orderStatus);
-               esql.executeUpdate(insertOrderQuery);
-  
-               for (List<String> orderItem : orderItems) {
-                  String itemNameInOrder = orderItem.get(0);
-                  int quantityInOrder = Integer.parseInt(orderItem.get(1));
-  
-                  String insertItemsInOrderQuery = String.format(
-                     "INSERT INTO ItemsInOrder (orderID, itemName, quantity) VALUES (%d, '%s', %d);",
-                     orderID, itemNameInOrder, quantityInOrder);
-                  esql.executeUpdate(insertItemsInOrderQuery);
-               }
+               submitOrder(esql, login, selectedStoreID, totalOrderPrice, orderItems);
                System.out.println("Order confirmed! Thank you for your purchase.");
             }else {
                System.out.println("Order cancelled.");
@@ -872,24 +1468,277 @@ public class PizzaStore {
             System.out.println("No items selected. Exiting order process.");
          }
       }catch (Exception e) {
+         FlightEvents.operationFailed(e);
          System.err.println("Error while placing order: " + e.getMessage());
       }
   }
   
   
-   public static void viewAllOrders(PizzaStore esql, String login) {
+   /*
+   * Places a previous order or the user's favorite items again in one step,
+   * at the same store or a chosen one, with current prices.
+   */
+   public static void reorder(PizzaStore esql, String token) {
       try {
-         String roleQuery = String.format(
-            "SELECT role FROM Users WHERE login = '%s';",
-            login);
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
+         SessionTokens.Session session = esql.authenticate(token);
+         String login = session.login;
+
+         System.out.println("What would you like to reorder?");
+         System.out.println("1. A previous order");
+         System.out.println("2. My favorite items");
+         System.out.println("3. Exit reorder");
+
+         // (itemName, quantity)
+         List<List<String>> lines = new ArrayList<List<String>>();
+         String previousStoreID = null;
+         switch(readChoice()) {
+            case 1:
+               List<List<String>> recent = esql._dashboards.recentOrders(login);
+               if (recent == null) {
+                  recent = recentOrders(esql, login);
+               }
+               if (recent.isEmpty()) {
+                  System.out.println("You have no previous orders to reorder.");
+                  return;
+               }
+               System.out.println("Order ID\t| Store ID\t| Total Price\t| Order Timestamp");
+               for (List<String> order : recent) {
+                  System.out.println(order.get(0) + "\t| " + order.get(1) + "\t| $" + order.get(2) + "\t| " + order.get(3));
+               }
+               System.out.print("Enter the orderID to reorder: ");
+               int orderID = Integer.parseInt(in.readLine().trim());
+
+               // the store and the items of the order in one round trip
+               String previousQuery = String.format(
+                  "SELECT F.storeID, I.itemName, I.quantity FROM FoodOrder F " +
+                  "JOIN ItemsInOrder I ON I.orderID = F.orderID AND I.orderTimestamp = F.orderTimestamp " +
+                  "WHERE F.orderID = %d AND F.login = '%s';",
+                  orderID, login);
+               List<List<String>> previous = esql._orderShards.queryOrder(orderID, previousQuery).rows;
+               if (previous.isEmpty()) {
+                  System.out.println("Invalid orderID. Exiting reorder.");
+                  return;
+               }
+               previousStoreID = previous.get(0).get(0).trim();
+               for (List<String> row : previous) {
+                  lines.add(Arrays.asList(row.get(1).trim(), row.get(2)));
+               }
+               break;
+
+            case 2:
+               List<String> profile = esql._dashboards.profile(login);
+               if (profile == null) {
+                  profile = esql.executeQueryAndReturnResult(String.format(
+                     "SELECT favoriteItems FROM Users WHERE login = '%s';",
+                     login)).get(0);
+               }
+               Map<String, Integer> favorites = new LinkedHashMap<String, Integer>();
+               if (profile.get(0) != null) {
+                  for (String favorite : profile.get(0).split(",")) {
+                     if (!favorite.trim().isEmpty()) {
+                        favorites.merge(favorite.trim(), 1, Integer::sum);
+                     }
+                  }
+               }
+               if (favorites.isEmpty()) {
+                  System.out.println("You have no favorite items set. Set them with Update Profile.");
+                  return;
+               }
+               for (Map.Entry<String, Integer> favorite : favorites.entrySet()) {
+                  lines.add(Arrays.asList(favorite.getKey(), String.valueOf(favorite.getValue())));
+               }
+               break;
+
+            case 3:
+               System.out.println("Exiting reorder.");
+               return;
+
+            default:
+               System.out.println("Invalid choice. Please try again.");
+               return;
+         }
 
-         if (roleResult.isEmpty()) {
-            System.out.println("User not found.");
+         List<List<String>> stores = esql._dashboards.openStores(login);
+         if (stores == null) {
+            stores = openStores(esql);
+         }
+         boolean previousOpen = false;
+         for (List<String> store : stores) {
+            previousOpen |= store.get(0).trim().equals(previousStoreID);
+         }
+         if (previousOpen) {
+            System.out.print("Enter the storeID to order from (press enter for store " + previousStoreID + "): ");
+         }
+         else {
+            if (previousStoreID != null) {
+               System.out.println("Store " + previousStoreID + " is closed right now.");
+            }
+            System.out.println("Open stores:");
+            for (List<String> store : stores) {
+               System.out.println(store.get(0) + ". " + store.get(1) + ", " + store.get(2) + ", " + store.get(3));
+            }
+            System.out.print("Enter the storeID to order from: ");
+         }
+         String selectedStoreID = in.readLine().trim();
+         if (selectedStoreID.isEmpty() && previousOpen) {
+            selectedStoreID = previousStoreID;
+         }
+         boolean open = false;
+         for (List<String> store : stores) {
+            open |= store.get(0).trim().equals(selectedStoreID);
+         }
+         if (!open) {
+            System.out.println("Invalid store selection. Exiting reorder.");
             return;
          }
 
-         String userRole = roleResult.get(0).get(0);
+         // the order is priced from Items so a menu change made elsewhere is honored
+         List<Object> itemNames = new ArrayList<Object>();
+         for (List<String> line : lines) {
+            itemNames.add(line.get(0));
+         }
+         Map<String, Long> prices = new HashMap<String, Long>();
+         for (List<String> row : esql.executeQueryAndReturnResult(
+               "SELECT itemName, price FROM Items WHERE itemName IN (" +
+               String.join(", ", Collections.nCopies(itemNames.size(), "?")) + ");", itemNames)) {
+            prices.put(row.get(0).trim(), Pricing.parseCents(row.get(1)));
+         }
+         List<List<String>> orderItems = new ArrayList<List<String>>();
+         long subtotalCents = 0;
+         for (List<String> line : lines) {
+            Long itemPrice = prices.get(line.get(0));
+            if (itemPrice == null) {
+               System.out.println(line.get(0) + " is no longer on the menu and is left out.");
+               continue;
+            }
+            int quantity = Integer.parseInt(line.get(1).trim());
+            subtotalCents += Pricing.lineTotal(itemPrice, quantity);
+            orderItems.add(Arrays.asList(line.get(0), String.valueOf(quantity), String.valueOf(itemPrice)));
+            System.out.println(quantity + " x " + line.get(0) + " - $" + Pricing.formatCents(itemPrice));
+         }
+         if (orderItems.isEmpty()) {
+            System.out.println("None of these items are on the menu anymore. Exiting reorder.");
+            return;
+         }
+
+         long totalOrderPrice = esql._pricing.orderTotal(Integer.parseInt(selectedStoreID), subtotalCents);
+         if (totalOrderPrice != subtotalCents) {
+            System.out.println("Subtotal: $" + Pricing.formatCents(subtotalCents) + " (store tax and discounts applied)");
+         }
+         System.out.println("Total order price: $" + Pricing.formatCents(totalOrderPrice));
+         System.out.print("Enter 'yes' to confirm your order: ");
+         if (in.readLine().trim().equalsIgnoreCase("yes")) {
+            int orderID = submitOrder(esql, login, selectedStoreID, totalOrderPrice, orderItems);
+            System.out.println("Order " + orderID + " confirmed! Thank you for your purchase.");
+         }
+         else {
+            System.out.println("Order cancelled.");
+         }
+      }catch (Exception e) {
+         FlightEvents.operationFailed(e);
+         System.err.println("Error while reordering: " + e.getMessage());
+      }
+   }
+
+   /*
+   * Writes a confirmed order and its items to the shard owning the store and
+   * updates the sales rollups and popular items. With the order journal on,
+   * the order is journaled and acknowledged right away, and the journal
+   * replayer writes it to the database.
+   * @param orderItems the order lines as (itemName, quantity, unit price in cents)
+   * @return the new orderID
+   */
+   public static int submitOrder(PizzaStore esql, String login, String selectedStoreID,
+                                 long totalOrderPrice, List<List<String>> orderItems) throws Exception {
+      // the order goes to the shard that owns the store
+      int shard = esql._orderShards.shardForStore(Integer.parseInt(selectedStoreID));
+      String orderTimestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+      int orderID;
+
+      // the stock is taken in memory first and given back if the order is not stored
+      StoreInventory.Reservation reservation = esql._inventory.reserve(
+         Integer.parseInt(selectedStoreID), orderItems, esql._ingredientIndex);
+      boolean stored = false;
+      try {
+         // without a running journal replayer with orderIDs the order is placed directly
+         if (esql._orderJournal != null && esql._orderJournal.isAvailable(shard)) {
+            // the journal gives the stock back if the database rejects the order later
+            orderID = esql._orderJournal.append(shard, login, selectedStoreID, orderTimestamp, totalOrderPrice,
+               orderItems, reservation);
+            stored = true;
+         }
+         else {
+            orderID = esql._orderShards.nextOrderID(shard);
+
+            // the order, its items and the sales rollups are written as one transaction. The
+            // rollups live in the main database, so for the other shards they follow the commit.
+            esql._orderShards.beginTransaction(shard);
+            try {
+               for (String statement : orderStatements(orderID, login, selectedStoreID, totalOrderPrice, orderTimestamp, orderItems)) {
+                  esql._orderShards.executeUpdate(shard, statement);
+               }
+               if (shard == 0) {
+                  SalesRollups.recordOrder(esql, selectedStoreID, orderTimestamp, totalOrderPrice, orderItems);
+               }
+               esql._orderShards.commitTransaction(shard);
+               stored = true;
+            }catch (Exception e) {
+               esql._orderShards.rollbackTransaction(shard);
+               throw e;
+            }
+            if (shard != 0) {
+               SalesRollups.recordOrder(esql, selectedStoreID, orderTimestamp, totalOrderPrice, orderItems);
+            }
+         }
+      }catch (Exception e) {
+         if (!stored) {
+            esql._inventory.release(reservation);
+         }
+         throw e;
+      }
+      esql._popularItems.recordOrder(selectedStoreID, System.currentTimeMillis(), orderItems);
+      esql._orderRates.recordOrder(Integer.parseInt(selectedStoreID), totalOrderPrice);
+      esql._dashboards.invalidate(login);
+      return orderID;
+   }
+
+   /*
+   * Builds the FoodOrder and ItemsInOrder inserts of an order; all the items
+   * go in one multi-row insert
+   * @param orderItems the order lines as (itemName, quantity, unit price in cents)
+   */
+   public static List<String> orderStatements(int orderID, String login, String storeID, long totalOrderPrice,
+                                              String orderTimestamp, List<List<String>> orderItems) {
+      List<String> statements = new ArrayList<String>();
+      statements.add(String.format(
+         "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) VALUES (%d, '%s', '%s', %s, '%s', '%s');",
+         orderID, login, storeID, Pricing.formatCents(totalOrderPrice), orderTimestamp, "incomplete"));
+
+      if (orderItems.isEmpty()) {
+         return statements;
+      }
+      StringBuilder itemsInsert = new StringBuilder(
+         "INSERT INTO ItemsInOrder (orderID, itemName, quantity, orderTimestamp) VALUES ");
+      for (List<String> orderItem : orderItems) {
+         String itemNameInOrder = orderItem.get(0);
+         int quantityInOrder = Integer.parseInt(orderItem.get(1));
+
+         if (itemsInsert.charAt(itemsInsert.length() - 1) == ')') {
+            itemsInsert.append(", ");
+         }
+         itemsInsert.append(String.format("(%d, '%s', %d, '%s')",
+            orderID, itemNameInOrder, quantityInOrder, orderTimestamp));
+      }
+      statements.add(itemsInsert.append(';').toString());
+      return statements;
+   }
+
+   public static void viewAllOrders(PizzaStore esql, String token) {
+      try {
+         SessionTokens.Session session = esql.authenticate(token);
+         String login = session.login;
+
+         String userRole = session.role;
          String orderQuery = "";
          
          if (userRole.equalsIgnoreCase("customer")) {
@@ -897,7 +1746,7 @@ public class PizzaStore {
             System.out.println("Order ID\t| Store ID\t| Total Price\tOrder Timestamp\t| Order Status");
             System.out.println("*******************************************************");
             orderQuery = String.format(
-               "SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '%s';",
+               "SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp;",
                login);
          }
          else if (userRole.equalsIgnoreCase("manager") || userRole.equalsIgnoreCase("driver")) {
@@ -918,7 +1767,7 @@ public class PizzaStore {
             System.out.println("Order ID\t| Store ID\t| Total Price\tOrder Timestamp\t| Order Status");
             System.out.println("*******************************************************");
             orderQuery = String.format(
-               "SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '%s';",
+               "SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp;",
                viewLogin);
          }
          else {
@@ -926,7 +1775,8 @@ public class PizzaStore {
             return;
          }
 
-         List<List<String>> orderResults = esql.executeQueryAndReturnResult(orderQuery);
+         // scatter to every order shard and merge by orderTimestamp
+         List<List<String>> orderResults = esql._orderShards.queryAllByTimestamp(orderQuery, 3, false, 0);
 
          if (orderResults.isEmpty()) {
             System.out.println("No orders found.");
@@ -948,32 +1798,24 @@ public class PizzaStore {
          }
          System.out.println("*******************************************************");
       }catch (Exception e) {
+         FlightEvents.operationFailed(e);
          System.err.println("Error while viewing all orders: " + e.getMessage());
       }
    }
 
-   public static void viewRecentOrders(PizzaStore esql, String login) {
+   public static void viewRecentOrders(PizzaStore esql, String token) {
       try {
-         String roleQuery = String.format(
-            "SELECT role FROM Users WHERE login = '%s';",
-            login);
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
-
-         if (roleResult.isEmpty()) {
-            System.out.println("User not found.");
-            return;
-         }
+         SessionTokens.Session session = esql.authenticate(token);
+         String login = session.login;
 
-         String userRole = roleResult.get(0).get(0);
-         String orderQuery = "";
+         String userRole = session.role;
+         String historyLogin = "";
          
          if (userRole.equalsIgnoreCase("customer")) {
             System.out.println(login + "'s 5 most recent orderIDs:\n");
             System.out.println("Order ID\t| Store ID\t| Total Price\tOrder Timestamp\t| Order Status");
             System.out.println("*******************************************************");
-            orderQuery = String.format(
-               "SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC LIMIT 5;",
-               login);
+            historyLogin = login;
          }
          else if (userRole.equalsIgnoreCase("manager") || userRole.equalsIgnoreCase("driver")) {
             System.out.print("Enter the login of the user to view their recent 5 orderID history: ");
@@ -992,16 +1834,17 @@ public class PizzaStore {
             System.out.println(viewLogin + "'s' 5 most recent orderIDs:\n");
             System.out.println("Order ID\t\t| Store ID\t| Total Price\tOrder Timestamp\t| Order Status");
             System.out.println("*******************************************************");
-            orderQuery = String.format(
-               "SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC LIMIT 5;",
-               viewLogin);
+            historyLogin = viewLogin;
          }
          else {
             System.out.println("Invalid role assignment. Exiting view recent orders.");
             return;
          }
 
-         List<List<String>> orderResults = esql.executeQueryAndReturnResult(orderQuery);
+         List<List<String>> orderResults = historyLogin.equals(login) ? esql._dashboards.recentOrders(login) : null;
+         if (orderResults == null) {
+            orderResults = recentOrders(esql, historyLogin);
+         }
 
          if (orderResults.isEmpty()) {
             System.out.println("No orders found.");
@@ -1023,94 +1866,152 @@ public class PizzaStore {
          }
          System.out.println("*******************************************************");
       }catch (Exception e) {
+         FlightEvents.operationFailed(e);
          System.err.println("Error while viewing recent order: " + e.getMessage());
       }
    }
 
-   public static void viewOrderInfo(PizzaStore esql, String login) {
-      try {
-         String roleQuery = String.format(
-            "SELECT role FROM Users WHERE login = '%s';",
-            login);
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
-
-         if (roleResult.isEmpty()) {
-            System.out.println("User not found.");
-            return;
-         }
-
-         String userRole = roleResult.get(0).get(0);
-         String orderQuery = "";
-         String orderID = "";
-         int queryNum = 0;
-
-         if (userRole.equalsIgnoreCase("customer")) {
-            System.out.print("Enter the orderID to view its details: ");
-            orderID = in.readLine().trim();
-
-            orderQuery = String.format(
-               "SELECT orderTimestamp, totalPrice, orderStatus FROM FoodOrder WHERE login = '%s' AND orderID = '%s';",
-               login, orderID);
+   /*
+   * Finds the 5 most recent orders of a user on every order shard
+   * @return (orderID, storeID, totalPrice, orderTimestamp, orderStatus) rows, newest first
+   */
+   public static List<List<String>> recentOrders(PizzaStore esql, String historyLogin) throws SQLException {
+      // the newest monthly partitions are searched first; the full history is only
+      // scanned when the user has fewer than 5 orders in them
+      String orderQuery = String.format(
+         "SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '%s' " +
+         "AND orderTimestamp >= date_trunc('month', now()) - INTERVAL '2 months' ORDER BY orderTimestamp DESC LIMIT 5;",
+         historyLogin);
+      // each shard returns its own 5 most recent orders; the merge keeps the overall 5
+      List<List<String>> orderResults = esql._orderShards.queryAllByTimestamp(orderQuery, 3, true, 5);
+
+      if (orderResults.size() < 5) {
+         orderQuery = String.format(
+            "SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC LIMIT 5;",
+            historyLogin);
+         orderResults = esql._orderShards.queryAllByTimestamp(orderQuery, 3, true, 5);
+      }
+      return orderResults;
+   }
 
-            queryNum = esql.executeQuery(orderQuery);
-            
-            if (queryNum == 0) {
-               System.out.println("Invalid role access or orderID. Exiting view order info.");
-               return;
+   /*
+   * Lists the stores orders can be placed at, from the store cache once
+   * it is loaded
+   * @return (storeID, address, city, state) rows
+   */
+   public static List<List<String>> openStores(PizzaStore esql) throws SQLException {
+      List<List<String>> stores = esql._stores;
+      if (stores != null) {
+         List<List<String>> open = new ArrayList<List<String>>();
+         for (List<String> store : stores) {
+            if (store.get(4).equals("yes")) {
+               open.add(store.subList(0, 4));
             }
          }
-         else if (userRole.equalsIgnoreCase("manager") || userRole.equalsIgnoreCase("driver")) {
-            System.out.print("Enter the orderID to view its details: ");
-            orderID = in.readLine().trim();
+         return open;
+      }
+      String storeQuery = "SELECT storeID, address, city, state FROM Store WHERE isOpen = 'yes';";
+      return esql.executeQueryAndReturnResult(storeQuery);
+   }
 
-            orderQuery = String.format(
-               "SELECT orderTimestamp, totalPrice, orderStatus FROM FoodOrder WHERE orderID = '%s';",
-               orderID);
-            
-            queryNum = esql.executeQuery(orderQuery);
+   public static void viewOrderInfo(PizzaStore esql, String token) {
+      try {
+         SessionTokens.Session session = esql.authenticate(token);
+         String login = session.login;
 
-            if (queryNum == 0) {
-               System.out.println("Invalid orderID. Exiting view order info.");
-               return;
-            }
+         String userRole = session.role;
+         String customerLogin = null;
+
+         if (userRole.equalsIgnoreCase("customer")) {
+            customerLogin = login;
          }
-         else {
+         else if (!userRole.equalsIgnoreCase("manager") && !userRole.equalsIgnoreCase("driver")) {
             System.out.println("Invalid role assignment. Exiting view order info.");
             return;
          }
 
-         List<List<String>> orderResults = esql.executeQueryAndReturnResult(orderQuery);
+         System.out.print("Enter the orderID to view its details: ");
+         int orderID = Integer.parseInt(in.readLine().trim());
 
-         // orderID,login,storeID,totalPrice,"orderTimestamp",orderStatus
-         String orderTimestamp = orderResults.get(0).get(0);
-         String totalPrice = orderResults.get(0).get(1);
-         String orderStatus = orderResults.get(0).get(2);
+         OrderDetailCache.Detail order = orderDetail(esql, orderID, customerLogin);
+         if (order == null) {
+            System.out.println(customerLogin != null ?
+               "Invalid role access or orderID. Exiting view order info." :
+               "Invalid orderID. Exiting view order info.");
+            return;
+         }
 
-         System.out.println("Order Timestamp: " + orderTimestamp);
-         System.out.println("Total Price: $" + totalPrice);
-         System.out.println("Order Status: " + orderStatus); 
+         System.out.println("Order Timestamp: " + order.orderTimestamp);
+         System.out.println("Total Price: $" + order.totalPrice);
+         System.out.println("Order Status: " + order.orderStatus + (order.archived ? " (archived)" : ""));
          System.out.println("*******************************************************");
 
-         String itemsQuery = String.format(
-            "SELECT itemName, quantity FROM ItemsInOrder WHERE orderID = '%s';",
-            orderID);
-         List<List<String>> itemsResults = esql.executeQueryAndReturnResult(itemsQuery);
-
          System.out.println("Items in this order:\n");
          System.out.println("Item Name\t| Quantity");
          System.out.println("*******************************************************");
 
-         for (List<String> item : itemsResults) {
+         for (List<String> item : order.items) {
             String itemName = item.get(0);
             String quantity = item.get(1);
             System.out.println(itemName + "\t| " + quantity);
          }
          System.out.println("*******************************************************");
       }catch (Exception e) {
+         FlightEvents.operationFailed(e);
          System.err.println("Error while viewing order info: " + e.getMessage());
       }
    }
 
+   /*
+   * Fetches the header and items of an order in one round trip, from the
+   * order detail cache, its shard or the order archive
+   * @param customerLogin the only login whose order may be returned, or null for any
+   * @return the order, or null if it does not exist or belongs to someone else
+   */
+   public static OrderDetailCache.Detail orderDetail(PizzaStore esql, int orderID, String customerLogin)
+      throws SQLException {
+      OrderDetailCache.Detail order = esql._orderDetails.get(orderID);
+
+      if (order == null) {
+         // orderID,login,storeID,totalPrice,"orderTimestamp",orderStatus joined with its items;
+         // an order without items still returns its header with null item columns
+         String detailQuery = String.format(
+            "SELECT F.login, F.orderTimestamp, F.totalPrice, F.orderStatus, I.itemName, I.quantity " +
+            "FROM FoodOrder F LEFT JOIN ItemsInOrder I ON I.orderID = F.orderID AND I.orderTimestamp = F.orderTimestamp " +
+            "WHERE F.orderID = %d%s;",
+            orderID, customerLogin == null ? "" : String.format(" AND F.login = '%s'", customerLogin));
+         List<List<String>> rows = esql._orderShards.queryOrder(orderID, detailQuery).rows;
+
+         if (!rows.isEmpty()) {
+            List<List<String>> items = new ArrayList<List<String>>();
+            for (List<String> row : rows) {
+               if (row.get(4) != null) {
+                  items.add(row.subList(4, 6));
+               }
+            }
+            List<String> header = rows.get(0);
+            order = new OrderDetailCache.Detail(orderID, header.get(0), header.get(1), header.get(2), header.get(3),
+               false, items);
+         }
+         else {
+            // orderID,login,storeID,totalPrice,"orderTimestamp",orderStatus followed by the items
+            List<List<String>> archived = esql._orderArchiver.lookup(orderID);
+            if (archived == null) {
+               return null;
+            }
+            List<String> header = archived.get(0);
+            order = new OrderDetailCache.Detail(orderID, header.get(1), header.get(4), header.get(3), header.get(5),
+               true, archived.subList(1, archived.size()));
+         }
+         esql._orderDetails.put(order);
+      }
+
+      if (customerLogin != null && !customerLogin.equals(order.login)) {
+         return null;
+      }
+      return order;
+   }
+
    // storeID,address,city,state,isOpen,reviewScore
    public static void viewStores(PizzaStore esql) { // CHECK IF GOOD
       try {
@@ -1140,20 +2041,73 @@ public class PizzaStore {
                storeID, address, city, state, isOpen, reviewScore));
          }
       }catch (Exception e) {
+         FlightEvents.operationFailed(e);
          System.err.println("Error while viewing store: " + e.getMessage());
       }
    }
 
-   public static void updateOrderStatus(PizzaStore esql, String login) { // drivers and managers only
+   /*
+   * Flips an order between incomplete and complete on its shard and keeps
+   * the sales rollups in step
+   * @return the new status, or null if there is no such order
+   */
+   public static String toggleOrderStatus(PizzaStore esql, String orderID) throws Exception {
+      // orderID,login,storeID,totalPrice,"orderTimestamp",orderStatus
+      String orderQuery = String.format(
+         "SELECT orderStatus, storeID, orderTimestamp, login FROM FoodOrder WHERE orderID = '%s';",
+         orderID);
+      OrderShards.OrderRows order = esql._orderShards.queryOrder(Integer.parseInt(orderID), orderQuery);
+      int shard = order.shard;
+      List<List<String>> orderResult = order.rows;
+
+      if (orderResult.isEmpty()) {
+         return null;
+      }
+
+      String orderStatus = orderResult.get(0).get(0).trim();
+      String storeID = orderResult.get(0).get(1);
+      String orderTimestamp = orderResult.get(0).get(2);
+      String login = orderResult.get(0).get(3);
+
+      if (orderStatus.equalsIgnoreCase("incomplete")) {
+         orderStatus = "complete";
+      }
+      else { // if orderStatus = "complete"
+         orderStatus = "incomplete";
+      }
+
+      String changeQuery = String.format(
+         "UPDATE FoodOrder SET orderStatus = '%s' WHERE orderID = '%s';",
+         orderStatus, orderID);
+
+      esql._orderShards.beginTransaction(shard);
       try {
-         String roleQuery = String.format(
-            "SELECT role FROM Users WHERE login = '%s';",
-            login);
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
+         esql._orderShards.executeUpdate(shard, changeQuery);
+         if (shard == 0) {
+            SalesRollups.recordStatusChange(esql, storeID, orderTimestamp, orderStatus.equals("complete"));
+         }
+         esql._orderShards.commitTransaction(shard);
+      }catch (Exception e) {
+         esql._orderShards.rollbackTransaction(shard);
+         throw e;
+      }
+      if (shard != 0) {
+         SalesRollups.recordStatusChange(esql, storeID, orderTimestamp, orderStatus.equals("complete"));
+      }
+      // the order may be on anyone's prefetched recent orders
+      esql._dashboards.invalidateAll();
+      esql._orderDetails.invalidate(Integer.parseInt(orderID));
+      esql._statusEvents.publishLocal(Integer.parseInt(orderID), login.trim(), storeID, orderStatus);
+      return orderStatus;
+   }
 
-         String userRole = roleResult.get(0).get(0);
+   public static void updateOrderStatus(PizzaStore esql, String token) { // drivers and managers only
+      try {
+         SessionTokens.Session session = esql.authenticate(token);
+         String userRole = session.role;
 
-         if (!userRole.equalsIgnoreCase("manager") || !userRole.equalsIgnoreCase("driver")) {
+         if (!userRole.equalsIgnoreCase("manager") && !userRole.equalsIgnoreCase("driver")) {
+            FlightEvents.operationDenied();
             System.out.println("Invalid role access. Exiting update user.");
             return;
          }
@@ -1161,47 +2115,26 @@ public class PizzaStore {
          System.out.print("Enter the orderID of the order whose status you wish to update: ");
          String orderID = in.readLine().trim();
 
-         // orderID,login,storeID,totalPrice,"orderTimestamp",orderStatus
-         String orderQuery = String.format(
-            "SELECT orderStatus FROM FoodOrder WHERE orderID = '%s';",
-            orderID);
-         List<List<String>> orderResult = esql.executeQueryAndReturnResult(orderQuery);
-
-         if (orderResult.isEmpty()) {
+         String orderStatus = toggleOrderStatus(esql, orderID);
+         if (orderStatus == null) {
             System.out.println("Invalid orderID. Exiting update order status.");
             return;
          }
 
-         String orderStatus = orderResult.get(0).get(0);
-
-         if (orderStatus.equalsIgnoreCase("incomplete")) {
-            orderStatus = "complete";
-         }
-         else { // if orderStatus = "complete"
-            orderStatus = "incomplete";
-         }
-
-         String changeQuery = String.format(
-            "UPDATE FoodOrder SET orderStatus = '%s' WHERE orderID = '%s';",
-            orderStatus, orderID);
-         esql.executeUpdate(changeQuery);
-
          System.out.println("OrderID " + orderID + "'s status has been changed to " + orderStatus + '.');
       }catch (Exception e) {
+         FlightEvents.operationFailed(e);
          System.err.println("Error while updating order status: " + e.getMessage());
       }
    }
 
-   public static void updateMenu(PizzaStore esql, String login) { // manager only
+   public static void updateMenu(PizzaStore esql, String token) { // manager only
       try {
-         String roleQuery = String.format(
-            "SELECT role FROM Users WHERE login = '%s';",
-            login);
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
-
-         String userRole = roleResult.get(0).get(0);
+         SessionTokens.Session session = esql.authenticate(token);
+         String userRole = session.role;
 
          if (!userRole.equalsIgnoreCase("manager")) {
+            FlightEvents.operationDenied();
             System.out.println("Invalid role access. Exiting update user.");
             return;
          }
@@ -1214,7 +2147,9 @@ public class PizzaStore {
          System.out.println("5. Update an item's type");
          System.out.println("6. Update an item's price");
          System.out.println("7. Update an item's description");
-         System.out.println("8. Exit update order status");
+         System.out.println("8. Export the menu to a CSV file");
+         System.out.println("9. Import the menu from a CSV file");
+         System.out.println("10. Exit update order status");
 
          // itemName!!,"ingredients",typeOfItem,price,"description"
          switch(readChoice()) {
@@ -1238,13 +2173,22 @@ public class PizzaStore {
                String typeOfItem = in.readLine().trim();
                System.out.print("Enter the price for item " + itemName + ": ");
                String price = in.readLine().trim();
+
+               try {
+                  price = Pricing.formatCents(Pricing.parseCents(price));
+               }catch (NumberFormatException e) {
+                  System.out.println("Invalid price format. Exiting update menu.");
+                  return;
+               }
+
                System.out.print("Enter the description for item " + itemName + ": ");
                String description = in.readLine().trim();
 
                String createQuery = String.format(
-                  "INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES ('%s', '%s', '%s', %d, '%s');",
+                  "INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES ('%s', '%s', '%s', %s, '%s');",
                   itemName, ingredients, typeOfItem, price, description);
                esql.executeUpdate(createQuery);
+               esql._ingredientIndex.put(itemName, ingredients, typeOfItem, price, description);
 
                System.out.println("Successfully added new item " + itemName + " to the menu!!");
                break;
@@ -1268,6 +2212,7 @@ public class PizzaStore {
                   "DELETE FROM Items WHERE itemName = '%s';",
                   remove);
                esql.executeUpdate(removeQuery);
+               esql._ingredientIndex.remove(remove);
 
                System.out.println("Item " + remove + " successfully removed from the menu.");
                break;
@@ -1303,6 +2248,7 @@ public class PizzaStore {
                   "UPDATE Items SET itemName = '%s' WHERE itemName = '%s';",
                   newName, updateName);
                esql.executeUpdate(updateNewNameQuery);
+               esql._ingredientIndex.update(updateName, 0, newName);
 
                System.out.println("Successfully updated the name of item " + updateName + '!');
                break;
@@ -1328,6 +2274,7 @@ public class PizzaStore {
                   "UPDATE Items SET ingredients = '%s' WHERE itemName = '%s';",
                   newIngredients, updateIngredientsName);
                esql.executeUpdate(updateIngredientsItemQuery);
+               esql._ingredientIndex.update(updateIngredientsName, 1, newIngredients);
 
                System.out.println("Successfully updated the ingredients of item " + updateIngredientsName + '!');
                break;
@@ -1353,6 +2300,7 @@ public class PizzaStore {
                   "UPDATE Items SET typeOfItem = '%s' WHERE itemName = '%s';",
                   newType, updateTypeName);
                esql.executeUpdate(updateItemTypeQuery);
+               esql._ingredientIndex.update(updateTypeName, 2, newType);
 
                System.out.println("Successfully updated the type of item " + updateTypeName + '!');
                break;
@@ -1375,16 +2323,17 @@ public class PizzaStore {
                String newPrice = in.readLine().trim();
 
                try {
-                  double checkPrice = Double.parseDouble(newPrice);
+                  newPrice = Pricing.formatCents(Pricing.parseCents(newPrice));
                }catch (NumberFormatException e) {
                   System.out.println("Invalid price format. Exiting update menu.");
                   return;
                }
 
                String updateItemPriceQuery = String.format(
-                  "UPDATE Items SET price = %d WHERE itemName = '%s';",
-                  Double.parseDouble(newPrice), updatePriceName);
+                  "UPDATE Items SET price = %s WHERE itemName = '%s';",
+                  newPrice, updatePriceName);
                esql.executeUpdate(updateItemPriceQuery);
+               esql._ingredientIndex.update(updatePriceName, 3, newPrice);
 
                System.out.println("Successfully updated the price of item " + updatePriceName + '!');
                break;
@@ -1410,11 +2359,20 @@ public class PizzaStore {
                   "UPDATE Items SET description = '%s' WHERE itemName = '%s';",
                   newDescription, updateDescriptionName);
                esql.executeUpdate(updateItemDescriptionQuery);
+               esql._ingredientIndex.update(updateDescriptionName, 4, newDescription);
 
                System.out.println("Successfully updated the description of item " + updateDescriptionName + "!");
                break;
 
-            case 8: // exit
+            case 8: // export
+               MenuTransfer.transferMenu(esql, false);
+               break;
+
+            case 9: // import
+               MenuTransfer.transferMenu(esql, true);
+               break;
+
+            case 10: // exit
                System.out.println("Exiting update menu.");
                break;
 
@@ -1423,20 +2381,20 @@ public class PizzaStore {
                return;
          }
       }catch (Exception e) {
+         FlightEvents.operationFailed(e);
          System.err.println("Error while updating menu: " + e.getMessage());
       }
    }
 
-   public static void updateUser(PizzaStore esql, String login) { // DONE
+   public static void updateUser(PizzaStore esql, String token) { // DONE
       try {
-         String roleQuery = String.format(
-            "SELECT role FROM Users WHERE login = '%s';",
-            login);
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
+         SessionTokens.Session session = esql.authenticate(token);
+         String login = session.login;
 
-         String userRole = roleResult.get(0).get(0);
+         String userRole = session.role;
 
          if (!userRole.equalsIgnoreCase("manager")) {
+            FlightEvents.operationDenied();
             System.out.println("Invalid role access. Exiting update user.");
             return;
          }
@@ -1485,6 +2443,8 @@ public class PizzaStore {
                      "UPDATE Users SET login = '%s' WHERE login = '%s';",
                      newLogin, mLogin);
                   esql.executeUpdate(updateLogin);
+                  esql._sessionTokens.revokeLogin(mLogin);
+                  esql._dashboards.invalidate(mLogin);
                   System.out.println("Login updated successfully!");
                   return;
 
@@ -1492,12 +2452,12 @@ public class PizzaStore {
                   System.out.print("Enter new Role: ");
                   String newRole = in.readLine().trim();
 
-                  if (!newRole.equalsIgnoreCase("customer") || !newRole.equalsIgnoreCase("driver") || !newRole.equalsIgnoreCase("manager")) { // check for valid role assignment
+                  if (!newRole.equalsIgnoreCase("customer") && !newRole.equalsIgnoreCase("driver") && !newRole.equalsIgnoreCase("manager")) { // check for valid role assignment
                      System.out.println("Invalid role assignment. Role has not been changed. Exiting update user.");
                      return;
                   }
 
-                  if (newRole.equalsIgnoreCase(mResult.get(0).get(1))) { // trying to assign to the same role assignment that they already had
+                  if (newRole.equalsIgnoreCase(mResult.get(0).get(1).trim())) { // trying to assign to the same role assignment that they already had
                      System.out.println(String.format(
                         "'%s' has already been assigned the '%s' role. Role has not been changed. Exiting update profile.",
                         mLogin, newRole));
@@ -1505,9 +2465,11 @@ public class PizzaStore {
                   }
 
                   String updateRole = String.format(
-                     "UPDATE Users SET role '%s' WHERE login = '%s';",
+                     "UPDATE Users SET role = '%s' WHERE login = '%s';",
                      newRole, mLogin);
                   esql.executeUpdate(updateRole);
+                  esql._sessionTokens.revokeLogin(mLogin);
+                  esql._dashboards.invalidate(mLogin);
                   System.out.println("Role updated successfully!");
                   return;
 
@@ -1521,9 +2483,10 @@ public class PizzaStore {
             }
          }
          else { // manager updating their own profile
-            updateProfile(esql, login);
+            updateProfile(esql, token);
          }
       }catch (Exception e) {
+         FlightEvents.operationFailed(e);
          System.err.println("Error while updating user: " + e.getMessage());
       }
    }
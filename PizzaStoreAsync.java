@@ -0,0 +1,407 @@
+/*
+ * Asynchronous API for the PizzaStore user interface
+ * ==================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * This class exposes the PizzaStore operations as CompletableFuture results
+ * for systems that embed the store instead of driving the menu. Nothing is
+ * printed; each operation returns its rows or result, and fails its future
+ * with a SecurityException for a bad token or role, an
+ * IllegalArgumentException for bad input, or the SQLException of the
+ * statement that failed.
+ *
+ * Operations run on virtual threads where the JVM has them and on a cached
+ * daemon pool otherwise. Read-only operations run concurrently with each
+ * other; mutating operations share the facade's connections and their
+ * transactions, so they run one at a time and never alongside a read. The
+ * facade opens connections of its own to every order shard on first use, so
+ * its statements never join a transaction of the console.
+ * Every operation has a timeout after which its future fails with a
+ * TimeoutException. The rest of the timeout once the operation starts is
+ * its deadline, and a statement still running when it passes is cancelled.
+ *
+ */
+public class PizzaStoreAsync {
+
+   // default timeouts of read-only and mutating operations
+   public static final long DEFAULT_READ_TIMEOUT_MILLIS = 5000;
+   public static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 15000;
+
+   // Items columns in table order, as used by IngredientIndex.update
+   private static final String[] ITEM_COLUMNS = { "itemName", "ingredients", "typeOfItem", "price", "description" };
+
+   private final PizzaStore esql;
+   private final ExecutorService executor;
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+   private final Map<String, Long> timeouts = new ConcurrentHashMap<String, Long>();
+   private List<Connection> connections;
+
+   public PizzaStoreAsync(PizzaStore esql) {
+      this.esql = esql;
+      this.executor = newExecutor("pizzastore-async");
+   }
+
+   /**
+    * Overrides the timeout of one operation, named after its method.
+    */
+   public void setTimeout(String operation, long timeoutMillis) {
+      timeouts.put(operation, timeoutMillis);
+   }
+
+   /**
+    * Checks a login and password.
+    *
+    * @return a future of the session token, or of null for wrong credentials
+    */
+   public CompletableFuture<String> logIn(String login, String password) {
+      return submit("logIn", null, false, session -> PizzaStore.authenticateUser(esql, login, password));
+   }
+
+   /**
+    * Reads one page of a catalog search, in the Items column layout.
+    *
+    * @param previous the page read last, or null for the first page
+    */
+   public CompletableFuture<CatalogSearch.Page> menu(CatalogSearch search, CatalogSearch.Page previous) {
+      return submit("menu", null, false, session -> search.next(esql, previous));
+   }
+
+   /**
+    * Lists every store as (storeID, address, city, state, isOpen, reviewScore).
+    */
+   public CompletableFuture<List<List<String>>> stores() {
+      return submit("stores", null, false, session -> esql.executeQueryAndReturnResult(
+         "SELECT storeID, address, city, state, isOpen, reviewScore FROM Store;"));
+   }
+
+   /**
+    * Places an order at an open store.
+    *
+    * @param items the quantity to order by item name
+    * @return a future of the new orderID
+    */
+   public CompletableFuture<Integer> placeOrder(String token, String storeID, Map<String, Integer> items) {
+      return submit("placeOrder", token, true, session -> {
+         if (items.isEmpty()) {
+            throw new IllegalArgumentException("An order needs at least one item.");
+         }
+         int store = Integer.parseInt(storeID);
+
+         String storeQuery = String.format(
+            "SELECT storeID FROM Store WHERE storeID = '%d' AND isOpen = 'yes';",
+            store);
+         if (esql.executeQuery(storeQuery) == 0) {
+            throw new IllegalArgumentException("Store " + storeID + " does not exist or is closed.");
+         }
+
+         // the item names come from the caller and are bound, never spliced into the SQL
+         List<Object> itemNames = new ArrayList<Object>(items.keySet());
+         String priceQuery = "SELECT itemName, price FROM Items WHERE itemName IN (" +
+            String.join(", ", Collections.nCopies(itemNames.size(), "?")) + ");";
+         Map<String, Long> prices = new HashMap<String, Long>();
+         for (List<String> row : esql.executeQueryAndReturnResult(priceQuery, itemNames)) {
+            prices.put(row.get(0), Pricing.parseCents(row.get(1)));
+         }
+
+         List<List<String>> orderItems = new ArrayList<List<String>>();
+         long subtotalCents = 0;
+         for (Map.Entry<String, Integer> item : items.entrySet()) {
+            Long priceCents = prices.get(item.getKey());
+            if (priceCents == null) {
+               throw new IllegalArgumentException("There is no item " + item.getKey() + " in the menu.");
+            }
+            if (item.getValue() <= 0) {
+               throw new IllegalArgumentException("Invalid quantity for item " + item.getKey() + '.');
+            }
+            subtotalCents += Pricing.lineTotal(priceCents, item.getValue());
+            orderItems.add(new ArrayList<String>(List.of(
+               item.getKey(), String.valueOf(item.getValue()), String.valueOf(priceCents))));
+         }
+
+         long totalOrderPrice = esql.pricing().orderTotal(store, subtotalCents);
+         return PizzaStore.submitOrder(esql, session.login, String.valueOf(store), totalOrderPrice, orderItems);
+      });
+   }
+
+   /**
+    * Lists a user's orders, newest first, as
+    * (orderID, storeID, totalPrice, orderTimestamp, orderStatus).
+    * Customers may only list their own orders.
+    *
+    * @param login the user whose orders are listed
+    * @param limit the number of orders to return, or 0 for all
+    */
+   public CompletableFuture<List<List<String>>> orderHistory(String token, String login, int limit) {
+      return submit("orderHistory", token, false, session -> {
+         if (session.role.equalsIgnoreCase("customer") && !session.login.equals(login)) {
+            throw new SecurityException("Customers may only view their own orders.");
+         }
+         String orderQuery = String.format(
+            "SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC%s;",
+            escape(login), limit > 0 ? " LIMIT " + limit : "");
+         return esql.orderShards().queryAllByTimestamp(orderQuery, 3, true, limit);
+      });
+   }
+
+   /**
+    * Looks up one order, archived orders included. Customers may only see
+    * their own orders.
+    *
+    * @return a future of the order, or of null if there is no such order
+    */
+   public CompletableFuture<OrderDetailCache.Detail> orderInfo(String token, int orderID) {
+      return submit("orderInfo", token, false, session -> PizzaStore.orderDetail(esql, orderID,
+         session.role.equalsIgnoreCase("customer") ? session.login : null));
+   }
+
+   /**
+    * Flips an order between incomplete and complete. Drivers and managers only.
+    *
+    * @return a future of the new status, or of null if there is no such order
+    */
+   public CompletableFuture<String> updateOrderStatus(String token, int orderID) {
+      return submit("updateOrderStatus", token, true, session -> {
+         requireRole(session, "manager", "driver");
+         return PizzaStore.toggleOrderStatus(esql, String.valueOf(orderID));
+      });
+   }
+
+   /**
+    * Adds an item to the menu. Managers only.
+    */
+   public CompletableFuture<Void> addMenuItem(String token, String itemName, String ingredients,
+                                              String typeOfItem, long priceCents, String description) {
+      return submit("addMenuItem", token, true, session -> {
+         requireRole(session, "manager");
+         String price = Pricing.formatCents(priceCents);
+         esql.executeUpdate(String.format(
+            "INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES ('%s', '%s', '%s', %s, '%s');",
+            escape(itemName), escape(ingredients), escape(typeOfItem), price, escape(description)));
+         esql.ingredientIndex().put(itemName, ingredients, typeOfItem, price, description);
+         return null;
+      });
+   }
+
+   /**
+    * Removes an item from the menu. Managers only.
+    *
+    * @return a future of true if the item existed
+    */
+   public CompletableFuture<Boolean> removeMenuItem(String token, String itemName) {
+      return submit("removeMenuItem", token, true, session -> {
+         requireRole(session, "manager");
+         if (esql.executeQuery(String.format("SELECT itemName FROM Items WHERE itemName = '%s';", escape(itemName))) == 0) {
+            return false;
+         }
+         esql.executeUpdate(String.format("DELETE FROM Items WHERE itemName = '%s';", escape(itemName)));
+         esql.ingredientIndex().remove(itemName);
+         return true;
+      });
+   }
+
+   /**
+    * Changes one column of a menu item. Managers only.
+    *
+    * @param column one of itemName, ingredients, typeOfItem, price, description
+    * @return a future of true if the item existed
+    */
+   public CompletableFuture<Boolean> updateMenuItem(String token, String itemName, String column, String value) {
+      return submit("updateMenuItem", token, true, session -> {
+         requireRole(session, "manager");
+         int index = List.of(ITEM_COLUMNS).indexOf(column);
+         if (index < 0) {
+            throw new IllegalArgumentException("Unknown menu column " + column + '.');
+         }
+         String newValue = index == 3 ? Pricing.formatCents(Pricing.parseCents(value)) : value;
+
+         if (esql.executeQuery(String.format("SELECT itemName FROM Items WHERE itemName = '%s';", escape(itemName))) == 0) {
+            return false;
+         }
+         esql.executeUpdate(String.format(
+            index == 3 ? "UPDATE Items SET %s = %s WHERE itemName = '%s';" : "UPDATE Items SET %s = '%s' WHERE itemName = '%s';",
+            column, escape(newValue), escape(itemName)));
+         esql.ingredientIndex().update(itemName, index, newValue);
+         return true;
+      });
+   }
+
+   /**
+    * Changes another user's login. Managers only. Every session of the
+    * user is revoked.
+    *
+    * @return a future of true if the user existed and the new login was free
+    */
+   public CompletableFuture<Boolean> updateUserLogin(String token, String login, String newLogin) {
+      return submit("updateUserLogin", token, true, session -> {
+         requireRole(session, "manager");
+         if (esql.executeQuery(String.format("SELECT login FROM Users WHERE login = '%s';", escape(login))) == 0 ||
+             esql.executeQuery(String.format("SELECT login FROM Users WHERE login = '%s';", escape(newLogin))) != 0) {
+            return false;
+         }
+         esql.executeUpdate(String.format("UPDATE Users SET login = '%s' WHERE login = '%s';", escape(newLogin), escape(login)));
+         esql.sessionTokens().revokeLogin(login);
+         esql.dashboards().invalidate(login);
+         return true;
+      });
+   }
+
+   /**
+    * Changes a user's role. Managers only. Every session of the user is
+    * revoked.
+    *
+    * @return a future of true if the user existed
+    */
+   public CompletableFuture<Boolean> updateUserRole(String token, String login, String role) {
+      return submit("updateUserRole", token, true, session -> {
+         requireRole(session, "manager");
+         if (!role.equalsIgnoreCase("customer") && !role.equalsIgnoreCase("driver") && !role.equalsIgnoreCase("manager")) {
+            throw new IllegalArgumentException("Invalid role " + role + '.');
+         }
+         if (esql.executeQuery(String.format("SELECT login FROM Users WHERE login = '%s';", escape(login))) == 0) {
+            return false;
+         }
+         esql.executeUpdate(String.format("UPDATE Users SET role = '%s' WHERE login = '%s';", escape(role), escape(login)));
+         esql.sessionTokens().revokeLogin(login);
+         esql.dashboards().invalidate(login);
+         return true;
+      });
+   }
+
+   /**
+    * Stops accepting operations and closes the facade's connections once
+    * the running operations have finished.
+    */
+   public void close() {
+      executor.shutdown();
+      lock.writeLock().lock();
+      try {
+         synchronized (this) {
+            if (connections != null) {
+               for (Connection connection : connections) {
+                  connection.close();
+               }
+            }
+         }
+      }catch (SQLException e) {
+         // ignored.
+      }finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   /*
+   * The facade's own connections to every order shard, opened on first use.
+   */
+   private synchronized List<Connection> connections() throws SQLException {
+      if (connections == null || connections.get(0).isClosed()) {
+         connections = esql.orderShards().connectAll();
+      }
+      return connections;
+   }
+
+   /**
+    * An operation body, given the verified session of its token (null for
+    * operations that need no login).
+    */
+   private interface Operation<T> {
+      T run(SessionTokens.Session session) throws Exception;
+   }
+
+   /*
+   * Runs an operation on the executor under the shared or exclusive lock,
+   * with the routing of the calling user, and fails its future after the
+   * operation's timeout. What is left of the timeout once the lock is held
+   * becomes the operation's deadline, so its statements are cancelled
+   * rather than left running after the future failed.
+   */
+   private <T> CompletableFuture<T> submit(String name, String token, boolean mutating, Operation<T> operation) {
+      long defaultTimeout = mutating ? DEFAULT_WRITE_TIMEOUT_MILLIS : DEFAULT_READ_TIMEOUT_MILLIS;
+      long timeoutMillis = timeouts.getOrDefault(name, defaultTimeout);
+      long submitted = System.nanoTime();
+
+      CompletableFuture<T> future = CompletableFuture.supplyAsync(() -> {
+         Lock held = mutating ? lock.writeLock() : lock.readLock();
+         held.lock();
+         FlightEvents.UserOperation event = FlightEvents.beginOperation(name, null);
+         Deadline deadline = Deadline.begin(name,
+            Math.max(1, timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submitted)));
+         try {
+            esql.useConnections(connections());
+            SessionTokens.Session session = token == null ? null : esql.authenticate(token);
+            event.role = session == null ? null : session.role;
+            esql.beginOperation(session == null ? null : session.login, mutating);
+            return operation.run(session);
+         }catch (SecurityException e) {
+            FlightEvents.operationDenied();
+            throw e;
+         }catch (RuntimeException e) {
+            FlightEvents.operationFailed(e);
+            throw e;
+         }catch (Exception e) {
+            FlightEvents.operationFailed(e);
+            throw new CompletionException(e);
+         }finally {
+            esql.useConnections(null);
+            Deadline.end(deadline);
+            FlightEvents.endOperation(event);
+            held.unlock();
+         }
+      }, executor);
+      return future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+   }
+
+   private static void requireRole(SessionTokens.Session session, String... roles) {
+      for (String role : roles) {
+         if (session.role.equalsIgnoreCase(role)) {
+            return;
+         }
+      }
+      throw new SecurityException("Invalid role access for " + session.login + '.');
+   }
+
+   // the callers' strings go between single quotes in the SQL, so their quotes are doubled
+   private static String escape(String value) {
+      return value == null ? null : value.replace("'", "''");
+   }
+
+   /**
+    * Returns an executor with a thread per task: virtual threads when the
+    * JVM provides them (Java 21+), looked up reflectively so the class still
+    * builds on older JDKs, and cached daemon threads otherwise.
+    *
+    * @param threadName the name of the fallback platform threads
+    */
+   static ExecutorService newExecutor(String threadName) {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }catch (ReflectiveOperationException e) {
+         return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, threadName);
+            thread.setDaemon(true);
+            return thread;
+         });
+      }
+   }
+}
@@ -0,0 +1,232 @@
+/*
+ * Popular items for the PizzaStore user interface
+ * ===============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * This class keeps a live "most ordered items" list per store and for the
+ * whole chain. Each list is a Space-Saving heavy-hitter summary with a fixed
+ * number of counters, so memory is bounded no matter how many orders are
+ * recorded. Quantities are weighted with forward exponential decay so that
+ * an order loses half of its weight every half-life, and each summary keeps
+ * a sorted snapshot that top-k queries read without doing any work.
+ *
+ */
+public class PopularItems {
+
+   // number of counters kept per summary; top-k queries must ask for at most this many
+   public static final int DEFAULT_CAPACITY = 32;
+
+   // default half-life of an order's weight
+   public static final long DEFAULT_HALF_LIFE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+   // rescale every counter once the decayed weights get this large
+   private static final double RESCALE_THRESHOLD = 1e100;
+
+   private final int capacity;
+   private final double halfLifeMillis;
+   private long landmarkMillis;
+
+   private final Summary global;
+   private final Map<String, Summary> byStore = new HashMap<String, Summary>();
+
+   /**
+    * Creates an empty set of summaries.
+    *
+    * @param capacity the number of counters per summary
+    * @param halfLifeMillis the decay half-life, or 0 to disable decay
+    */
+   public PopularItems(int capacity, long halfLifeMillis) {
+      this.capacity = capacity;
+      this.halfLifeMillis = halfLifeMillis;
+      this.landmarkMillis = System.currentTimeMillis();
+      this.global = new Summary(capacity);
+   }
+
+   public PopularItems() {
+      this(DEFAULT_CAPACITY, DEFAULT_HALF_LIFE_MILLIS);
+   }
+
+   /**
+    * Adds the lines of a committed order to the store and chain summaries.
+    *
+    * @param storeID the store the order was placed at
+    * @param orderMillis the order time in epoch milliseconds
+    * @param orderItems the order lines; element 0 is the item name and
+    *        element 1 the quantity
+    */
+   public synchronized void recordOrder(String storeID, long orderMillis, List<List<String>> orderItems) {
+      Summary store = storeSummary(storeID);
+      for (List<String> orderItem : orderItems) {
+         double weight = weight(orderMillis) * Integer.parseInt(orderItem.get(1));
+         global.offer(orderItem.get(0), weight);
+         store.offer(orderItem.get(0), weight);
+      }
+      global.publish();
+      store.publish();
+   }
+
+   /**
+    * Returns the k most ordered items of the chain, most popular first.
+    */
+   public List<String> topItems(int k) {
+      return global.top(k);
+   }
+
+   /**
+    * Returns the k most ordered items of a store, most popular first.
+    * An empty list is returned for a store with no recorded orders.
+    */
+   public List<String> topItems(String storeID, int k) {
+      Summary store;
+      synchronized (this) {
+         store = byStore.get(storeID);
+      }
+      return store == null ? Collections.<String>emptyList() : store.top(k);
+   }
+
+   /**
+    * Seeds the summaries from the existing ItemsInOrder history of every
+    * order shard over the last few half-lives; older orders would carry
+    * almost no weight anyway.
+    *
+    * @throws java.sql.SQLException when the history query failed
+    */
+   public void seed(PizzaStore esql) throws SQLException {
+      long windowMillis = halfLifeMillis > 0 ? (long) (halfLifeMillis * 8) : Long.MAX_VALUE / 2;
+      Timestamp since = new Timestamp(System.currentTimeMillis() - windowMillis);
+
+      String historyQuery = String.format(
+         "SELECT F.storeID, I.itemName, CAST(F.orderTimestamp AS date), SUM(I.quantity) " +
+         "FROM ItemsInOrder I JOIN FoodOrder F ON F.orderID = I.orderID " +
+         "WHERE F.orderTimestamp >= '%s' " +
+         "GROUP BY F.storeID, I.itemName, CAST(F.orderTimestamp AS date);",
+         since);
+      List<List<String>> history = esql.orderShards().queryAll(historyQuery);
+
+      synchronized (this) {
+         for (List<String> row : history) {
+            long dayMillis = java.sql.Date.valueOf(row.get(2)).getTime();
+            double weight = weight(dayMillis) * Long.parseLong(row.get(3));
+            global.offer(row.get(1), weight);
+            storeSummary(row.get(0)).offer(row.get(1), weight);
+         }
+         global.publish();
+         for (Summary store : byStore.values()) {
+            store.publish();
+         }
+      }
+   }
+
+   private Summary storeSummary(String storeID) {
+      Summary store = byStore.get(storeID);
+      if (store == null) {
+         store = new Summary(capacity);
+         byStore.put(storeID, store);
+      }
+      return store;
+   }
+
+   /*
+   * Forward decay weight of an event at the given time relative to the
+   * landmark. Weights grow over time instead of old counts shrinking, and
+   * every counter is rescaled when they get too large.
+   */
+   private double weight(long eventMillis) {
+      if (halfLifeMillis <= 0) {
+         return 1.0;
+      }
+      double weight = Math.pow(2.0, (eventMillis - landmarkMillis) / halfLifeMillis);
+      if (weight > RESCALE_THRESHOLD) {
+         double scale = 1.0 / weight;
+         global.rescale(scale);
+         for (Summary store : byStore.values()) {
+            store.rescale(scale);
+         }
+         landmarkMillis = eventMillis;
+         weight = 1.0;
+      }
+      return weight;
+   }
+
+   /**
+    * A Space-Saving summary over a fixed number of counters. When a new item
+    * arrives and every counter is taken, the smallest counter is reassigned
+    * to it and keeps its count as the item's overestimate.
+    */
+   private static class Summary {
+      private final String[] items;
+      private final double[] counts;
+      private final Map<String, Integer> slots;
+      private int size = 0;
+
+      // sorted item names, replaced as a whole so readers need no lock
+      private volatile List<String> snapshot = Collections.emptyList();
+
+      Summary(int capacity) {
+         this.items = new String[capacity];
+         this.counts = new double[capacity];
+         this.slots = new HashMap<String, Integer>(capacity * 2);
+      }
+
+      void offer(String item, double weight) {
+         Integer slot = slots.get(item);
+         if (slot == null) {
+            if (size < items.length) {
+               slot = size++;
+            }
+            else {
+               slot = 0;
+               for (int i = 1; i < size; i++) {
+                  if (counts[i] < counts[slot]) {
+                     slot = i;
+                  }
+               }
+               slots.remove(items[slot]);
+            }
+            items[slot] = item;
+            slots.put(item, slot);
+         }
+         counts[slot] += weight;
+      }
+
+      void rescale(double scale) {
+         for (int i = 0; i < size; i++) {
+            counts[i] *= scale;
+         }
+      }
+
+      void publish() {
+         Integer[] order = new Integer[size];
+         for (int i = 0; i < size; i++) {
+            order[i] = i;
+         }
+         Arrays.sort(order, (a, b) -> Double.compare(counts[b], counts[a]));
+
+         List<String> sorted = new ArrayList<String>(size);
+         for (Integer i : order) {
+            sorted.add(items[i]);
+         }
+         snapshot = Collections.unmodifiableList(sorted);
+      }
+
+      List<String> top(int k) {
+         List<String> current = snapshot;
+         return k >= current.size() ? current : current.subList(0, k);
+      }
+   }
+}
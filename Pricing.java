@@ -0,0 +1,167 @@
+/*
+ * Pricing engine for the PizzaStore user interface
+ * ================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+
+
+/**
+ * This class does all money arithmetic for PizzaStore in long cents, from
+ * the decimal(10,2) columns to the INSERT statements, so no amount ever
+ * goes through a double. Line totals, order totals and the optional
+ * per-store tax and discount rules from StorePricing work on primitives
+ * only and do not allocate.
+ *
+ */
+public class Pricing {
+
+   // per-store rules indexed by storeID; a store without a row pays no tax and gets no discount
+   private int[] taxBasisPoints = new int[0];
+   private int[] discountBasisPoints = new int[0];
+   private long[] discountMinimumCents = new long[0];
+
+   /**
+    * Loads the per-store tax and discount rules from StorePricing.
+    *
+    * @throws java.sql.SQLException when the rules query failed
+    */
+   public void load(PizzaStore esql) throws SQLException {
+      load(esql.executeQueryAndReturnResult(
+         "SELECT storeID, taxRateBps, discountBps, discountMinimum FROM StorePricing;"));
+   }
+
+   /**
+    * Replaces the rules with the given (storeID, taxRateBps, discountBps,
+    * discountMinimum) rows.
+    */
+   public void load(List<List<String>> rules) {
+      int maxStoreID = -1;
+      for (List<String> rule : rules) {
+         maxStoreID = Math.max(maxStoreID, Integer.parseInt(rule.get(0)));
+      }
+
+      int[] tax = new int[maxStoreID + 1];
+      int[] discount = new int[maxStoreID + 1];
+      long[] minimum = new long[maxStoreID + 1];
+      for (List<String> rule : rules) {
+         int storeID = Integer.parseInt(rule.get(0));
+         tax[storeID] = Integer.parseInt(rule.get(1));
+         discount[storeID] = Integer.parseInt(rule.get(2));
+         minimum[storeID] = parseCents(rule.get(3));
+      }
+
+      synchronized (this) {
+         taxBasisPoints = tax;
+         discountBasisPoints = discount;
+         discountMinimumCents = minimum;
+      }
+   }
+
+   /**
+    * Returns the total of one order line.
+    *
+    * @throws java.lang.ArithmeticException when the total overflows
+    */
+   public static long lineTotal(long unitCents, int quantity) {
+      return Math.multiplyExact(unitCents, (long) quantity);
+   }
+
+   /**
+    * Returns the amount charged for an order at a store: the subtotal less
+    * the store's discount, when the subtotal reaches the discount minimum,
+    * plus the store's tax on the discounted amount.
+    */
+   public synchronized long orderTotal(int storeID, long subtotalCents) {
+      long total = subtotalCents;
+      if (storeID >= 0 && storeID < taxBasisPoints.length) {
+         if (discountBasisPoints[storeID] > 0 && subtotalCents >= discountMinimumCents[storeID]) {
+            total -= basisPoints(subtotalCents, discountBasisPoints[storeID]);
+         }
+         total += basisPoints(total, taxBasisPoints[storeID]);
+      }
+      return total;
+   }
+
+   /*
+   * Applies a rate in basis points (1/100 of a percent), rounding half up.
+   */
+   private static long basisPoints(long cents, int rate) {
+      return (Math.multiplyExact(cents, (long) rate) + 5000) / 10000;
+   }
+
+   /**
+    * Parses a decimal amount such as "9.99", "10" or " 10.5" into cents
+    * without going through a double.
+    *
+    * @throws java.lang.NumberFormatException when the amount is not a
+    *         decimal with at most two fractional digits
+    */
+   public static long parseCents(String amount) {
+      int start = 0;
+      int end = amount.length();
+      while (start < end && amount.charAt(start) <= ' ') {
+         start++;
+      }
+      while (end > start && amount.charAt(end - 1) <= ' ') {
+         end--;
+      }
+
+      boolean negative = false;
+      if (start < end && (amount.charAt(start) == '-' || amount.charAt(start) == '+')) {
+         negative = amount.charAt(start) == '-';
+         start++;
+      }
+
+      long whole = 0;
+      long fraction = 0;
+      int fractionDigits = -1;
+      boolean digits = false;
+      for (int i = start; i < end; i++) {
+         char c = amount.charAt(i);
+         if (c == '.' && fractionDigits < 0) {
+            fractionDigits = 0;
+         }
+         else if (c >= '0' && c <= '9') {
+            digits = true;
+            if (fractionDigits < 0) {
+               whole = Math.addExact(Math.multiplyExact(whole, 10L), c - '0');
+            }
+            else if (fractionDigits < 2) {
+               fraction = fraction * 10 + (c - '0');
+               fractionDigits++;
+            }
+            else if (c != '0') {
+               throw new NumberFormatException("More than two decimal places: " + amount);
+            }
+         }
+         else {
+            throw new NumberFormatException("Invalid amount: " + amount);
+         }
+      }
+      if (!digits) {
+         throw new NumberFormatException("Invalid amount: " + amount);
+      }
+      if (fractionDigits == 1) {
+         fraction *= 10;
+      }
+
+      long cents = Math.addExact(Math.multiplyExact(whole, 100L), fraction);
+      return negative ? -cents : cents;
+   }
+
+   /**
+    * Formats cents as a plain decimal such as "9.99", suitable both for
+    * display and as a numeric SQL literal.
+    */
+   public static String formatCents(long cents) {
+      long abs = Math.abs(cents);
+      long fraction = abs % 100;
+      return (cents < 0 ? "-" : "") + (abs / 100) + (fraction < 10 ? ".0" : ".") + fraction;
+   }
+}
@@ -0,0 +1,204 @@
+/*
+ * Read query coalescing for the PizzaStore user interface
+ * =======================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+
+/**
+ * This class collapses identical read queries that run at the same time
+ * into one. The first caller of a query issues it; callers that ask for
+ * the same SQL and parameters on the same connection while it is still
+ * running wait for it and share its result, which is handed out as an
+ * immutable ColumnarResult. Nothing is kept once the query has finished,
+ * so this is not a cache.
+ *
+ * Only plain SELECTs outside of transactions are coalesced. Every write
+ * through PizzaStore starts a new generation, and a query only joins one
+ * issued in its own generation, so a user never gets a result that was
+ * read before their own write. A follower waits no longer than its own
+ * deadline allows, and a follower whose leader failed or is too slow
+ * issues the query itself. A result is only made immutable when another
+ * caller shares it.
+ *
+ * The queries issued are counted in total; the SQL template of a query is
+ * only worked out when it was shared, so the counts per template cover the
+ * shared queries and the callers that joined them.
+ *
+ */
+public class QueryCoalescer {
+
+   private static final Pattern READ_ONLY = Pattern.compile("^\\s*(?i:select)\\b");
+   private static final Pattern LOCKING = Pattern.compile("(?i)\\bfor\\s+(?:update|share|no\\s+key\\s+update|key\\s+share)\\b|\\bnextval\\s*\\(");
+
+   private final ConcurrentHashMap<List<Object>, Flight> inFlight = new ConcurrentHashMap<List<Object>, Flight>();
+   private final ConcurrentHashMap<String, Counts> counts = new ConcurrentHashMap<String, Counts>();
+   private final LongAdder issued = new LongAdder();
+   private final AtomicLong generation = new AtomicLong();
+
+   /**
+    * A query to run if no identical one is in flight.
+    */
+   public interface Query {
+      List<List<String>> run() throws SQLException;
+   }
+
+   /**
+    * The shared queries issued and the callers that joined them, for one
+    * SQL template.
+    */
+   public static final class Counts {
+      public final LongAdder issued = new LongAdder();
+      public final LongAdder coalesced = new LongAdder();
+   }
+
+   /*
+   * A query in flight and the number of callers waiting for it. Once the
+   * leader has its result the count is closed with -1 and no one joins.
+   */
+   private static final class Flight {
+      final CompletableFuture<List<List<String>>> result = new CompletableFuture<List<List<String>>>();
+      final AtomicInteger followers = new AtomicInteger();
+
+      boolean join() {
+         while (true) {
+            int waiting = followers.get();
+            if (waiting < 0) {
+               return false;
+            }
+            if (followers.compareAndSet(waiting, waiting + 1)) {
+               return true;
+            }
+         }
+      }
+   }
+
+   /**
+    * Runs a query, or waits for an identical one already running and
+    * shares its result.
+    *
+    * @param route the connection the query would run on
+    * @param parameters the bound parameters, or null for a plain query
+    * @return the result; immutable if the query is eligible for coalescing
+    * @throws java.sql.SQLException when the query failed
+    */
+   public List<List<String>> query(Connection route, String sql, List<Object> parameters, Query query)
+      throws SQLException {
+      if (!isReadOnly(sql) || !route.getAutoCommit()) {
+         return query.run();
+      }
+
+      List<Object> key = Arrays.asList(route, generation.get(), sql,
+         parameters == null ? null : new ArrayList<Object>(parameters));
+      Flight flight = new Flight();
+      Flight leader;
+      // a flight that closed before we joined it is about to leave the map
+      while ((leader = inFlight.putIfAbsent(key, flight)) != null && !leader.join()) {
+         Thread.yield();
+      }
+
+      if (leader != null) {
+         Deadline deadline = Deadline.current();
+         try {
+            if (deadline == null) {
+               return leader.result.get();
+            }
+            return leader.result.get(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a coalesced query.");
+         }catch (ExecutionException | TimeoutException e) {
+            // the leader failed, maybe on its own deadline, or is too slow
+            // for ours; running it ourselves reports our own timeout
+            return query.run();
+         }
+      }
+
+      issued.increment();
+      try {
+         List<List<String>> result = query.run();
+         inFlight.remove(key, flight);
+         int followers = flight.followers.getAndSet(-1);
+         if (followers > 0) {
+            result = ColumnarResult.of(result);
+            Counts templateCounts = counts.computeIfAbsent(FlightEvents.template(sql), template -> new Counts());
+            templateCounts.issued.increment();
+            templateCounts.coalesced.add(followers);
+         }
+         flight.result.complete(result);
+         return result;
+      }catch (SQLException | RuntimeException e) {
+         inFlight.remove(key, flight);
+         flight.followers.set(-1);
+         flight.result.completeExceptionally(e);
+         throw e;
+      }
+   }
+
+   /**
+    * Starts a new generation after a write, so queries issued from now on
+    * never join one that may have read the data before it.
+    */
+   public void invalidate() {
+      generation.incrementAndGet();
+   }
+
+   /**
+    * Returns the number of queries issued, shared or not.
+    */
+   public long issued() {
+      return issued.sum();
+   }
+
+   /**
+    * Returns the counts of the shared queries per SQL template, sorted by
+    * template.
+    */
+   public Map<String, Counts> counts() {
+      return new TreeMap<String, Counts>(counts);
+   }
+
+   /**
+    * Returns the counts as JSON:
+    * {"issued":5120,"templates":[{"template":"SELECT ...","issued":12,"coalesced":340}, ...]}
+    */
+   public String snapshot() {
+      StringBuilder json = new StringBuilder("{\"issued\":").append(issued.sum()).append(",\"templates\":[");
+      boolean first = true;
+      for (Map.Entry<String, Counts> entry : counts().entrySet()) {
+         json.append(first ? "" : ",").append("{\"template\":\"")
+            .append(entry.getKey().replace("\\", "\\\\").replace("\"", "\\\""))
+            .append("\",\"issued\":").append(entry.getValue().issued.sum())
+            .append(",\"coalesced\":").append(entry.getValue().coalesced.sum()).append('}');
+         first = false;
+      }
+      return json.append("]}").toString();
+   }
+
+   /*
+   * A plain SELECT that neither locks rows nor advances a sequence.
+   */
+   static boolean isReadOnly(String sql) {
+      return READ_ONLY.matcher(sql).find() && !LOCKING.matcher(sql).find();
+   }
+}
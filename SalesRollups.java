@@ -0,0 +1,290 @@
+/*
+ * Sales rollups for the PizzaStore user interface
+ * ===============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * This class maintains the StoreHourSales and ItemDaySales rollup tables.
+ * The rollups are written in the same transaction as the FoodOrder and
+ * ItemsInOrder changes they summarize, so the manager sales reports can be
+ * answered from the rollups alone without scanning the order history.
+ *
+ */
+public class SalesRollups {
+
+   /**
+    * Adds a newly placed order to the rollups. Must be called inside the
+    * transaction that inserts the order.
+    *
+    * @param storeID the store the order was placed at
+    * @param orderTimestamp the order timestamp (yyyy-MM-dd HH:mm:ss)
+    * @param totalCents the order total in cents
+    * @param orderItems the order lines as (itemName, quantity, unit price in cents)
+    * @throws java.sql.SQLException when a rollup update failed
+    */
+   public static void recordOrder(PizzaStore esql, String storeID, String orderTimestamp,
+                                  long totalCents, List<List<String>> orderItems) throws SQLException {
+      for (String statement : orderStatements(storeID, orderTimestamp, totalCents, orderItems)) {
+         esql.executeUpdate(statement);
+      }
+   }
+
+   /**
+    * Returns the rollup upserts for a newly placed order, for callers that
+    * run them on their own connection.
+    *
+    * @see #recordOrder
+    */
+   public static List<String> orderStatements(String storeID, String orderTimestamp,
+                                              long totalCents, List<List<String>> orderItems) {
+      List<String> statements = new ArrayList<String>();
+      statements.add(String.format(
+         "INSERT INTO StoreHourSales (storeID, salesHour, orderCount, completeCount, revenue) " +
+         "VALUES (%s, date_trunc('hour', TIMESTAMP '%s'), 1, 0, %s) " +
+         "ON CONFLICT (storeID, salesHour) DO UPDATE SET " +
+         "orderCount = StoreHourSales.orderCount + 1, revenue = StoreHourSales.revenue + EXCLUDED.revenue;",
+         storeID, orderTimestamp, Pricing.formatCents(totalCents)));
+
+      for (List<String> orderItem : orderItems) {
+         String itemName = orderItem.get(0);
+         int quantity = Integer.parseInt(orderItem.get(1));
+         long lineTotal = Pricing.lineTotal(Long.parseLong(orderItem.get(2)), quantity);
+
+         statements.add(String.format(
+            "INSERT INTO ItemDaySales (itemName, salesDay, quantity, orderCount, revenue) " +
+            "VALUES ('%s', CAST(TIMESTAMP '%s' AS date), %d, 1, %s) " +
+            "ON CONFLICT (itemName, salesDay) DO UPDATE SET " +
+            "quantity = ItemDaySales.quantity + EXCLUDED.quantity, orderCount = ItemDaySales.orderCount + 1, " +
+            "revenue = ItemDaySales.revenue + EXCLUDED.revenue;",
+            itemName, orderTimestamp, quantity, Pricing.formatCents(lineTotal)));
+      }
+      return statements;
+   }
+
+   /**
+    * Moves an order between the complete and incomplete counts of its
+    * store hour. Must be called inside the transaction that updates the
+    * order status.
+    *
+    * @param storeID the store the order was placed at
+    * @param orderTimestamp the order timestamp as stored in FoodOrder
+    * @param nowComplete true when the order has just been marked complete
+    * @throws java.sql.SQLException when the rollup update failed
+    */
+   public static void recordStatusChange(PizzaStore esql, String storeID, String orderTimestamp,
+                                         boolean nowComplete) throws SQLException {
+      String query = String.format(
+         "UPDATE StoreHourSales SET completeCount = completeCount + %d " +
+         "WHERE storeID = %s AND salesHour = date_trunc('hour', TIMESTAMP '%s');",
+         nowComplete ? 1 : -1, storeID, orderTimestamp);
+      esql.executeUpdate(query);
+   }
+
+   /**
+    * Recomputes both rollup tables from the full FoodOrder and ItemsInOrder
+    * history of every order shard, archived orders included, in a single
+    * transaction. It waits for a running archive pass to finish. Item
+    * revenue is based on the current menu price since ItemsInOrder does
+    * not record the price paid.
+    *
+    * @throws java.sql.SQLException when the rebuild failed
+    */
+   public static void rebuild(PizzaStore esql) throws SQLException {
+      esql.beginTransaction();
+      try {
+         esql.executeQuery("SELECT pg_advisory_xact_lock(" + OrderArchiver.MAINTENANCE_LOCK + ");");
+         esql.executeUpdate("DELETE FROM StoreHourSales;");
+         esql.executeUpdate("DELETE FROM ItemDaySales;");
+
+         esql.executeUpdate(
+            "INSERT INTO StoreHourSales (storeID, salesHour, orderCount, completeCount, revenue) " +
+            "SELECT storeID, date_trunc('hour', orderTimestamp), COUNT(*), " +
+            "COUNT(*) FILTER (WHERE TRIM(orderStatus) = 'complete'), SUM(totalPrice) " +
+            "FROM (SELECT storeID, orderTimestamp, orderStatus, totalPrice FROM FoodOrder " +
+            "UNION ALL SELECT storeID, orderTimestamp, orderStatus, totalPrice FROM ArchivedOrder) F " +
+            "GROUP BY storeID, date_trunc('hour', orderTimestamp);");
+
+         // the archive holds the archived orders of every shard; the items carry
+         // their order's timestamp, so no join with the orders is needed
+         esql.executeUpdate(
+            "INSERT INTO ItemDaySales (itemName, salesDay, quantity, orderCount, revenue) " +
+            "SELECT I.itemName, CAST(I.orderTimestamp AS date), SUM(I.quantity), COUNT(*), " +
+            "SUM(I.quantity * M.price) " +
+            "FROM (SELECT itemName, quantity, orderTimestamp FROM ItemsInOrder " +
+            "UNION ALL SELECT itemName, quantity, orderTimestamp FROM ArchivedOrderItem) I " +
+            "JOIN Items M ON M.itemName = I.itemName " +
+            "GROUP BY I.itemName, CAST(I.orderTimestamp AS date);");
+
+         // the other shards are aggregated remotely and added to the rollups here
+         OrderShards shards = esql.orderShards();
+         for (int shard = 1; shard < shards.shardCount(); shard++) {
+            List<List<String>> storeRows = shards.query(shard,
+               "SELECT storeID, date_trunc('hour', orderTimestamp), COUNT(*), " +
+               "COUNT(*) FILTER (WHERE TRIM(orderStatus) = 'complete'), SUM(totalPrice) " +
+               "FROM FoodOrder GROUP BY storeID, date_trunc('hour', orderTimestamp);");
+            for (List<String> row : storeRows) {
+               esql.executeUpdate(String.format(
+                  "INSERT INTO StoreHourSales (storeID, salesHour, orderCount, completeCount, revenue) " +
+                  "VALUES (%s, '%s', %s, %s, %s) " +
+                  "ON CONFLICT (storeID, salesHour) DO UPDATE SET " +
+                  "orderCount = StoreHourSales.orderCount + EXCLUDED.orderCount, " +
+                  "completeCount = StoreHourSales.completeCount + EXCLUDED.completeCount, " +
+                  "revenue = StoreHourSales.revenue + EXCLUDED.revenue;",
+                  row.get(0), row.get(1), row.get(2), row.get(3), row.get(4)));
+            }
+
+            List<List<String>> itemRows = shards.query(shard,
+               "SELECT itemName, CAST(orderTimestamp AS date), SUM(quantity), COUNT(*) " +
+               "FROM ItemsInOrder GROUP BY itemName, CAST(orderTimestamp AS date);");
+            for (List<String> row : itemRows) {
+               esql.executeUpdate(String.format(
+                  "INSERT INTO ItemDaySales (itemName, salesDay, quantity, orderCount, revenue) " +
+                  "SELECT itemName, '%s', %s, %s, %s * price FROM Items WHERE itemName = '%s' " +
+                  "ON CONFLICT (itemName, salesDay) DO UPDATE SET " +
+                  "quantity = ItemDaySales.quantity + EXCLUDED.quantity, " +
+                  "orderCount = ItemDaySales.orderCount + EXCLUDED.orderCount, " +
+                  "revenue = ItemDaySales.revenue + EXCLUDED.revenue;",
+                  row.get(1), row.get(2), row.get(3), row.get(2), row.get(0)));
+            }
+         }
+
+         esql.commitTransaction();
+      }catch (SQLException e) {
+         esql.rollbackTransaction();
+         throw e;
+      }
+   }
+
+   /*
+   * Manager-only sales reports. Every report reads the rollup tables only.
+   */
+   public static void viewSalesReport(PizzaStore esql, String token) {
+      try {
+         String userRole = esql.authenticate(token).role;
+
+         if (!userRole.equalsIgnoreCase("manager")) {
+            FlightEvents.operationDenied();
+            System.out.println("Invalid role access. Exiting sales reports.");
+            return;
+         }
+
+         System.out.println("Which sales report would you like to view?");
+         System.out.println("1. Revenue per store");
+         System.out.println("2. Units sold per item");
+         System.out.println("3. Orders per hour of day");
+         System.out.println("4. Rebuild sales rollups from order history");
+         System.out.println("5. Exit sales reports");
+
+         switch(PizzaStore.readChoice()) {
+            case 1:
+               System.out.print("Enter the number of days to report on: ");
+               int storeDays = Integer.parseInt(PizzaStore.in.readLine().trim());
+
+               String storeQuery = String.format(
+                  "SELECT storeID, SUM(orderCount), SUM(completeCount), SUM(revenue) FROM StoreHourSales " +
+                  "WHERE salesHour >= date_trunc('hour', now()) - INTERVAL '%d days' " +
+                  "GROUP BY storeID ORDER BY SUM(revenue) DESC;",
+                  storeDays);
+               List<List<String>> storeResult = esql.executeQueryAndReturnResult(storeQuery);
+
+               if (storeResult.isEmpty()) {
+                  System.out.println("No sales found for the last " + storeDays + " days.");
+                  return;
+               }
+
+               System.out.println("Store ID\t| Orders\t| Completed\t| Revenue");
+               System.out.println("*******************************************************");
+               for (List<String> row : storeResult) {
+                  System.out.println(String.format(
+                     "%s\t| %s\t| %s\t| $%s",
+                     row.get(0), row.get(1), row.get(2), row.get(3)));
+               }
+               System.out.println("*******************************************************");
+               break;
+
+            case 2:
+               System.out.print("Enter the number of days to report on: ");
+               int itemDays = Integer.parseInt(PizzaStore.in.readLine().trim());
+
+               String itemQuery = String.format(
+                  "SELECT itemName, SUM(quantity), SUM(orderCount), SUM(revenue) FROM ItemDaySales " +
+                  "WHERE salesDay >= CURRENT_DATE - %d " +
+                  "GROUP BY itemName ORDER BY SUM(quantity) DESC;",
+                  itemDays);
+               List<List<String>> itemResult = esql.executeQueryAndReturnResult(itemQuery);
+
+               if (itemResult.isEmpty()) {
+                  System.out.println("No items sold in the last " + itemDays + " days.");
+                  return;
+               }
+
+               System.out.println("Item Name\t| Units\t| Orders\t| Revenue");
+               System.out.println("*******************************************************");
+               for (List<String> row : itemResult) {
+                  System.out.println(String.format(
+                     "%s\t| %s\t| %s\t| $%s",
+                     row.get(0), row.get(1), row.get(2), row.get(3)));
+               }
+               System.out.println("*******************************************************");
+               break;
+
+            case 3:
+               System.out.print("Enter a store ID, or 'all' for every store: ");
+               String storeID = PizzaStore.in.readLine().trim();
+               String storeFilter = "";
+
+               if (!storeID.equalsIgnoreCase("all")) {
+                  storeFilter = String.format("WHERE storeID = %d ", Integer.parseInt(storeID));
+               }
+
+               String hourQuery = String.format(
+                  "SELECT EXTRACT(HOUR FROM salesHour) AS hourOfDay, SUM(orderCount), SUM(revenue) " +
+                  "FROM StoreHourSales %s" +
+                  "GROUP BY hourOfDay ORDER BY hourOfDay;",
+                  storeFilter);
+               List<List<String>> hourResult = esql.executeQueryAndReturnResult(hourQuery);
+
+               if (hourResult.isEmpty()) {
+                  System.out.println("No sales found.");
+                  return;
+               }
+
+               System.out.println("Hour\t| Orders\t| Revenue");
+               System.out.println("*******************************************************");
+               for (List<String> row : hourResult) {
+                  System.out.println(String.format(
+                     "%s:00\t| %s\t| $%s",
+                     row.get(0), row.get(1), row.get(2)));
+               }
+               System.out.println("*******************************************************");
+               break;
+
+            case 4:
+               System.out.println("Rebuilding sales rollups...");
+               rebuild(esql);
+               System.out.println("Sales rollups rebuilt successfully!");
+               break;
+
+            case 5:
+               System.out.println("Exiting sales reports.");
+               return;
+
+            default:
+               System.out.println("Invalid choice. Exiting sales reports.");
+               return;
+         }
+      }catch (Exception e) {
+         FlightEvents.operationFailed(e);
+         System.err.println("Error while viewing sales reports: " + e.getMessage());
+      }
+   }
+}
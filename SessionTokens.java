@@ -0,0 +1,448 @@
+/*
+ * Session tokens for the PizzaStore user interface
+ * ================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * This class mints and verifies stateless, HMAC-SHA256 signed session
+ * tokens. A token carries the user's login, role and expiry, so any
+ * PizzaStore instance that shares the signing keys can verify it locally
+ * without looking the user up in Users.
+ *
+ * Token layout: v1.&lt;base64url payload&gt;.&lt;base64url signature&gt; where the
+ * payload is keyID|role|issuedAt|expiresAt|tokenID|login, with issuedAt in
+ * epoch milliseconds and expiresAt in epoch seconds.
+ *
+ * Keys are rotated by adding a new signing key; older keys keep verifying
+ * tokens until they are retired. A small revocation list holds revoked
+ * token IDs until they expire, plus per-login cutoffs that reject every
+ * token of a login issued before the cutoff. When the list is full the
+ * revocation that expires soonest makes room for a new one.
+ *
+ * Revocations are shared by every instance through the SessionRevocation
+ * table: each one is applied locally right away and written to the table
+ * by a background thread on a connection of its own, which also picks up
+ * the revocations of the other instances every second and removes the
+ * expired ones now and then. A revocation made elsewhere therefore takes
+ * effect here within about a second.
+ *
+ */
+public class SessionTokens {
+
+   // default lifetime of a token
+   public static final long DEFAULT_TTL_SECONDS = 8 * 60 * 60;
+
+   // maximum number of individually revoked tokens kept in memory
+   private static final int MAX_REVOKED = 10000;
+
+   // how often the revocations of other instances are picked up
+   private static final long POLL_MILLIS = 1000;
+
+   // revocationIDs of concurrent inserts may commit out of order, so each
+   // poll reads this many IDs back again
+   private static final long REREAD_REVOCATIONS = 100;
+
+   private static final long PURGE_INTERVAL_SECONDS = 3600;
+
+   private static final String VERSION = "v1";
+   private static final String ALGORITHM = "HmacSHA256";
+   private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+   private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+   private final SecureRandom random = new SecureRandom();
+   private final long ttlSeconds;
+
+   // verification keys by key ID; signingKeyID names the one used to mint
+   private final Map<String, byte[]> keys = new LinkedHashMap<String, byte[]>();
+   private String signingKeyID;
+
+   // revoked token IDs with their expiry in seconds, and per-login "not issued
+   // before" cutoffs in milliseconds
+   private final Map<String, Long> revokedTokens = new HashMap<String, Long>();
+   private final Map<String, Long> revokedLogins = new HashMap<String, Long>();
+
+   // INSERTs of local revocations not yet in SessionRevocation, guarded by this
+   private final ArrayDeque<String> unpublished = new ArrayDeque<String>();
+
+   // the sharing thread and its state; the rest is only used on that thread
+   private volatile PizzaStore esql;
+   private ScheduledExecutorService poller;
+   private Connection connection;
+   private long lastRevocationID;
+   private long lastPurge;
+   private boolean failing;
+
+   /**
+    * A verified session.
+    */
+   public static final class Session {
+      public final String login;
+      public final String role;
+      public final String tokenID;
+      public final long expiresAt;
+
+      Session(String login, String role, String tokenID, long expiresAt) {
+         this.login = login;
+         this.role = role;
+         this.tokenID = tokenID;
+         this.expiresAt = expiresAt;
+      }
+   }
+
+   public SessionTokens(long ttlSeconds) {
+      this.ttlSeconds = ttlSeconds;
+   }
+
+   /**
+    * Creates the token facility from the PIZZASTORE_SESSION_KEYS environment
+    * variable, a comma separated list of keyID:base64secret pairs whose
+    * first entry is the signing key. Every instance of a pool must be given
+    * the same keys. Without the variable a random key is generated, which is
+    * only good for a single process.
+    */
+   public static SessionTokens fromEnvironment() {
+      SessionTokens tokens = new SessionTokens(DEFAULT_TTL_SECONDS);
+      String configured = System.getenv("PIZZASTORE_SESSION_KEYS");
+
+      if (configured == null || configured.trim().isEmpty()) {
+         byte[] secret = new byte[32];
+         tokens.random.nextBytes(secret);
+         tokens.rotate("local", secret);
+         return tokens;
+      }
+
+      String[] entries = configured.split(",");
+      // add in reverse so the first entry ends up as the signing key
+      for (int i = entries.length - 1; i >= 0; i--) {
+         String[] entry = entries[i].trim().split(":", 2);
+         tokens.rotate(entry[0], Base64.getDecoder().decode(entry[1]));
+      }
+      return tokens;
+   }
+
+   /**
+    * Makes the given key the signing key. Keys added earlier keep verifying
+    * the tokens they signed until they are retired.
+    */
+   public synchronized void rotate(String keyID, byte[] secret) {
+      keys.put(keyID, secret.clone());
+      signingKeyID = keyID;
+   }
+
+   /**
+    * Stops accepting tokens signed with the given key.
+    */
+   public synchronized void retire(String keyID) {
+      if (keyID.equals(signingKeyID)) {
+         throw new IllegalArgumentException("Cannot retire the current signing key " + keyID);
+      }
+      keys.remove(keyID);
+   }
+
+   /**
+    * Mints a token for a user that has just logged in.
+    */
+   public String mint(String login, String role) {
+      long issuedAtMillis = System.currentTimeMillis();
+      long issuedAt = issuedAtMillis / 1000;
+      byte[] id = new byte[9];
+      random.nextBytes(id);
+
+      String keyID;
+      byte[] secret;
+      synchronized (this) {
+         keyID = signingKeyID;
+         secret = keys.get(keyID);
+      }
+
+      String payload = String.join("|",
+         keyID, role.trim(), String.valueOf(issuedAtMillis), String.valueOf(issuedAt + ttlSeconds),
+         ENCODER.encodeToString(id), login);
+      String encodedPayload = ENCODER.encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+      return VERSION + "." + encodedPayload + "." + ENCODER.encodeToString(sign(secret, encodedPayload));
+   }
+
+   /**
+    * Verifies a token and returns its session.
+    *
+    * @throws java.lang.SecurityException when the token is malformed, has a
+    *         bad signature, has expired or has been revoked
+    */
+   public Session verify(String token) {
+      if (token == null) {
+         throw new SecurityException("Not logged in.");
+      }
+      String[] parts = token.split("\\.");
+      if (parts.length != 3 || !parts[0].equals(VERSION)) {
+         throw new SecurityException("Malformed session token.");
+      }
+
+      String[] fields;
+      try {
+         fields = new String(DECODER.decode(parts[1]), StandardCharsets.UTF_8).split("\\|", 6);
+      }catch (IllegalArgumentException e) {
+         throw new SecurityException("Malformed session token.");
+      }
+      if (fields.length != 6) {
+         throw new SecurityException("Malformed session token.");
+      }
+
+      byte[] secret;
+      synchronized (this) {
+         secret = keys.get(fields[0]);
+      }
+      if (secret == null) {
+         throw new SecurityException("Session token signed with an unknown key.");
+      }
+      byte[] signature;
+      try {
+         signature = DECODER.decode(parts[2]);
+      }catch (IllegalArgumentException e) {
+         throw new SecurityException("Malformed session token.");
+      }
+      if (!MessageDigest.isEqual(signature, sign(secret, parts[1]))) {
+         throw new SecurityException("Invalid session token signature.");
+      }
+
+      long now = System.currentTimeMillis() / 1000;
+      long issuedAt = Long.parseLong(fields[2]);
+      if (issuedAt < 100000000000L) {
+         issuedAt *= 1000; // minted when issuedAt was in seconds
+      }
+      long expiresAt = Long.parseLong(fields[3]);
+      if (now >= expiresAt) {
+         throw new SecurityException("Session expired. Please log in again.");
+      }
+
+      synchronized (this) {
+         Long cutoff = revokedLogins.get(fields[5]);
+         if (revokedTokens.containsKey(fields[4]) || (cutoff != null && issuedAt <= cutoff)) {
+            throw new SecurityException("Session has been revoked. Please log in again.");
+         }
+      }
+      return new Session(fields[5], fields[1], fields[4], expiresAt);
+   }
+
+   /**
+    * Revokes a single session, e.g. on log out, here and on every other
+    * instance.
+    */
+   public void revoke(Session session) {
+      synchronized (this) {
+         pruneRevoked();
+         revokeToken(session.tokenID, session.expiresAt);
+         unpublished.add(String.format(
+            "INSERT INTO SessionRevocation (tokenID, expiresAt) VALUES ('%s', %d);",
+            session.tokenID, session.expiresAt));
+      }
+      publish();
+   }
+
+   /**
+    * Revokes every token of a login issued up to now, e.g. after a manager
+    * changes the login or role of the account, here and on every other
+    * instance.
+    */
+   public void revokeLogin(String login) {
+      long cutoff = System.currentTimeMillis();
+      synchronized (this) {
+         pruneRevoked();
+         revokedLogins.merge(login, cutoff, Math::max);
+         // every token it covers has expired once the TTL has passed
+         unpublished.add(String.format(
+            "INSERT INTO SessionRevocation (login, notBefore, expiresAt) VALUES ('%s', %d, %d);",
+            login.replace("'", "''"), cutoff, cutoff / 1000 + ttlSeconds));
+      }
+      publish();
+   }
+
+   /**
+    * Starts sharing revocations with the other instances through the
+    * SessionRevocation table. Until then they are only kept locally.
+    */
+   public void start(PizzaStore esql) {
+      this.esql = esql;
+      poller = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread thread = new Thread(r, "session-revocations");
+         thread.setDaemon(true);
+         return thread;
+      });
+      poller.scheduleWithFixedDelay(this::sync, 0, POLL_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Stops sharing revocations.
+    */
+   public void stop() {
+      if (poller != null) {
+         poller.shutdown();
+         try {
+            poller.awaitTermination(POLL_MILLIS, TimeUnit.MILLISECONDS);
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      try {
+         if (connection != null) {
+            connection.close();
+         }
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+   /*
+   * Has the sharing thread write a new revocation right away.
+   */
+   private void publish() {
+      ScheduledExecutorService running = poller;
+      if (running != null) {
+         try {
+            running.execute(this::sync);
+         }catch (RejectedExecutionException e) {
+            // stopped; the revocation stays local.
+         }
+      }
+   }
+
+   /*
+   * Writes the local revocations to SessionRevocation and applies the new
+   * ones of every instance. Runs on the sharing thread.
+   */
+   private void sync() {
+      try {
+         if (connection == null || connection.isClosed()) {
+            connection = esql.orderShards().connect(0);
+         }
+         Statement stmt = connection.createStatement();
+         try {
+            while (true) {
+               String insert;
+               synchronized (this) {
+                  insert = unpublished.peek();
+               }
+               if (insert == null) {
+                  break;
+               }
+               stmt.executeUpdate(insert);
+               synchronized (this) {
+                  unpublished.poll();
+               }
+            }
+
+            long now = System.currentTimeMillis() / 1000;
+            ResultSet rs = stmt.executeQuery(String.format(
+               "SELECT revocationID, tokenID, login, notBefore, expiresAt FROM SessionRevocation " +
+               "WHERE revocationID > %d AND expiresAt > %d ORDER BY revocationID;",
+               lastRevocationID - REREAD_REVOCATIONS, now));
+            while (rs.next()) {
+               lastRevocationID = Math.max(lastRevocationID, rs.getLong(1));
+               String tokenID = rs.getString(2);
+               String login = rs.getString(3);
+               long notBefore = rs.getLong(4);
+               long expiresAt = rs.getLong(5);
+               synchronized (this) {
+                  if (tokenID != null) {
+                     revokeToken(tokenID, expiresAt);
+                  }
+                  else if (login != null) {
+                     revokedLogins.merge(login, notBefore, Math::max);
+                  }
+               }
+            }
+
+            if (now - lastPurge >= PURGE_INTERVAL_SECONDS) {
+               stmt.executeUpdate("DELETE FROM SessionRevocation WHERE expiresAt <= " + now + ";");
+               lastPurge = now;
+            }
+         }finally {
+            stmt.close();
+         }
+         failing = false;
+      }catch (SQLException e) {
+         if (!failing) {
+            System.err.println("Unable to share session revocations: " + e.getMessage());
+            failing = true;
+         }
+         try {
+            if (connection != null) {
+               connection.close();
+            }
+         }catch (SQLException ignored) {
+            // reconnects on the next poll.
+         }
+      }
+   }
+
+   /*
+   * Adds a revoked token. A fresh revocation always stays; when the list is
+   * full, the one closest to expiring goes.
+   */
+   private void revokeToken(String tokenID, long expiresAt) {
+      if (revokedTokens.size() >= MAX_REVOKED && !revokedTokens.containsKey(tokenID)) {
+         String soonest = null;
+         for (Map.Entry<String, Long> revoked : revokedTokens.entrySet()) {
+            if (soonest == null || revoked.getValue() < revokedTokens.get(soonest)) {
+               soonest = revoked.getKey();
+            }
+         }
+         revokedTokens.remove(soonest);
+      }
+      revokedTokens.merge(tokenID, expiresAt, Math::max);
+   }
+
+   /*
+   * Drops revocations that no longer matter because the tokens they cover
+   * have expired anyway.
+   */
+   private void pruneRevoked() {
+      long nowMillis = System.currentTimeMillis();
+      long now = nowMillis / 1000;
+      for (Iterator<Long> it = revokedTokens.values().iterator(); it.hasNext();) {
+         if (it.next() <= now) {
+            it.remove();
+         }
+      }
+      for (Iterator<Long> it = revokedLogins.values().iterator(); it.hasNext();) {
+         if (it.next() + ttlSeconds * 1000 <= nowMillis) {
+            it.remove();
+         }
+      }
+   }
+
+   private static byte[] sign(byte[] secret, String encodedPayload) {
+      try {
+         Mac mac = Mac.getInstance(ALGORITHM);
+         mac.init(new SecretKeySpec(secret, ALGORITHM));
+         return mac.doFinal(encodedPayload.getBytes(StandardCharsets.US_ASCII));
+      }catch (GeneralSecurityException e) {
+         throw new IllegalStateException("Unable to sign session token: " + e.getMessage(), e);
+      }
+   }
+}
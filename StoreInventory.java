@@ -0,0 +1,523 @@
+/*
+ * Store inventory for the PizzaStore user interface
+ * =================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * This class keeps the stock of every ingredient at every store in memory
+ * and reserves it when an order is placed. An order item uses one unit of
+ * each ingredient listed in Items.ingredients per quantity ordered.
+ * Ingredients a store has no StoreInventory row for are not tracked and
+ * never run out, so stores without inventory keep selling as before.
+ *
+ * Each (store, ingredient) counter has its own lock. An order locks only the
+ * counters it needs, always in the same order, checks them all and then
+ * decrements them all, so it either gets all its stock or none of it.
+ * Orders at different stores, or for different ingredients, never wait
+ * for each other, and a reservation costs a few map lookups, not a round
+ * trip.
+ *
+ * Changes are written to StoreInventory as deltas in batches, every few
+ * seconds and on shutdown, on a connection of their own. Every instance
+ * sells from the same rows, so each flush reads back the quantities it
+ * changed, and about once a minute all of them, and sets the counters to
+ * the database's stock plus what was reserved since. Two instances can
+ * still sell the same last units within one flush interval; the stock then
+ * shows as negative and no more is sold until it is restocked.
+ *
+ */
+public class StoreInventory {
+
+   // how often stock changes are written to the database
+   public static final long DEFAULT_FLUSH_MILLIS = 5000;
+
+   // rows per INSERT statement
+   private static final int BATCH_SIZE = 500;
+
+   // flushes between reads of the whole stock
+   private static final int RESYNC_FLUSHES = 12;
+
+   private final long flushMillis;
+   private final AtomicLong counterIDs = new AtomicLong();
+   private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+   private final Set<Counter> dirty = ConcurrentHashMap.newKeySet();
+
+   private ScheduledExecutorService flusher;
+   private Connection connection;
+   private long flushes;
+
+   /**
+    * The stock of one ingredient at one store.
+    */
+   private static final class Counter {
+      // counters are always locked in id order
+      final long id;
+      final int storeID;
+      final String ingredient;
+      final ReentrantLock lock = new ReentrantLock();
+
+      // guarded by lock
+      long quantity;
+      long unflushed;
+
+      Counter(long id, int storeID, String ingredient) {
+         this.id = id;
+         this.storeID = storeID;
+         this.ingredient = ingredient;
+      }
+   }
+
+   /**
+    * The stock taken by one order, to be given back with release if the
+    * order is not placed after all.
+    */
+   public static final class Reservation {
+      private final List<Counter> counters;
+      private final long[] amounts;
+      private boolean released;
+
+      private Reservation(List<Counter> counters, long[] amounts) {
+         this.counters = counters;
+         this.amounts = amounts;
+      }
+
+      /**
+       * Returns the number of ingredients taken.
+       */
+      public int size() {
+         return amounts.length;
+      }
+
+      /**
+       * Returns the i-th ingredient taken.
+       */
+      public String ingredient(int i) {
+         return counters.get(i).ingredient;
+      }
+
+      /**
+       * Returns the amount of the i-th ingredient taken.
+       */
+      public long amount(int i) {
+         return amounts[i];
+      }
+   }
+
+   public StoreInventory(long flushMillis) {
+      this.flushMillis = flushMillis;
+   }
+
+   public StoreInventory() {
+      this(DEFAULT_FLUSH_MILLIS);
+   }
+
+   /**
+    * Replaces the in-memory stock with the contents of StoreInventory.
+    *
+    * @throws java.sql.SQLException when the inventory query failed
+    */
+   public void load(PizzaStore esql) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(
+         "SELECT storeID, ingredient, quantity FROM StoreInventory;");
+      counters.clear();
+      dirty.clear();
+      for (List<String> row : rows) {
+         Counter counter = counter(Integer.parseInt(row.get(0).trim()), IngredientIndex.normalize(row.get(1)));
+         counter.quantity = Long.parseLong(row.get(2).trim());
+      }
+   }
+
+   /**
+    * Starts writing stock changes to the database in the background.
+    *
+    * @throws java.sql.SQLException when the database cannot be reached
+    */
+   public void start(PizzaStore esql) throws SQLException {
+      connection = esql.orderShards().connect(0);
+      flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread thread = new Thread(r, "store-inventory-flush");
+         thread.setDaemon(true);
+         return thread;
+      });
+      flusher.scheduleWithFixedDelay(() -> {
+         try {
+            flush();
+         }catch (SQLException e) {
+            System.err.println("Unable to save store inventory: " + e.getMessage());
+         }
+      }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Writes the remaining changes and stops the background writer.
+    */
+   public void stop() {
+      if (flusher == null) {
+         return;
+      }
+      flusher.shutdown();
+      try {
+         flusher.awaitTermination(5, TimeUnit.SECONDS);
+         flush();
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }catch (SQLException e) {
+         System.err.println("Unable to save store inventory: " + e.getMessage());
+      }
+      try {
+         connection.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+   /**
+    * Takes the stock an order needs.
+    *
+    * @param orderItems the order lines as (itemName, quantity, ...)
+    * @param index the menu, for the ingredients of each item
+    * @return the reservation, to be released if the order fails
+    * @throws java.lang.IllegalStateException when a tracked ingredient is
+    *         short; nothing is taken then
+    */
+   public Reservation reserve(int storeID, List<List<String>> orderItems, IngredientIndex index) {
+      // the tracked counters the order needs, in lock order
+      Map<Counter, Long> needed = new TreeMap<Counter, Long>(Comparator.comparingLong((Counter c) -> c.id));
+      for (List<String> orderItem : orderItems) {
+         long quantity = Long.parseLong(orderItem.get(1).trim());
+         for (String ingredient : index.ingredientsOf(orderItem.get(0))) {
+            Counter counter = counters.get(key(storeID, ingredient));
+            if (counter != null) {
+               needed.merge(counter, quantity, Long::sum);
+            }
+         }
+      }
+
+      List<Counter> locked = new ArrayList<Counter>(needed.keySet());
+      long[] amounts = new long[locked.size()];
+      for (Counter counter : locked) {
+         counter.lock.lock();
+      }
+      try {
+         for (int i = 0; i < amounts.length; i++) {
+            Counter counter = locked.get(i);
+            amounts[i] = needed.get(counter);
+            if (counter.quantity < amounts[i]) {
+               throw new IllegalStateException(String.format(
+                  "Store %d is out of %s (%d left, %d needed).",
+                  storeID, counter.ingredient, counter.quantity, amounts[i]));
+            }
+         }
+         for (int i = 0; i < amounts.length; i++) {
+            Counter counter = locked.get(i);
+            counter.quantity -= amounts[i];
+            counter.unflushed -= amounts[i];
+            dirty.add(counter);
+         }
+      }finally {
+         for (Counter counter : locked) {
+            counter.lock.unlock();
+         }
+      }
+      return new Reservation(locked, amounts);
+   }
+
+   /**
+    * Rebuilds a reservation recorded elsewhere, such as in the order
+    * journal, so it can be released after a restart. Ingredients the store
+    * no longer tracks are left out.
+    *
+    * @param ingredients the ingredients taken, as returned by
+    *        Reservation.ingredient
+    * @param amounts the amounts taken
+    */
+   public Reservation reservation(int storeID, List<String> ingredients, long[] amounts) {
+      List<Counter> taken = new ArrayList<Counter>();
+      List<Long> takenAmounts = new ArrayList<Long>();
+      for (int i = 0; i < amounts.length; i++) {
+         Counter counter = counters.get(key(storeID, ingredients.get(i)));
+         if (counter != null) {
+            taken.add(counter);
+            takenAmounts.add(amounts[i]);
+         }
+      }
+      long[] kept = new long[taken.size()];
+      for (int i = 0; i < kept.length; i++) {
+         kept[i] = takenAmounts.get(i);
+      }
+      return new Reservation(taken, kept);
+   }
+
+   /**
+    * Gives back the stock of an order that was not placed or was
+    * cancelled. Releasing twice does nothing.
+    */
+   public void release(Reservation reservation) {
+      synchronized (reservation) {
+         if (reservation.released) {
+            return;
+         }
+         reservation.released = true;
+      }
+      for (int i = 0; i < reservation.amounts.length; i++) {
+         add(reservation.counters.get(i), reservation.amounts[i]);
+      }
+   }
+
+   /**
+    * Adds stock of an ingredient at a store, or removes it with a negative
+    * amount. A store starts tracking an ingredient when it is first
+    * restocked.
+    *
+    * @return the new quantity
+    * @throws java.lang.IllegalArgumentException when the stock would drop
+    *         below zero
+    */
+   public long restock(int storeID, String ingredient, long amount) {
+      String normalized = IngredientIndex.normalize(ingredient);
+      Counter counter = counters.get(key(storeID, normalized));
+      if (counter == null) {
+         // only a restock that adds stock starts tracking an ingredient
+         if (amount < 0) {
+            throw new IllegalArgumentException(String.format(
+               "Store %d only has 0 of %s.", storeID, normalized));
+         }
+         if (amount == 0) {
+            return 0;
+         }
+         counter = counter(storeID, normalized);
+      }
+
+      // the lock is reentrant, so the check and the change are one step
+      counter.lock.lock();
+      try {
+         if (counter.quantity + amount < 0) {
+            throw new IllegalArgumentException(String.format(
+               "Store %d only has %d of %s.", storeID, counter.quantity, counter.ingredient));
+         }
+         return add(counter, amount);
+      }finally {
+         counter.lock.unlock();
+      }
+   }
+
+   /**
+    * Returns the tracked stock of a store as (ingredient, quantity) rows,
+    * sorted by ingredient.
+    */
+   public List<List<String>> stock(int storeID) {
+      Map<String, String> sorted = new TreeMap<String, String>();
+      for (Counter counter : counters.values()) {
+         if (counter.storeID == storeID) {
+            counter.lock.lock();
+            try {
+               sorted.put(counter.ingredient, String.valueOf(counter.quantity));
+            }finally {
+               counter.lock.unlock();
+            }
+         }
+      }
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (Map.Entry<String, String> entry : sorted.entrySet()) {
+         rows.add(List.of(entry.getKey(), entry.getValue()));
+      }
+      return rows;
+   }
+
+   /**
+    * Writes the changes made since the last flush as one transaction and
+    * brings the counters up to date with the sales of the other instances.
+    * On failure the changes are kept for the next one.
+    *
+    * @throws java.sql.SQLException when the changes could not be written
+    */
+   public synchronized void flush() throws SQLException {
+      List<Counter> changed = new ArrayList<Counter>();
+      List<Long> deltas = new ArrayList<Long>();
+      for (Counter counter : dirty) {
+         // a change after this point marks the counter dirty again
+         dirty.remove(counter);
+         counter.lock.lock();
+         try {
+            if (counter.unflushed != 0) {
+               changed.add(counter);
+               deltas.add(counter.unflushed);
+               counter.unflushed = 0;
+            }
+         }finally {
+            counter.lock.unlock();
+         }
+      }
+      boolean resync = ++flushes % RESYNC_FLUSHES == 0;
+      if (changed.isEmpty() && !resync) {
+         return;
+      }
+      if (connection == null) {
+         throw new SQLException("The store inventory writer is not started.");
+      }
+
+      Map<String, Long> stored = new HashMap<String, Long>();
+      try {
+         connection.setAutoCommit(false);
+         Statement stmt = connection.createStatement();
+         try {
+            for (int from = 0; from < changed.size(); from += BATCH_SIZE) {
+               List<String> values = new ArrayList<String>();
+               for (int i = from; i < Math.min(changed.size(), from + BATCH_SIZE); i++) {
+                  values.add(String.format("(%d, '%s', %d)", changed.get(i).storeID,
+                     changed.get(i).ingredient.replace("'", "''"), deltas.get(i)));
+               }
+               readQuantities(stmt.executeQuery(
+                  "INSERT INTO StoreInventory (storeID, ingredient, quantity) VALUES " + String.join(", ", values) +
+                  " ON CONFLICT (storeID, ingredient) DO UPDATE SET quantity = StoreInventory.quantity + EXCLUDED.quantity" +
+                  " RETURNING storeID, ingredient, quantity;"), stored);
+            }
+            if (resync) {
+               readQuantities(stmt.executeQuery("SELECT storeID, ingredient, quantity FROM StoreInventory;"), stored);
+            }
+         }finally {
+            stmt.close();
+         }
+         connection.commit();
+      }catch (SQLException e) {
+         try {
+            connection.rollback();
+         }catch (SQLException rollback) {
+            // ignored.
+         }
+         for (int i = 0; i < changed.size(); i++) {
+            Counter counter = changed.get(i);
+            counter.lock.lock();
+            try {
+               counter.unflushed += deltas.get(i);
+            }finally {
+               counter.lock.unlock();
+            }
+            dirty.add(counter);
+         }
+         throw e;
+      }finally {
+         connection.setAutoCommit(true);
+      }
+
+      // the database has the other instances' sales as well; what was
+      // reserved here since the deltas were taken is not written yet
+      for (Map.Entry<String, Long> row : stored.entrySet()) {
+         String[] key = row.getKey().split("/", 2);
+         Counter counter = counter(Integer.parseInt(key[0]), key[1]);
+         counter.lock.lock();
+         try {
+            counter.quantity = row.getValue() + counter.unflushed;
+         }finally {
+            counter.lock.unlock();
+         }
+      }
+   }
+
+   private static void readQuantities(ResultSet rs, Map<String, Long> quantities) throws SQLException {
+      while (rs.next()) {
+         quantities.put(key(rs.getInt(1), IngredientIndex.normalize(rs.getString(2))), rs.getLong(3));
+      }
+   }
+
+   private long add(Counter counter, long amount) {
+      counter.lock.lock();
+      try {
+         counter.quantity += amount;
+         counter.unflushed += amount;
+         dirty.add(counter);
+         return counter.quantity;
+      }finally {
+         counter.lock.unlock();
+      }
+   }
+
+   private Counter counter(int storeID, String ingredient) {
+      return counters.computeIfAbsent(key(storeID, ingredient),
+         key -> new Counter(counterIDs.incrementAndGet(), storeID, ingredient));
+   }
+
+   private static String key(int storeID, String ingredient) {
+      return storeID + "/" + ingredient;
+   }
+
+   /**
+    * Lets managers view and restock the inventory of a store.
+    */
+   public static void manageInventory(PizzaStore esql, String token) {
+      try {
+         String userRole = esql.authenticate(token).role;
+
+         if (!userRole.equalsIgnoreCase("manager")) {
+            FlightEvents.operationDenied();
+            System.out.println("Invalid role access. Exiting store inventory.");
+            return;
+         }
+
+         System.out.print("Enter the storeID of the store: ");
+         int storeID = Integer.parseInt(PizzaStore.in.readLine().trim());
+
+         System.out.println("What would you like to do?");
+         System.out.println("1. View stock");
+         System.out.println("2. Restock an ingredient");
+         System.out.println("3. Exit store inventory");
+
+         switch(PizzaStore.readChoice()) {
+            case 1:
+               List<List<String>> stock = esql.inventory().stock(storeID);
+               if (stock.isEmpty()) {
+                  System.out.println("Store " + storeID + " does not track its inventory.");
+                  return;
+               }
+               System.out.println("Stock of store " + storeID + ":");
+               for (List<String> row : stock) {
+                  System.out.println("\t" + row.get(0) + ": " + row.get(1));
+               }
+               break;
+
+            case 2:
+               System.out.print("Enter the ingredient: ");
+               String ingredient = PizzaStore.in.readLine().trim();
+               System.out.print("Enter the amount to add (negative to remove): ");
+               long amount = Long.parseLong(PizzaStore.in.readLine().trim());
+               long quantity = esql.inventory().restock(storeID, ingredient, amount);
+               System.out.println("Store " + storeID + " now has " + quantity + " of " + IngredientIndex.normalize(ingredient) + ".");
+               break;
+
+            case 3:
+               System.out.println("Exiting store inventory.");
+               return;
+
+            default:
+               System.out.println("Invalid choice. Please try again.");
+               break;
+         }
+      }catch (Exception e) {
+         FlightEvents.operationFailed(e);
+         System.err.println("Error while managing store inventory: " + e.getMessage());
+      }
+   }
+}
@@ -1,11 +1,37 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
+CLASSES=$DIR/../classes
+APP_JAR=$DIR/../lib/pizzastore.jar
+CDS_ARCHIVE=$DIR/../lib/pizzastore.jsa
+CLASSPATH=$APP_JAR:$DIR/../lib/pg73jdbc3.jar
 
-# compile the java program
-javac -d $DIR/../classes $DIR/../src/PizzaStore.java
+# compile the java program, only when a source changed since the last build.
+# Class-data sharing only archives classes loaded from jar files.
+if [ ! -f $APP_JAR ] || [ -n "$(find $DIR/../src -name '*.java' -newer $APP_JAR)" ]; then
+   javac -d $CLASSES $DIR/../src/*.java || exit 1
+   jar cf $APP_JAR -C $CLASSES .
+fi
+
+# record the class-data-sharing archive from a training run that goes
+# through startup, a failed login and exit. The archive is only valid for
+# the jar it was recorded with, so it is re-recorded after every build, or
+# on demand with ./compile.sh --train
+if [ "$1" == "--train" ] || [ ! -f $CDS_ARCHIVE ] || [ $APP_JAR -nt $CDS_ARCHIVE ]; then
+   printf '2\ncds-training\ncds-training\n9\n' | \
+      java -XX:ArchiveClassesAtExit=$CDS_ARCHIVE -cp $CLASSPATH PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER > /dev/null
+fi
+
+# PIZZASTORE_JFR=1 keeps a continuous flight recording of the last 6 hours
+# with the SQL and user operation events, dumped to pizzastore.jfr on exit
+JFR_OPTS=""
+if [ -n "$PIZZASTORE_JFR" ]; then
+   JFR_OPTS="-XX:StartFlightRecording:name=pizzastore,settings=default,settings=$DIR/../src/pizzastore.jfc,disk=true,maxage=6h,dumponexit=true,filename=$DIR/../pizzastore.jfr"
+fi
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER
-
+#PIZZASTORE_FAST_START=0 connects before showing the first menu
+PIZZASTORE_FAST_START=${PIZZASTORE_FAST_START:-1} \
+   java -XX:SharedArchiveFile=$CDS_ARCHIVE -Xshare:auto -XX:TieredStopAtLevel=1 $JFR_OPTS \
+   -cp $CLASSPATH PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER
@@ -4,4 +4,40 @@ DROP INDEX IF EXISTS loginRole;
 CREATE INDEX loginRole
 ON Users
 USING HASH
-(login);
\ No newline at end of file
+(login);
+
+DROP INDEX IF EXISTS storeHourSalesHour;
+
+CREATE INDEX storeHourSalesHour
+ON StoreHourSales
+(salesHour);
+
+DROP INDEX IF EXISTS itemDaySalesDay;
+
+CREATE INDEX itemDaySalesDay
+ON ItemDaySales
+(salesDay);
+
+DROP INDEX IF EXISTS foodOrderLoginTime;
+
+CREATE INDEX foodOrderLoginTime
+ON FoodOrder
+(login, orderTimestamp);
+
+DROP INDEX IF EXISTS itemsPriceName;
+
+CREATE INDEX itemsPriceName
+ON Items
+(price, itemName);
+
+DROP INDEX IF EXISTS itemsTypePriceName;
+
+CREATE INDEX itemsTypePriceName
+ON Items
+(typeOfItem, price, itemName);
+
+DROP INDEX IF EXISTS itemsNamePrefix;
+
+CREATE INDEX itemsNamePrefix
+ON Items
+(lower(itemName) text_pattern_ops);
@@ -0,0 +1,61 @@
+-- Schema of an extra order shard (shards 1..N-1 in PIZZASTORE_ORDER_SHARDS).
+-- Users, Store and Items stay in the main database, so the shard tables do
+-- not carry foreign keys to them.
+DROP TABLE IF EXISTS FoodOrder CASCADE;
+DROP TABLE IF EXISTS ItemsInOrder CASCADE;
+DROP SEQUENCE IF EXISTS FoodOrderIDs;
+
+-- orderIDs of the shard's new orders; set it to MAX(orderID) after moving orders in
+CREATE SEQUENCE FoodOrderIDs START 10000;
+
+CREATE TABLE FoodOrder ( orderID integer NOT NULL,
+                           login varchar(50) NOT NULL, --places relationship
+                           storeID integer NOT NULL, --placedAt relationship
+                           totalPrice decimal(10,2) NOT NULL,
+                           orderTimestamp timestamp NOT NULL,
+                           orderStatus char(50),
+                           PRIMARY KEY(orderID, orderTimestamp)
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
+                           itemName varchar(50) NOT NULL,
+                           quantity integer NOT NULL,
+                           orderTimestamp timestamp NOT NULL,
+                           PRIMARY KEY(orderID, itemName, orderTimestamp),
+                           FOREIGN KEY(orderID, orderTimestamp) REFERENCES FoodOrder(orderID, orderTimestamp) ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE TABLE FoodOrder_default PARTITION OF FoodOrder DEFAULT;
+CREATE TABLE ItemsInOrder_default PARTITION OF ItemsInOrder DEFAULT;
+
+-- same as in create_tables.sql
+CREATE OR REPLACE FUNCTION ensure_order_partition(day date) RETURNS void AS $$
+DECLARE
+   startMonth date := date_trunc('month', day);
+   suffix text := to_char(startMonth, 'YYYY_MM');
+BEGIN
+   EXECUTE format('CREATE TABLE IF NOT EXISTS FoodOrder_%s PARTITION OF FoodOrder FOR VALUES FROM (%L) TO (%L)',
+                  suffix, startMonth, startMonth + INTERVAL '1 month');
+   EXECUTE format('CREATE TABLE IF NOT EXISTS ItemsInOrder_%s PARTITION OF ItemsInOrder FOR VALUES FROM (%L) TO (%L)',
+                  suffix, startMonth, startMonth + INTERVAL '1 month');
+END;
+$$ LANGUAGE plpgsql;
+
+-- same as in create_tables.sql
+CREATE OR REPLACE FUNCTION notify_order_status() RETURNS trigger AS $$
+BEGIN
+   IF NEW.orderStatus IS DISTINCT FROM OLD.orderStatus THEN
+      PERFORM pg_notify('order_status', NEW.orderID || ',' || NEW.storeID || ',' ||
+                        coalesce(trim(NEW.orderStatus), '') || ',' || NEW.login);
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER foodOrderStatusChanged
+AFTER UPDATE OF orderStatus ON FoodOrder
+FOR EACH ROW EXECUTE FUNCTION notify_order_status();
+
+CREATE INDEX foodOrderLoginTime
+ON FoodOrder
+(login, orderTimestamp);
@@ -3,6 +3,14 @@ DROP TABLE IF EXISTS Items CASCADE;
 DROP TABLE IF EXISTS FoodOrder CASCADE;
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS ItemsInOrder CASCADE;
+DROP TABLE IF EXISTS StoreHourSales CASCADE;
+DROP TABLE IF EXISTS ItemDaySales CASCADE;
+DROP TABLE IF EXISTS StorePricing CASCADE;
+DROP TABLE IF EXISTS StoreInventory CASCADE;
+DROP TABLE IF EXISTS ArchivedOrder CASCADE;
+DROP TABLE IF EXISTS ArchivedOrderItem CASCADE;
+DROP TABLE IF EXISTS SessionRevocation CASCADE;
+DROP SEQUENCE IF EXISTS FoodOrderIDs;
 
 CREATE TABLE Users ( login varchar(50) NOT NULL,
                      password varchar(30) NOT NULL,
@@ -29,26 +37,133 @@ CREATE TABLE Store ( storeID integer NOT NULL,
                            PRIMARY KEY(storeID)
 );
 
+-- FoodOrder and ItemsInOrder are range partitioned by month of orderTimestamp;
+-- see ensure_order_partition below. The partition key has to be part of the
+-- primary key, so orderID alone is not unique in the table: new orderIDs
+-- come from the FoodOrderIDs sequence (see OrderShards.nextOrderID)
+CREATE SEQUENCE FoodOrderIDs START 10000;
+
 CREATE TABLE FoodOrder ( orderID integer NOT NULL,
                            login varchar(50) NOT NULL, --places relationship
                            storeID integer NOT NULL, --placedAt relationship
                            totalPrice decimal(10,2) NOT NULL,
                            orderTimestamp timestamp NOT NULL,
                            orderStatus char(50),
-                           PRIMARY KEY(orderID),
+                           PRIMARY KEY(orderID, orderTimestamp),
                            FOREIGN KEY(login) REFERENCES Users(login)
                            ON DELETE CASCADE,
                            FOREIGN KEY(storeID) REFERENCES Store(storeID)
                            ON DELETE CASCADE
-);
+) PARTITION BY RANGE (orderTimestamp);
 
 
 
+-- orderTimestamp is copied from FoodOrder so the items partition with their order
 CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
                            itemName varchar(50) NOT NULL,
                            quantity integer NOT NULL,
-                           PRIMARY KEY(orderID, itemName),
-                           FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID) ON DELETE CASCADE,
+                           orderTimestamp timestamp NOT NULL,
+                           PRIMARY KEY(orderID, itemName, orderTimestamp),
+                           FOREIGN KEY(orderID, orderTimestamp) REFERENCES FoodOrder(orderID, orderTimestamp) ON DELETE CASCADE,
                            FOREIGN KEY(itemName) REFERENCES Items(itemName)
                            ON DELETE CASCADE
-);
\ No newline at end of file
+) PARTITION BY RANGE (orderTimestamp);
+
+-- rows outside every monthly partition land here until their month is created
+CREATE TABLE FoodOrder_default PARTITION OF FoodOrder DEFAULT;
+CREATE TABLE ItemsInOrder_default PARTITION OF ItemsInOrder DEFAULT;
+
+-- creates the FoodOrder and ItemsInOrder partitions of the month containing the given day
+CREATE OR REPLACE FUNCTION ensure_order_partition(day date) RETURNS void AS $$
+DECLARE
+   startMonth date := date_trunc('month', day);
+   suffix text := to_char(startMonth, 'YYYY_MM');
+BEGIN
+   EXECUTE format('CREATE TABLE IF NOT EXISTS FoodOrder_%s PARTITION OF FoodOrder FOR VALUES FROM (%L) TO (%L)',
+                  suffix, startMonth, startMonth + INTERVAL '1 month');
+   EXECUTE format('CREATE TABLE IF NOT EXISTS ItemsInOrder_%s PARTITION OF ItemsInOrder FOR VALUES FROM (%L) TO (%L)',
+                  suffix, startMonth, startMonth + INTERVAL '1 month');
+END;
+$$ LANGUAGE plpgsql;
+
+-- tells every listening instance about an order status change, see
+-- OrderStatusEvents. The payload is orderID,storeID,orderStatus,login
+CREATE OR REPLACE FUNCTION notify_order_status() RETURNS trigger AS $$
+BEGIN
+   IF NEW.orderStatus IS DISTINCT FROM OLD.orderStatus THEN
+      PERFORM pg_notify('order_status', NEW.orderID || ',' || NEW.storeID || ',' ||
+                        coalesce(trim(NEW.orderStatus), '') || ',' || NEW.login);
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER foodOrderStatusChanged
+AFTER UPDATE OF orderStatus ON FoodOrder
+FOR EACH ROW EXECUTE FUNCTION notify_order_status();
+
+-- orders of every shard moved out of the live partitions by OrderArchiver
+CREATE TABLE ArchivedOrder ( orderID integer NOT NULL,
+                           login varchar(50) NOT NULL,
+                           storeID integer NOT NULL,
+                           totalPrice decimal(10,2) NOT NULL,
+                           orderTimestamp timestamp NOT NULL,
+                           orderStatus char(50),
+                           PRIMARY KEY(orderID, orderTimestamp)
+);
+
+CREATE TABLE ArchivedOrderItem ( orderID integer NOT NULL,
+                           itemName varchar(50) NOT NULL,
+                           quantity integer NOT NULL,
+                           orderTimestamp timestamp NOT NULL,
+                           PRIMARY KEY(orderID, itemName, orderTimestamp)
+);
+
+-- revoked session tokens (tokenID) and logins (every token issued up to
+-- notBefore, epoch ms), shared by all instances; see SessionTokens
+CREATE TABLE SessionRevocation ( revocationID bigserial NOT NULL,
+                           tokenID varchar(20),
+                           login varchar(50),
+                           notBefore bigint,
+                           expiresAt bigint NOT NULL, -- epoch seconds
+                           PRIMARY KEY(revocationID)
+);
+
+-- sales rollups, maintained in the same transaction as FoodOrder/ItemsInOrder
+CREATE TABLE StoreHourSales ( storeID integer NOT NULL,
+                           salesHour timestamp NOT NULL,
+                           orderCount integer NOT NULL DEFAULT 0,
+                           completeCount integer NOT NULL DEFAULT 0,
+                           revenue decimal(12,2) NOT NULL DEFAULT 0,
+                           PRIMARY KEY(storeID, salesHour),
+                           FOREIGN KEY(storeID) REFERENCES Store(storeID)
+                           ON DELETE CASCADE
+);
+
+CREATE TABLE ItemDaySales ( itemName varchar(50) NOT NULL,
+                           salesDay date NOT NULL,
+                           quantity integer NOT NULL DEFAULT 0,
+                           orderCount integer NOT NULL DEFAULT 0,
+                           revenue decimal(12,2) NOT NULL DEFAULT 0,
+                           PRIMARY KEY(itemName, salesDay)
+);
+
+-- optional per-store pricing rules; rates are in basis points (1/100 of a percent)
+CREATE TABLE StorePricing ( storeID integer NOT NULL,
+                           taxRateBps integer NOT NULL DEFAULT 0,
+                           discountBps integer NOT NULL DEFAULT 0,
+                           discountMinimum decimal(10,2) NOT NULL DEFAULT 0,
+                           PRIMARY KEY(storeID),
+                           FOREIGN KEY(storeID) REFERENCES Store(storeID)
+                           ON DELETE CASCADE
+);
+
+-- per-store ingredient stock; ingredients without a row are not tracked.
+-- Written in batches of deltas by the application, see StoreInventory
+CREATE TABLE StoreInventory ( storeID integer NOT NULL,
+                           ingredient varchar(300) NOT NULL,
+                           quantity bigint NOT NULL DEFAULT 0,
+                           PRIMARY KEY(storeID, ingredient),
+                           FOREIGN KEY(storeID) REFERENCES Store(storeID)
+                           ON DELETE CASCADE
+);
@@ -1,4 +1,4 @@
-/* Replace the location to where you saved the data files*/
+/* Replace the location to where you saved the data files (java DataGenerator writes larger ones)*/
 COPY Users
 FROM '/home/csmajs/atran388/cs166_project_phase3/data/users.csv'
 WITH DELIMITER ',' CSV HEADER;
@@ -11,10 +11,36 @@ COPY Store
 FROM '/home/csmajs/atran388/cs166_project_phase3/data/store.csv'
 WITH DELIMITER ',' CSV HEADER;
 
+/* Create the monthly order partitions covering the history (2014 onward) */
+SELECT ensure_order_partition(CAST(month AS date))
+FROM generate_series(TIMESTAMP '2014-01-01', date_trunc('month', now()) + INTERVAL '3 months', INTERVAL '1 month') AS month;
+
 COPY FoodOrder
 FROM '/home/csmajs/atran388/cs166_project_phase3/data/foodorder.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY ItemsInOrder
+/* New orderIDs continue above the loaded ones */
+SELECT setval('FoodOrderIDs', GREATEST((SELECT MAX(orderID) FROM FoodOrder), 10000));
+
+/* ItemsInOrder carries its order's timestamp, so the CSV goes through a staging table */
+CREATE TEMP TABLE ItemsInOrderLoad ( orderID integer, itemName varchar(50), quantity integer );
+
+COPY ItemsInOrderLoad
 FROM '/home/csmajs/atran388/cs166_project_phase3/data/itemsinorder.csv'
 WITH DELIMITER ',' CSV HEADER;
+
+INSERT INTO ItemsInOrder (orderID, itemName, quantity, orderTimestamp)
+SELECT L.orderID, L.itemName, L.quantity, F.orderTimestamp
+FROM ItemsInOrderLoad L JOIN FoodOrder F ON F.orderID = L.orderID;
+
+/* Backfill the sales rollups from the loaded order history */
+INSERT INTO StoreHourSales (storeID, salesHour, orderCount, completeCount, revenue)
+SELECT storeID, date_trunc('hour', orderTimestamp), COUNT(*),
+COUNT(*) FILTER (WHERE TRIM(orderStatus) = 'complete'), SUM(totalPrice)
+FROM FoodOrder GROUP BY storeID, date_trunc('hour', orderTimestamp);
+
+INSERT INTO ItemDaySales (itemName, salesDay, quantity, orderCount, revenue)
+SELECT I.itemName, CAST(F.orderTimestamp AS date), SUM(I.quantity), COUNT(*), SUM(I.quantity * M.price)
+FROM ItemsInOrder I JOIN FoodOrder F ON F.orderID = I.orderID
+JOIN Items M ON M.itemName = I.itemName
+GROUP BY I.itemName, CAST(F.orderTimestamp AS date);